@@ -1,125 +1,42 @@
-import java.io.*;
-import java.util.*;
-import java.util.concurrent.TimeUnit;
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import javax.imageio.ImageIO;
 
-import lib.ImagetoPixelConverter;
-import lib.MAECalculator;
-import lib.MSECalculator;
-import lib.PSNRCalculator;
-import lib.PixeltoImageConverter;
+import src.BatchCompressor;
+import src.CompressionServer;
 import src.Utility;
 
 public class App {
-    public static void main(String[] args) throws IOException, ClassNotFoundException {
+    public static void main(String[] args) throws InterruptedException, IOException {
 
         // Create an instance of Utility
         Utility Utility = new Utility(8, 10);
 
+        // "serve [port]" serves the Compressed folder over HTTP instead, keeping up
+        // to 512 MB of decoded images in memory, see CompressionServer
+        if (args.length > 0 && args[0].equals("serve")) {
+            int port = args.length > 1 ? Integer.parseInt(args[1]) : 8080;
+            CompressionServer server = new CompressionServer(Utility, new File("Compressed/"), 512L << 20);
+            server.start(port, Runtime.getRuntime().availableProcessors());
+            System.out.println("Serving Compressed/ on port " + server.getPort());
+            return;
+        }
+
         // Define original file directory to loop through
         String ImageDirectory = "Original/";
 
-        // List all files in the directory
-        File directory = new File(ImageDirectory);
-        File[] files = directory.listFiles();
-
-        if (files != null) {
-            for (File file : files) {
-                if (file.isFile()) {
-                    String imageName = file.getName();
-
-                    // Converting image to pixels
-                    System.out.println("Converting " + imageName + " to pixels");
-                    System.out.println("--------------------------------------------------");
-                    ImagetoPixelConverter ImagetoPixelConverter = new ImagetoPixelConverter(ImageDirectory + imageName);
-
-                    // Converting the image to pixels
-
-                    int[][][] pixelData = ImagetoPixelConverter.getPixelData();
-                    int width = ImagetoPixelConverter.getWidth();
-                    int height = ImagetoPixelConverter.getHeight();
-
-                    for (int x = 0; x < width; x++) {
-                        for (int y = 0; y < height; y++) {
-                            int red = pixelData[x][y][0];
-                            int green = pixelData[x][y][1];
-                            int blue = pixelData[x][y][2];
-                        }
-                    }
-
-                    // Now you have the image data in 'pixelData' that will be taken in by Compress
-
-                    // Define location and name for the compressed file to be created
-                    String compressed_file_name = "Compressed/" + imageName.substring(0, imageName.lastIndexOf('.'))
-                            + ".bin";
-
-                    // start compress timer
-                    long compressStartTime = System.currentTimeMillis();
-
-                    // call compress function
-                    Utility.Compress(pixelData, compressed_file_name);
-
-                    // end timer for compress and record the total time passed
-                    long compressEndTime = System.currentTimeMillis();
-                    long compressExecutionTime = compressEndTime - compressStartTime;
-                    System.out.println("Compress Execution Time for " + imageName + " : " + compressExecutionTime
-                            + " milliseconds");
-
-                    // Check the original file size
-                    File originalFile = new File(ImageDirectory + imageName);
-                    long originalFileSize = originalFile.length();
-                    System.out
-                            .println("Size of the original file for " + imageName + ": " + originalFileSize + " bytes");
-
-                    // Check size of the compressed file
-                    File compressedFile = new File(compressed_file_name);
-                    long compressedFileSize = compressedFile.length();
-                    System.out.println(
-                            "Size of the compressed file for " + imageName + ": " + compressedFileSize + " bytes");
-
-                    // Find the Difference
-                    long differenceInFileSize = originalFileSize - compressedFileSize;
-                    System.out.println(
-                            "Bytes saved from compression of " + imageName + ": " + differenceInFileSize + " bytes");
-
-                    // start decompress timer
-                    long decompressStartTime = System.currentTimeMillis();
-
-                    // call decompress function
-                    int[][][] newPixelData = Utility.Decompress(compressed_file_name);
-
-                    // end timer for decompress and record the total time passed
-                    long decompressEndTime = System.currentTimeMillis();
-                    long decompressExecutionTime = decompressEndTime - decompressStartTime;
-                    System.out.println("Decompress Execution Time for " + imageName + " : " + decompressExecutionTime
-                            + " milliseconds");
-
-                    // convert back to image for visualisation
-                    PixeltoImageConverter PixeltoImageConverter = new PixeltoImageConverter(newPixelData);
-                    PixeltoImageConverter.saveImage("Decompressed/" + imageName, "png");
-
-                    // Get the two bufferedimages for calculations
-                    BufferedImage originalimage = ImageIO.read(new File(ImageDirectory + imageName));
-                    BufferedImage decompressedimage = ImageIO.read(new File("Decompressed/" + imageName));
-
-                    // calculate MAE
-                    double MAE = MAECalculator.calculateMAE(originalimage, decompressedimage);
-                    System.out.println("Mean Absolute Error of :" + imageName + " is " + MAE);
-
-                    // calculate MSE
-                    double MSE = MSECalculator.calculateMSE(originalimage, decompressedimage);
-                    System.out.println("Mean Squared Error of :" + imageName + " is " + MSE);
-
-                    // calculate PSNR
-                    double PSNR = PSNRCalculator.calculatePSNR(originalimage, decompressedimage);
-                    System.out.println("PSNR of :" + imageName + " is " + PSNR);
-                    System.out.println("--------------------------------------------------");
-
-                }
-            }
+        // Compress, decompress and measure every image in the directory. Image files
+        // are read and written on a few I/O threads while the other cores compress,
+        // and at most two images per core are held in memory at any time
+        int cores = Runtime.getRuntime().availableProcessors();
+        BatchCompressor batchCompressor = new BatchCompressor(Utility, 4, cores, 2 * cores);
+        batchCompressor.run(new File(ImageDirectory), new File("Compressed/"), new File("Decompressed/"));
+
+        // Write the stage latencies and tree statistics of the run for later analysis.
+        // Run with -XX:StartFlightRecording to also record them as JFR events
+        try {
+            batchCompressor.writeSummary(new File("Compressed/summary.json"), new File("Compressed/summary.csv"));
+        } catch (IOException e) {
+            System.out.println("Could not write the summary: " + e.getMessage());
         }
 
     }
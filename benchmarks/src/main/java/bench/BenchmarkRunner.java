@@ -0,0 +1,18 @@
+package bench;
+
+import java.util.Arrays;
+
+import org.openjdk.jmh.Main;
+
+// BenchmarkRunner runs JMH with the command line options it is given, and always
+// adds the GC profiler, so every result reports the allocation rate
+// (gc.alloc.rate.norm, in bytes per operation) next to the ops/s
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        String[] options = Arrays.copyOf(args, args.length + 2);
+        options[args.length] = "-prof";
+        options[args.length + 1] = "gc";
+        Main.main(options);
+    }
+}
@@ -0,0 +1,89 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lib.PixelBuffer;
+import src.CompressionConfig;
+import src.QuadTree;
+import src.Utility;
+import src.simpleNode;
+
+// CodecBenchmark measures encoding and decoding the leafs of a merged tree with
+// the explicit encoding, and decompressing a whole file with the default tree
+// encoding. The explicit encoding stores 10-bit coordinates, so the largest
+// image is 1000 pixels square
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CodecBenchmark {
+    @Param({ SyntheticImages.FLAT, SyntheticImages.GRADIENT, SyntheticImages.NOISE, SyntheticImages.PHOTO })
+    public String kind;
+
+    @Param({ "256", "1000" })
+    public int size;
+
+    // the similarityPercent of the tree
+    @Param({ "5", "20" })
+    public int threshold;
+
+    private ArrayList<simpleNode> leafs;
+    private ByteBuffer encoded;
+    private Utility utility;
+    private File compressed;
+
+    @Setup
+    public void setup() throws IOException {
+        PixelBuffer pixels = SyntheticImages.create(kind, size);
+        CompressionConfig config = new CompressionConfig(8, threshold);
+        QuadTree quadtree = new QuadTree(pixels, config);
+        quadtree.mergeSimilarNodes(quadtree.getRoot());
+        leafs = quadtree.getLeafs();
+        encoded = Utility.encode(leafs);
+
+        utility = new Utility(config);
+        compressed = File.createTempFile("codec-benchmark", ".bin");
+        utility.Compress(pixels, compressed.getPath(), config);
+    }
+
+    @TearDown
+    public void tearDown() {
+        compressed.delete();
+    }
+
+    @Benchmark
+    public ByteBuffer encode() {
+        return Utility.encode(leafs);
+    }
+
+    @Benchmark
+    public ArrayList<simpleNode> decode() {
+        return Utility.decode(encoded.duplicate());
+    }
+
+    // reads the file from the page cache, so this is mostly the cost of decoding
+    // and painting the leafs
+    @Benchmark
+    public PixelBuffer decompress() throws IOException, ClassNotFoundException {
+        return utility.Decompress(compressed.getPath());
+    }
+}
@@ -0,0 +1,89 @@
+package bench;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lib.MAECalculator;
+import lib.MSECalculator;
+import lib.PSNRCalculator;
+import lib.PixelBuffer;
+import lib.QualityMetrics;
+import src.CompressionConfig;
+import src.Utility;
+
+// MetricsBenchmark measures the quality metrics of an image against its own
+// compressed and decompressed copy, with the single pass QualityMetrics and with
+// each of the per metric calculators
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MetricsBenchmark {
+    @Param({ SyntheticImages.FLAT, SyntheticImages.GRADIENT, SyntheticImages.NOISE, SyntheticImages.PHOTO })
+    public String kind;
+
+    @Param({ "256", "1024" })
+    public int size;
+
+    private PixelBuffer original;
+    private PixelBuffer decompressed;
+    private BufferedImage originalImage;
+    private BufferedImage decompressedImage;
+
+    @Setup
+    public void setup() throws IOException {
+        original = SyntheticImages.create(kind, size);
+        originalImage = new BufferedImage(size, size, BufferedImage.TYPE_INT_RGB);
+        PixelBuffer copy = PixelBuffer.wrap(originalImage);
+        for (int y = 0; y < size; y++) {
+            System.arraycopy(original.getData(), original.getIndex(0, y), copy.getData(), copy.getIndex(0, y), size);
+        }
+
+        CompressionConfig config = new CompressionConfig(8, 10);
+        Utility utility = new Utility(config);
+        File compressed = File.createTempFile("metrics-benchmark", ".bin");
+        try {
+            utility.Compress(original, compressed.getPath(), config);
+            decompressedImage = utility.DecompressImage(compressed.getPath());
+        } finally {
+            compressed.delete();
+        }
+        decompressed = PixelBuffer.wrap(decompressedImage);
+    }
+
+    @Benchmark
+    public QualityMetrics.Result qualityMetrics() {
+        return QualityMetrics.measure(original, decompressed);
+    }
+
+    @Benchmark
+    public double mae() {
+        return MAECalculator.calculateMAE(originalImage, decompressedImage);
+    }
+
+    @Benchmark
+    public double mse() {
+        return MSECalculator.calculateMSE(originalImage, decompressedImage);
+    }
+
+    @Benchmark
+    public double psnr() {
+        return PSNRCalculator.calculatePSNR(originalImage, decompressedImage);
+    }
+}
@@ -0,0 +1,85 @@
+package bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import lib.PixelBuffer;
+import src.CompressionConfig;
+import src.NodeArena;
+import src.QuadTree;
+
+// QuadTreeBenchmark measures building the quad tree, on one thread and on the
+// fork join pool, and merging its similar nodes
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class QuadTreeBenchmark {
+    @Param({ SyntheticImages.FLAT, SyntheticImages.GRADIENT, SyntheticImages.NOISE, SyntheticImages.PHOTO })
+    public String kind;
+
+    @Param({ "256", "1024" })
+    public int size;
+
+    // the similarityPercent of the tree
+    @Param({ "5", "20" })
+    public int threshold;
+
+    private PixelBuffer pixels;
+    private CompressionConfig serial;
+    private CompressionConfig parallel;
+    // reused by every build, as Utility reuses one arena per thread
+    private final NodeArena arena = new NodeArena();
+
+    @Setup
+    public void setup() {
+        pixels = SyntheticImages.create(kind, size);
+        serial = new CompressionConfig(8, threshold, 0);
+        parallel = new CompressionConfig(8, threshold, QuadTree.DEFAULT_PARALLEL_CUTOFF);
+    }
+
+    @Benchmark
+    public QuadTree build() {
+        return new QuadTree(pixels, serial, arena);
+    }
+
+    @Benchmark
+    public QuadTree buildParallel() {
+        return new QuadTree(pixels, parallel, arena);
+    }
+
+    @Benchmark
+    public QuadTree mergeSimilarNodes(Unmerged state) {
+        QuadTree tree = state.tree;
+        tree.mergeSimilarNodes(tree.getRoot());
+        return tree;
+    }
+
+    // Unmerged holds a tree that has not been merged yet. Merging changes the tree,
+    // so it is built again before every call. The build is not timed, but it does
+    // count towards the allocation rate of mergeSimilarNodes
+    @State(Scope.Thread)
+    public static class Unmerged {
+        private final NodeArena arena = new NodeArena();
+        QuadTree tree;
+
+        @Setup(Level.Invocation)
+        public void build(QuadTreeBenchmark benchmark) {
+            tree = new QuadTree(benchmark.pixels, benchmark.serial, arena);
+        }
+    }
+}
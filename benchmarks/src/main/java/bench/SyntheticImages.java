@@ -0,0 +1,93 @@
+package bench;
+
+import java.util.Random;
+
+import lib.PixelBuffer;
+
+// SyntheticImages makes the test images the benchmarks run over, so the results
+// do not depend on the contents of the Original folder. Each kind stresses the
+// tree differently: a flat image is a single leaf, a gradient splits evenly
+// everywhere, noise splits down to the maximum depth, and a photo-like image has
+// smooth areas, hard edges and a little grain, as real photos do. Every image is
+// made from a fixed seed, so runs are comparable.
+public class SyntheticImages {
+    public static final String FLAT = "flat";
+    public static final String GRADIENT = "gradient";
+    public static final String NOISE = "noise";
+    public static final String PHOTO = "photo";
+
+    private SyntheticImages() {
+    }
+
+    // returns a size x size image of the given kind
+    public static PixelBuffer create(String kind, int size) {
+        PixelBuffer pixels = new PixelBuffer(size, size);
+        int[] data = pixels.getData();
+        Random random = new Random(42);
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int color;
+                switch (kind) {
+                    case FLAT:
+                        color = 0x4080c0;
+                        break;
+                    case GRADIENT:
+                        color = rgb(x * 255 / size, y * 255 / size, (x + y) * 255 / (2 * size));
+                        break;
+                    case NOISE:
+                        color = random.nextInt(1 << 24);
+                        break;
+                    case PHOTO:
+                        color = photo(x, y, size, random);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown image kind: " + kind);
+                }
+                data[pixels.getIndex(x, y)] = color;
+            }
+        }
+        return pixels;
+    }
+
+    // a sky fading into a horizon, a sun and a few blocks of shadow, with a small
+    // amount of grain on top
+    private static int photo(int x, int y, int size, Random random) {
+        double u = (double) x / size;
+        double v = (double) y / size;
+        double r, g, b;
+        if (v < 0.6) {
+            // sky, lighter towards the horizon
+            r = 90 + 120 * v;
+            g = 140 + 90 * v;
+            b = 230 - 20 * v;
+        } else {
+            // ground, with a slow wave of light and dark
+            double wave = 20 * Math.sin(u * 9) * Math.cos(v * 7);
+            r = 110 + wave;
+            g = 90 + 60 * (1 - v) + wave;
+            b = 50 + wave / 2;
+        }
+        double du = u - 0.7;
+        double dv = v - 0.25;
+        if (du * du + dv * dv < 0.01) {
+            r = 255;
+            g = 240;
+            b = 180;
+        }
+        if (v > 0.45 && ((int) (u * 8) % 3 == 0) && v < 0.45 + 0.3 * ((int) (u * 8) % 2 + 1) / 2) {
+            r *= 0.4;
+            g *= 0.4;
+            b *= 0.45;
+        }
+        int grain = random.nextInt(9) - 4;
+        return rgb((int) r + grain, (int) g + grain, (int) b + grain);
+    }
+
+    private static int rgb(int r, int g, int b) {
+        return (clamp(r) << 16) | (clamp(g) << 8) | clamp(b);
+    }
+
+    private static int clamp(int value) {
+        return Math.max(0, Math.min(255, value));
+    }
+}
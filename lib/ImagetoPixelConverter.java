@@ -1,44 +1,178 @@
 package lib;
+import java.awt.Rectangle;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
 
+// ImagetoPixelConverter reads an image file into a PixelBuffer. Opaque RGB images
+// are decoded as TYPE_3BYTE_BGR, or TYPE_INT_RGB if the reader cannot do that,
+// and their raster is copied into the pixel buffer in one pass. Only unusual
+// layouts go through getRGB.
 public class ImagetoPixelConverter {
     private BufferedImage image;
-    private int[][][] pixelData;
+    private PixelBuffer pixelData;
 
     public ImagetoPixelConverter(String imagePath) {
-        try {
-            // Load the image from the specified file path
-            File imageFile = new File(imagePath);
-            this.image = ImageIO.read(imageFile);
-            
-            // Get image width and height
-            int width = image.getWidth();
-            int height = image.getHeight();
-            
-            // Initialize the pixelData array
-            this.pixelData = new int[width][height][3];
-            
-            // Convert the image into pixelData
-            for (int x = 0; x < width; x++) {
-                for (int y = 0; y < height; y++) {
-                    int color = image.getRGB(x, y);
-                    int red = (color >> 16) & 0xFF;
-                    int green = (color >> 8) & 0xFF;
-                    int blue = color & 0xFF;
-                    pixelData[x][y][0] = red;
-                    pixelData[x][y][1] = green;
-                    pixelData[x][y][2] = blue;
+        this(imagePath, null, 1);
+    }
+
+    // reads only the region of the image, or all of it if region is null, keeping
+    // every subsampling-th pixel in each direction. Both are applied by the image
+    // reader, so the skipped pixels are never stored
+    public ImagetoPixelConverter(String imagePath, Rectangle region, int subsampling) {
+        if (subsampling < 1) {
+            throw new IllegalArgumentException("subsampling must be at least 1: " + subsampling);
+        }
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(imagePath))) {
+            if (input == null) {
+                throw new IOException("Cannot open " + imagePath);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + imagePath);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (region != null) {
+                    param.setSourceRegion(region);
+                }
+                if (subsampling > 1) {
+                    param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                }
+                ImageTypeSpecifier destination = rgbDestination(reader);
+                if (destination != null) {
+                    param.setDestinationType(destination);
                 }
+                this.image = reader.read(0, param);
+            } finally {
+                reader.dispose();
             }
+            this.pixelData = toPixelBuffer(image);
         } catch (IOException e) {
             e.printStackTrace();
         }
     }
 
-    public int[][][] getPixelData() {
+    // picks TYPE_3BYTE_BGR, or else TYPE_INT_RGB, as the type to decode into if
+    // the image is stored as opaque sRGB and the reader offers it. Byte BGR is what
+    // most readers produce natively and copying it is cheaper than having the
+    // reader convert to ints. Other images are decoded as they are, so getRGB
+    // still converts them the way it always has
+    private static ImageTypeSpecifier rgbDestination(ImageReader reader) throws IOException {
+        ImageTypeSpecifier raw = reader.getRawImageType(0);
+        if (raw == null) {
+            return null;
+        }
+        ColorModel model = raw.getColorModel();
+        if (!model.getColorSpace().isCS_sRGB() || model.hasAlpha() || model.getNumComponents() != 3) {
+            return null;
+        }
+        ImageTypeSpecifier intRgb = null;
+        for (Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0); types.hasNext();) {
+            ImageTypeSpecifier type = types.next();
+            if (type.getBufferedImageType() == BufferedImage.TYPE_3BYTE_BGR) {
+                return type;
+            }
+            if (type.getBufferedImageType() == BufferedImage.TYPE_INT_RGB) {
+                intRgb = type;
+            }
+        }
+        return intRgb;
+    }
+
+    /**
+     * Converts an image into a buffer of packed 0xRRGGBB pixels. A TYPE_INT_RGB
+     * image is wrapped without copying, so the buffer shares its pixels. Int and
+     * byte interleaved images are copied from their raster, everything else is
+     * converted with getRGB.
+     *
+     * @param image the image to convert
+     * @return the pixels of the image
+     */
+    public static PixelBuffer toPixelBuffer(BufferedImage image) {
+        int width = image.getWidth();
+        int height = image.getHeight();
+        switch (image.getType()) {
+            case BufferedImage.TYPE_INT_RGB:
+                return PixelBuffer.wrap(image);
+            case BufferedImage.TYPE_INT_ARGB:
+                return fromIntRaster(image.getRaster(), width, height);
+            case BufferedImage.TYPE_3BYTE_BGR:
+            case BufferedImage.TYPE_4BYTE_ABGR:
+                return fromByteRaster(image.getRaster(), width, height);
+            default:
+                PixelBuffer pixels = new PixelBuffer(width, height);
+                int[] data = pixels.getData();
+                // Convert the image into pixelData, reading whole rows at a time
+                for (int y = 0; y < height; y++) {
+                    image.getRGB(0, y, width, 1, data, y * width, width);
+                }
+                // Drop the alpha channel, the pixel buffer only holds RGB
+                for (int i = 0; i < data.length; i++) {
+                    data[i] &= 0xFFFFFF;
+                }
+                return pixels;
+        }
+    }
+
+    // copies a packed int raster such as TYPE_INT_ARGB, dropping the alpha channel
+    private static PixelBuffer fromIntRaster(WritableRaster raster, int width, int height) {
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        int[] source = buffer.getData();
+        int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        int start = buffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX();
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        int[] data = pixels.getData();
+        for (int y = 0; y < height; y++) {
+            int from = start + y * stride;
+            int to = y * width;
+            for (int x = 0; x < width; x++) {
+                data[to + x] = source[from + x] & 0xFFFFFF;
+            }
+        }
+        return pixels;
+    }
+
+    // copies an interleaved byte raster such as TYPE_3BYTE_BGR, whose band offsets
+    // say where red, green and blue are within each pixel
+    private static PixelBuffer fromByteRaster(WritableRaster raster, int width, int height) {
+        DataBufferByte buffer = (DataBufferByte) raster.getDataBuffer();
+        byte[] source = buffer.getData();
+        ComponentSampleModel model = (ComponentSampleModel) raster.getSampleModel();
+        int pixelStride = model.getPixelStride();
+        int stride = model.getScanlineStride();
+        int[] bands = model.getBandOffsets();
+        int start = buffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX() * pixelStride;
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        int[] data = pixels.getData();
+        for (int y = 0; y < height; y++) {
+            int from = start + y * stride;
+            int to = y * width;
+            for (int x = 0; x < width; x++, from += pixelStride) {
+                data[to + x] = ((source[from + bands[0]] & 0xFF) << 16) | ((source[from + bands[1]] & 0xFF) << 8)
+                        | (source[from + bands[2]] & 0xFF);
+            }
+        }
+        return pixels;
+    }
+
+    public PixelBuffer getPixelData() {
         return pixelData;
     }
 
@@ -49,6 +183,5 @@ public class ImagetoPixelConverter {
     public int getHeight() {
         return image.getHeight();
     }
-    
-}
 
+}
@@ -0,0 +1,117 @@
+package lib;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+
+// PixelBuffer holds an image as a single int[] of packed 0xRRGGBB values in row
+// major order, so an image costs about its raw size in memory and walking a row
+// is a sequential read. A buffer can also be a view of a rectangle inside a larger
+// array, in which case rows are stride values apart starting at offset.
+public class PixelBuffer {
+    private final int width;
+    private final int height;
+    private final int[] data;
+    private final int offset;
+    private final int stride;
+
+    // creates an empty (black) buffer of the given size
+    public PixelBuffer(int width, int height) {
+        this(width, height, new int[width * height], 0, width);
+    }
+
+    // wraps an existing array of packed pixels without copying it
+    public PixelBuffer(int width, int height, int[] data, int offset, int stride) {
+        if (width < 0 || height < 0 || stride < width) {
+            throw new IllegalArgumentException("Invalid buffer size " + width + "x" + height + " with stride " + stride);
+        }
+        if (height > 0 && offset + (height - 1) * stride + width > data.length) {
+            throw new IllegalArgumentException("Pixel array is too small for a " + width + "x" + height + " buffer");
+        }
+        this.width = width;
+        this.height = height;
+        this.data = data;
+        this.offset = offset;
+        this.stride = stride;
+    }
+
+    // wraps the pixels of a TYPE_INT_RGB image without copying them, so writing to
+    // the buffer paints the image
+    public static PixelBuffer wrap(BufferedImage image) {
+        if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+            throw new IllegalArgumentException("Only TYPE_INT_RGB images can be wrapped, not type " + image.getType());
+        }
+        WritableRaster raster = image.getRaster();
+        DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+        int stride = ((SinglePixelPackedSampleModel) raster.getSampleModel()).getScanlineStride();
+        // the translation is non zero for an image made from part of another raster
+        int offset = buffer.getOffset() - raster.getSampleModelTranslateY() * stride
+                - raster.getSampleModelTranslateX();
+        return new PixelBuffer(image.getWidth(), image.getHeight(), buffer.getData(), offset, stride);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // the backing array, pixel (x, y) is at getIndex(x, y)
+    public int[] getData() {
+        return data;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    public int getIndex(int x, int y) {
+        return offset + y * stride + x;
+    }
+
+    // returns the pixel at (x, y) packed as 0xRRGGBB
+    public int getRGB(int x, int y) {
+        return data[offset + y * stride + x];
+    }
+
+    public void setRGB(int x, int y, int rgb) {
+        data[offset + y * stride + x] = rgb & 0xFFFFFF;
+    }
+
+    public int getRed(int x, int y) {
+        return (data[offset + y * stride + x] >> 16) & 0xFF;
+    }
+
+    public int getGreen(int x, int y) {
+        return (data[offset + y * stride + x] >> 8) & 0xFF;
+    }
+
+    public int getBlue(int x, int y) {
+        return data[offset + y * stride + x] & 0xFF;
+    }
+
+    // fills the rectangle with a single colour, one row at a time
+    public void fillRect(int x, int y, int width, int height, int rgb) {
+        int color = rgb & 0xFFFFFF;
+        for (int row = y; row < y + height; row++) {
+            int start = offset + row * stride + x;
+            Arrays.fill(data, start, start + width, color);
+        }
+    }
+
+    // returns a view of the rectangle that shares this buffer's array
+    public PixelBuffer region(int x, int y, int width, int height) {
+        if (x < 0 || y < 0 || x + width > this.width || y + height > this.height) {
+            throw new IllegalArgumentException("Region is outside the buffer");
+        }
+        return new PixelBuffer(width, height, data, getIndex(x, y), stride);
+    }
+}
@@ -5,27 +5,32 @@ import java.io.IOException;
 import javax.imageio.ImageIO;
 
 public class PixeltoImageConverter {
-    private int[][][] pixelData;
+    private PixelBuffer pixelData;
+    private BufferedImage image;
     private int width;
     private int height;
 
-    public PixeltoImageConverter(int[][][] pixelData) {
+    public PixeltoImageConverter(PixelBuffer pixelData) {
         this.pixelData = pixelData;
-        this.width = pixelData.length;
-        this.height = pixelData[0].length;
+        this.width = pixelData.getWidth();
+        this.height = pixelData.getHeight();
+    }
+
+    // saves an image that was already decoded into a BufferedImage as is
+    public PixeltoImageConverter(BufferedImage image) {
+        this.image = image;
+        this.width = image.getWidth();
+        this.height = image.getHeight();
     }
 
     public void saveImage(String outputImagePath, String format) {
-        BufferedImage outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-
-        for (int x = 0; x < width; x++) {
-            for (int y = 0; y < height; y++) {
-                int red = pixelData[x][y][0];
-                int green = pixelData[x][y][1];
-                int blue = pixelData[x][y][2];
-                int rgb = (red << 16) | (green << 8) | blue; // Create an RGB color from the components
-                outputImage.setRGB(x, y, rgb);
-            }
+        BufferedImage outputImage = image;
+        if (outputImage == null) {
+            outputImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+
+            // The pixels are already packed RGB, so they are copied over in one call
+            outputImage.setRGB(0, 0, width, height, pixelData.getData(), pixelData.getOffset(),
+                    pixelData.getStride());
         }
 
         try {
@@ -39,7 +44,7 @@ public class PixeltoImageConverter {
         // Example usage:
         int width = 100;
         int height = 100;
-        int[][][] pixelData = new int[width][height][3];
+        PixelBuffer pixelData = new PixelBuffer(width, height);
 
         // Fill pixelData with pixel values...
 
@@ -0,0 +1,114 @@
+package lib;
+
+import java.util.stream.IntStream;
+
+// QualityMetrics measures how close a decompressed image is to its original in a
+// single pass over both pixel buffers, so nothing has to be written to or read
+// back from disk. MAE, MSE and PSNR are defined exactly as in MAECalculator,
+// MSECalculator and PSNRCalculator. SSIM is the mean structural similarity of
+// non overlapping 8x8 blocks, averaged over the red, green and blue channels.
+// The image is split into bands of 8 rows that are measured in parallel, and the
+// results of the bands are added up in order, so they do not depend on the number
+// of threads.
+public class QualityMetrics {
+    private static final int BLOCK = 8;
+    // the SSIM stabilizing constants for 8-bit channels
+    private static final double C1 = (0.01 * 255) * (0.01 * 255);
+    private static final double C2 = (0.03 * 255) * (0.03 * 255);
+
+    // the quality of one image, see the calculators for the definitions
+    public record Result(double mae, double mse, double psnr, double ssim) {
+    }
+
+    // the sums of one band of rows
+    private static class Band {
+        long absoluteError;
+        long squaredError;
+        double ssim;
+        int blocks;
+    }
+
+    /**
+     * Measures the decompressed image against the original.
+     *
+     * @param original     the original pixels
+     * @param decompressed the decompressed pixels, the same size as the original
+     * @return the MAE, MSE, PSNR and SSIM of the decompressed image
+     */
+    public static Result measure(PixelBuffer original, PixelBuffer decompressed) {
+        int width = original.getWidth();
+        int height = original.getHeight();
+        if (decompressed.getWidth() != width || decompressed.getHeight() != height) {
+            throw new IllegalArgumentException("Images have different dimensions: " + width + "x" + height
+                    + " and " + decompressed.getWidth() + "x" + decompressed.getHeight());
+        }
+        Band[] bands = new Band[(height + BLOCK - 1) / BLOCK];
+        IntStream.range(0, bands.length).parallel()
+                .forEach(band -> bands[band] = measureBand(original, decompressed, band * BLOCK));
+
+        long absoluteError = 0;
+        long squaredError = 0;
+        double ssim = 0;
+        int blocks = 0;
+        for (Band band : bands) {
+            absoluteError += band.absoluteError;
+            squaredError += band.squaredError;
+            ssim += band.ssim;
+            blocks += band.blocks;
+        }
+        double pixels = (double) width * height;
+        double mae = absoluteError / (pixels * 3); // 3 channels (RGB)
+        double mse = squaredError / pixels;
+        double psnr = 20 * Math.log10(255.0 / Math.sqrt(mse));
+        return new Result(mae, mse, psnr, ssim / (blocks * 3));
+    }
+
+    private static Band measureBand(PixelBuffer original, PixelBuffer decompressed, int top) {
+        int width = original.getWidth();
+        int bottom = Math.min(original.getHeight(), top + BLOCK);
+        int blockCount = (width + BLOCK - 1) / BLOCK;
+        // sums of x, y, x^2, y^2 and xy for each channel of each block in the band
+        long[] sums = new long[blockCount * 3 * 5];
+        int[] a = original.getData();
+        int[] b = decompressed.getData();
+        Band band = new Band();
+
+        for (int y = top; y < bottom; y++) {
+            int indexA = original.getIndex(0, y);
+            int indexB = decompressed.getIndex(0, y);
+            for (int x = 0; x < width; x++) {
+                int pixelA = a[indexA + x];
+                int pixelB = b[indexB + x];
+                int block = (x / BLOCK) * 15;
+                for (int shift = 16, s = block; shift >= 0; shift -= 8, s += 5) {
+                    int valueA = (pixelA >> shift) & 0xFF;
+                    int valueB = (pixelB >> shift) & 0xFF;
+                    int difference = valueA - valueB;
+                    band.absoluteError += Math.abs(difference);
+                    band.squaredError += difference * difference;
+                    sums[s] += valueA;
+                    sums[s + 1] += valueB;
+                    sums[s + 2] += valueA * valueA;
+                    sums[s + 3] += valueB * valueB;
+                    sums[s + 4] += valueA * valueB;
+                }
+            }
+        }
+
+        int rows = bottom - top;
+        for (int block = 0; block < blockCount; block++) {
+            double n = (double) rows * (Math.min(width, (block + 1) * BLOCK) - block * BLOCK);
+            for (int s = block * 15; s < block * 15 + 15; s += 5) {
+                double meanA = sums[s] / n;
+                double meanB = sums[s + 1] / n;
+                double varianceA = sums[s + 2] / n - meanA * meanA;
+                double varianceB = sums[s + 3] / n - meanB * meanB;
+                double covariance = sums[s + 4] / n - meanA * meanB;
+                band.ssim += (2 * meanA * meanB + C1) * (2 * covariance + C2)
+                        / ((meanA * meanA + meanB * meanB + C1) * (varianceA + varianceB + C2));
+            }
+            band.blocks++;
+        }
+        return band;
+    }
+}
@@ -0,0 +1,461 @@
+package src;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+
+import lib.ImagetoPixelConverter;
+import lib.PixelBuffer;
+import lib.PixeltoImageConverter;
+import lib.QualityMetrics;
+
+/**
+ * Compresses every image in a directory, running the decode, compress,
+ * decompress, encode and metrics stages of different images at the same time.
+ * I/O bound stages (reading and writing images) run on one thread pool and
+ * compute bound stages on another, and at most maxInFlight images are between
+ * decode and the end of the pipeline at once, so only that many decoded rasters
+ * are ever on the heap.
+ *
+ * Every stage, and every step of the compress stage, is timed into a latency
+ * histogram and emitted as a JFR event, and writeSummary writes the histograms
+ * and the tree statistics of every image as JSON and CSV after a run.
+ */
+public class BatchCompressor {
+
+    // the stages every image goes through, in order
+    public enum Stage {
+        DECODE, COMPRESS, DECOMPRESS, ENCODE, METRICS
+    }
+
+    private final Utility utility;
+    private final int ioThreads;
+    private final int computeThreads;
+    private final int maxInFlight;
+
+    // the latency and pixel count of every stage, and the latency of every step of
+    // the compress stage
+    private final LatencyHistogram[] stageLatency = new LatencyHistogram[Stage.values().length];
+    private final LongAdder[] stagePixels = new LongAdder[Stage.values().length];
+    private final LatencyHistogram[] stepLatency = new LatencyHistogram[CompressionStats.Step.values().length];
+    // the images of the last run that went through every stage, and its totals
+    private final ConcurrentLinkedQueue<Job> finished = new ConcurrentLinkedQueue<>();
+    private int imageCount;
+    private int failureCount;
+    private long wallNanos;
+
+    /**
+     * @param utility        the compressor used for every image
+     * @param ioThreads      threads for reading and writing image files
+     * @param computeThreads threads for compression, decompression and metrics
+     * @param maxInFlight    the most images that may be decoded but not finished
+     */
+    public BatchCompressor(Utility utility, int ioThreads, int computeThreads, int maxInFlight) {
+        if (ioThreads < 1 || computeThreads < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("Thread counts and maxInFlight must be positive");
+        }
+        this.utility = utility;
+        this.ioThreads = ioThreads;
+        this.computeThreads = computeThreads;
+        this.maxInFlight = maxInFlight;
+        for (int i = 0; i < stageLatency.length; i++) {
+            stageLatency[i] = new LatencyHistogram();
+            stagePixels[i] = new LongAdder();
+        }
+        for (int i = 0; i < stepLatency.length; i++) {
+            stepLatency[i] = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Compresses every file in inputDirectory into compressedDirectory, decompresses
+     * it into decompressedDirectory and prints the results for each image, followed
+     * by the throughput of every stage.
+     *
+     * @return the number of images that failed
+     * @throws InterruptedException if interrupted while waiting for a free slot
+     */
+    public int run(File inputDirectory, File compressedDirectory, File decompressedDirectory)
+            throws InterruptedException {
+        File[] files = inputDirectory.listFiles(File::isFile);
+        if (files == null) {
+            System.out.println("Could not list " + inputDirectory);
+            return 0;
+        }
+        Arrays.sort(files);
+        finished.clear();
+        compressedDirectory.mkdirs();
+        decompressedDirectory.mkdirs();
+
+        ExecutorService ioPool = Executors.newFixedThreadPool(ioThreads);
+        ExecutorService computePool = Executors.newFixedThreadPool(computeThreads);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        List<CompletableFuture<Void>> jobs = new ArrayList<>();
+        LongAdder failures = new LongAdder();
+        long startTime = System.nanoTime();
+
+        try {
+            for (File file : files) {
+                // blocks once maxInFlight images are in the pipeline
+                inFlight.acquire();
+                Job job = new Job(file, compressedDirectory, decompressedDirectory);
+                CompletableFuture<Void> future = CompletableFuture
+                        .runAsync(() -> timed(Stage.DECODE, job, () -> decode(job)), ioPool)
+                        .thenRunAsync(() -> timed(Stage.COMPRESS, job, () -> compress(job)), computePool)
+                        .thenRunAsync(() -> timed(Stage.DECOMPRESS, job, () -> decompress(job)), computePool)
+                        .thenRunAsync(() -> timed(Stage.ENCODE, job, () -> encode(job)), ioPool)
+                        .thenRunAsync(() -> timed(Stage.METRICS, job, () -> metrics(job)), computePool)
+                        .whenComplete((ignored, error) -> {
+                            // drop the rasters before the slot is handed to the next image
+                            job.pixels = null;
+                            job.decompressed = null;
+                            inFlight.release();
+                            if (error != null) {
+                                failures.increment();
+                                System.out.println("Failed to process " + job.name + ": " + error.getCause());
+                            } else {
+                                finish(job);
+                                job.print();
+                            }
+                        });
+                jobs.add(future);
+            }
+            CompletableFuture.allOf(jobs.toArray(new CompletableFuture<?>[0]))
+                    .exceptionally(error -> null)
+                    .join();
+        } finally {
+            ioPool.shutdown();
+            computePool.shutdown();
+        }
+
+        imageCount = files.length;
+        failureCount = failures.intValue();
+        wallNanos = System.nanoTime() - startTime;
+        printThroughput(imageCount, wallNanos);
+        return failureCount;
+    }
+
+    // returns the total time spent in the stage, in nanoseconds, across all threads
+    public long getStageNanos(Stage stage) {
+        return stageLatency[stage.ordinal()].getSum();
+    }
+
+    // returns the number of images that completed the stage
+    public long getStageImages(Stage stage) {
+        return stageLatency[stage.ordinal()].getCount();
+    }
+
+    // returns the latencies of the stage across every run
+    public LatencyHistogram getStageLatency(Stage stage) {
+        return stageLatency[stage.ordinal()];
+    }
+
+    // returns the latencies of a step of the compress stage across every run
+    public LatencyHistogram getStepLatency(CompressionStats.Step step) {
+        return stepLatency[step.ordinal()];
+    }
+
+    private void decode(Job job) {
+        ImagetoPixelConverter converter = new ImagetoPixelConverter(job.source.getPath());
+        if (converter.getPixelData() == null) {
+            throw new UncheckedIOException(new IOException("Could not read " + job.source));
+        }
+        job.pixels = converter.getPixelData();
+        job.width = job.pixels.getWidth();
+        job.height = job.pixels.getHeight();
+    }
+
+    private void compress(Job job) throws IOException {
+        utility.Compress(job.pixels, job.compressed.getPath(), utility.getConfig(), job.stats);
+    }
+
+    private void decompress(Job job) throws IOException {
+        job.decompressed = utility.DecompressImage(job.compressed.getPath());
+    }
+
+    private void encode(Job job) {
+        new PixeltoImageConverter(job.decompressed).saveImage(job.decompressedImage.getPath(), "png");
+    }
+
+    // measures the rasters that are still in memory, the PNG that was written holds
+    // the same pixels
+    private void metrics(Job job) {
+        job.quality = QualityMetrics.measure(job.pixels, PixelBuffer.wrap(job.decompressed));
+    }
+
+    // a stage body that may throw checked exceptions
+    private interface StageBody {
+        void run() throws IOException, ClassNotFoundException;
+    }
+
+    // runs one stage of a job and records how long it took and what the thread
+    // allocated. Work a stage hands to other threads, such as the parallel bands of
+    // QualityMetrics, is timed but its allocations are not counted
+    private void timed(Stage stage, Job job, StageBody body) {
+        if (stage == Stage.DECODE) {
+            job.event.begin();
+        }
+        PipelineStageEvent event = new PipelineStageEvent();
+        event.begin();
+        long startAllocated = CompressionStats.allocatedBytes();
+        long start = System.nanoTime();
+        try {
+            body.run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException(e);
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = CompressionStats.allocatedBytes() - startAllocated;
+        long pixels = (long) job.width * job.height;
+        job.stageNanos[stage.ordinal()] = elapsed;
+        job.allocated += allocated;
+        stageLatency[stage.ordinal()].record(elapsed);
+        stagePixels[stage.ordinal()].add(pixels);
+        event.end();
+        if (event.shouldCommit()) {
+            event.image = job.name;
+            event.stage = stage.name();
+            event.pixels = pixels;
+            event.allocated = allocated;
+            event.commit();
+        }
+    }
+
+    // records the steps of an image that went through every stage, and emits its
+    // event
+    private void finish(Job job) {
+        CompressionStats stats = job.stats;
+        for (CompressionStats.Step step : CompressionStats.Step.values()) {
+            // PRUNE only runs with a target size or PSNR
+            if (stats.getStepNanos(step) > 0) {
+                stepLatency[step.ordinal()].record(stats.getStepNanos(step));
+            }
+        }
+        ImageCompressedEvent event = job.event;
+        event.end();
+        if (event.shouldCommit()) {
+            event.image = job.name;
+            event.width = job.width;
+            event.height = job.height;
+            event.nodes = stats.getNodeCount();
+            event.leafs = stats.getLeafCount();
+            event.maxDepth = stats.getMaxDepth();
+            event.compressedBytes = stats.getCompressedBytes();
+            event.bytesPerLeaf = stats.getBytesPerLeaf();
+            event.allocated = job.allocated;
+            event.psnr = job.quality.psnr();
+            event.commit();
+        }
+        finished.add(job);
+    }
+
+    private void printThroughput(int imageCount, long wallNanos) {
+        System.out.println("Processed " + imageCount + " images in " + wallNanos / 1_000_000 + " milliseconds ("
+                + String.format("%.2f", imageCount * 1e9 / Math.max(wallNanos, 1)) + " images/s)");
+        System.out.println(String.format("%-12s %8s %12s %12s %14s", "Stage", "Images", "Busy ms", "Avg ms",
+                "MPixels/s"));
+        for (Stage stage : Stage.values()) {
+            long nanos = getStageNanos(stage);
+            long images = getStageImages(stage);
+            double megapixels = stagePixels[stage.ordinal()].sum() / 1e6;
+            System.out.println(String.format("%-12s %8d %12d %12.2f %14.2f", stage, images, nanos / 1_000_000,
+                    images == 0 ? 0.0 : nanos / 1e6 / images, nanos == 0 ? 0.0 : megapixels * 1e9 / nanos));
+        }
+        System.out.println("--------------------------------------------------");
+    }
+
+    /**
+     * Writes the results of the last run: a JSON summary with the latency
+     * histogram of every stage and compress step followed by the statistics of
+     * every image, and a CSV file with one row per image. Latencies are in
+     * milliseconds, and only images that went through every stage are listed.
+     *
+     * @param jsonFile the file to write the summary to
+     * @param csvFile  the file to write the rows to
+     * @throws IOException if either file cannot be written
+     */
+    public void writeSummary(File jsonFile, File csvFile) throws IOException {
+        List<Job> jobs = new ArrayList<>(finished);
+        jobs.sort(Comparator.comparing(job -> job.name));
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"images\": ").append(imageCount).append(",\n");
+        json.append("  \"failures\": ").append(failureCount).append(",\n");
+        json.append("  \"wallMillis\": ").append(number(wallNanos / 1e6)).append(",\n");
+        json.append("  \"stages\": {");
+        for (Stage stage : Stage.values()) {
+            json.append(stage.ordinal() == 0 ? "\n" : ",\n");
+            json.append("    ").append(quote(stage.name())).append(": ");
+            json.append(stageLatency[stage.ordinal()].toJson());
+        }
+        json.append("\n  },\n");
+        json.append("  \"compressSteps\": {");
+        for (CompressionStats.Step step : CompressionStats.Step.values()) {
+            json.append(step.ordinal() == 0 ? "\n" : ",\n");
+            json.append("    ").append(quote(step.name())).append(": ");
+            json.append(stepLatency[step.ordinal()].toJson());
+        }
+        json.append("\n  },\n");
+        json.append("  \"perImage\": [");
+        for (int i = 0; i < jobs.size(); i++) {
+            Job job = jobs.get(i);
+            CompressionStats stats = job.stats;
+            json.append(i == 0 ? "\n" : ",\n");
+            json.append("    {\"image\": ").append(quote(job.name));
+            json.append(", \"width\": ").append(job.width);
+            json.append(", \"height\": ").append(job.height);
+            json.append(", \"nodes\": ").append(stats.getNodeCount());
+            json.append(", \"leafs\": ").append(stats.getLeafCount());
+            json.append(", \"maxDepth\": ").append(stats.getMaxDepth());
+            json.append(", \"compressedBytes\": ").append(stats.getCompressedBytes());
+            json.append(", \"bytesPerLeaf\": ").append(number(stats.getBytesPerLeaf()));
+            json.append(", \"allocatedBytes\": ").append(job.allocated);
+            json.append(", \"psnr\": ").append(number(job.quality.psnr()));
+            json.append(", \"ssim\": ").append(number(job.quality.ssim()));
+            json.append(", \"stageMillis\": {");
+            for (Stage stage : Stage.values()) {
+                json.append(stage.ordinal() == 0 ? "" : ", ").append(quote(stage.name())).append(": ")
+                        .append(number(job.stageNanos[stage.ordinal()] / 1e6));
+            }
+            json.append("}, \"stepMillis\": {");
+            for (CompressionStats.Step step : CompressionStats.Step.values()) {
+                json.append(step.ordinal() == 0 ? "" : ", ").append(quote(step.name())).append(": ")
+                        .append(number(stats.getStepNanos(step) / 1e6));
+            }
+            json.append("}}");
+        }
+        json.append(jobs.isEmpty() ? "]\n" : "\n  ]\n").append("}\n");
+        try (PrintWriter out = new PrintWriter(jsonFile, "UTF-8")) {
+            out.print(json);
+        }
+
+        try (PrintWriter out = new PrintWriter(csvFile, "UTF-8")) {
+            StringBuilder header = new StringBuilder(
+                    "image,width,height,nodes,leafs,max_depth,compressed_bytes,bytes_per_leaf,allocated_bytes,psnr,ssim");
+            for (Stage stage : Stage.values()) {
+                header.append(',').append(stage.name().toLowerCase(Locale.ROOT)).append("_ms");
+            }
+            for (CompressionStats.Step step : CompressionStats.Step.values()) {
+                header.append(",compress_").append(step.name().toLowerCase(Locale.ROOT)).append("_ms");
+            }
+            out.println(header);
+            for (Job job : jobs) {
+                CompressionStats stats = job.stats;
+                StringBuilder row = new StringBuilder();
+                // names are quoted when they hold a comma or a quote
+                row.append(job.name.contains(",") || job.name.contains("\"")
+                        ? "\"" + job.name.replace("\"", "\"\"") + "\""
+                        : job.name);
+                row.append(',').append(job.width).append(',').append(job.height);
+                row.append(',').append(stats.getNodeCount()).append(',').append(stats.getLeafCount());
+                row.append(',').append(stats.getMaxDepth()).append(',').append(stats.getCompressedBytes());
+                row.append(',').append(String.format(Locale.ROOT, "%.3f", stats.getBytesPerLeaf()));
+                row.append(',').append(job.allocated);
+                row.append(',').append(String.format(Locale.ROOT, "%.3f", job.quality.psnr()));
+                row.append(',').append(String.format(Locale.ROOT, "%.5f", job.quality.ssim()));
+                for (Stage stage : Stage.values()) {
+                    row.append(',')
+                            .append(String.format(Locale.ROOT, "%.3f", job.stageNanos[stage.ordinal()] / 1e6));
+                }
+                for (CompressionStats.Step step : CompressionStats.Step.values()) {
+                    row.append(',').append(String.format(Locale.ROOT, "%.3f", stats.getStepNanos(step) / 1e6));
+                }
+                out.println(row);
+            }
+        }
+    }
+
+    // formats a JSON number, the infinite PSNR of a lossless image becomes null
+    private static String number(double value) {
+        if (Double.isNaN(value) || Double.isInfinite(value)) {
+            return "null";
+        }
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+
+    private static String quote(String value) {
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                quoted.append('\\').append(c);
+            } else if (c < 0x20) {
+                quoted.append(String.format("\\u%04x", (int) c));
+            } else {
+                quoted.append(c);
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    // Job carries one image through the pipeline
+    private static class Job {
+        final String name;
+        final File source;
+        final File compressed;
+        final File decompressedImage;
+        final long[] stageNanos = new long[Stage.values().length];
+        final CompressionStats stats = new CompressionStats();
+        // spans the image from the start of decode to the end of the pipeline
+        final ImageCompressedEvent event = new ImageCompressedEvent();
+        int width;
+        int height;
+        // the bytes allocated by the threads running the stages of the image
+        long allocated;
+        // the stages of a job run one after another, each on whichever thread is
+        // free, and the future chain makes every write visible to the next stage
+        PixelBuffer pixels;
+        BufferedImage decompressed;
+        QualityMetrics.Result quality;
+
+        Job(File source, File compressedDirectory, File decompressedDirectory) {
+            this.name = source.getName();
+            this.source = source;
+            int dot = name.lastIndexOf('.');
+            String baseName = dot > 0 ? name.substring(0, dot) : name;
+            this.compressed = new File(compressedDirectory, baseName + ".bin");
+            this.decompressedImage = new File(decompressedDirectory, name);
+        }
+
+        // prints the results of the image in one block so that concurrent jobs do
+        // not interleave their lines
+        void print() {
+            long originalFileSize = source.length();
+            long compressedFileSize = compressed.length();
+            StringBuilder out = new StringBuilder();
+            out.append("Results for ").append(name).append('\n');
+            out.append("--------------------------------------------------\n");
+            out.append("Compress Execution Time for ").append(name).append(" : ")
+                    .append(stageNanos[Stage.COMPRESS.ordinal()] / 1_000_000).append(" milliseconds\n");
+            out.append("Size of the original file for ").append(name).append(": ").append(originalFileSize)
+                    .append(" bytes\n");
+            out.append("Size of the compressed file for ").append(name).append(": ").append(compressedFileSize)
+                    .append(" bytes\n");
+            out.append("Bytes saved from compression of ").append(name).append(": ")
+                    .append(originalFileSize - compressedFileSize).append(" bytes\n");
+            out.append("Decompress Execution Time for ").append(name).append(" : ")
+                    .append(stageNanos[Stage.DECOMPRESS.ordinal()] / 1_000_000).append(" milliseconds\n");
+            out.append("Mean Absolute Error of :").append(name).append(" is ").append(quality.mae()).append('\n');
+            out.append("Mean Squared Error of :").append(name).append(" is ").append(quality.mse()).append('\n');
+            out.append("PSNR of :").append(name).append(" is ").append(quality.psnr()).append('\n');
+            out.append("SSIM of :").append(name).append(" is ").append(quality.ssim()).append('\n');
+            out.append("--------------------------------------------------");
+            System.out.println(out);
+        }
+    }
+}
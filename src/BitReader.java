@@ -0,0 +1,57 @@
+package src;
+
+import java.nio.ByteBuffer;
+
+// BitReader reads bits most significant first from a region of a buffer without
+// changing the buffer's position
+public class BitReader {
+    private final ByteBuffer buffer;
+    private final int start;
+    private final int end;
+    // the next bit to read, counted from start
+    private long position;
+
+    // reads the length bytes of buffer starting at offset
+    public BitReader(ByteBuffer buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.limit()) {
+            throw new IllegalArgumentException("Bit stream is outside the buffer");
+        }
+        this.buffer = buffer;
+        this.start = offset;
+        this.end = offset + length;
+    }
+
+    public int read() {
+        int index = start + (int) (position >>> 3);
+        if (index >= end) {
+            throw new IllegalStateException("Read past the end of the bit stream");
+        }
+        int bit = (buffer.get(index) >>> (7 - (int) (position & 7))) & 1;
+        position++;
+        return bit;
+    }
+
+    // reads count bits as an unsigned value, most significant first
+    public int read(int count) {
+        int value = 0;
+        for (int i = 0; i < count; i++) {
+            value = (value << 1) | read();
+        }
+        return value;
+    }
+
+    // writes count bits from bit from on into out, without moving the position
+    public void copyTo(BitWriter out, long from, long count) {
+        if (from < 0 || count < 0 || start + ((from + count + 7) >>> 3) > end) {
+            throw new IllegalStateException("Copy past the end of the bit stream");
+        }
+        for (long bit = from; bit < from + count; bit++) {
+            out.write(buffer.get(start + (int) (bit >>> 3)) >>> (7 - (int) (bit & 7)));
+        }
+    }
+
+    // the number of bits read so far
+    public long position() {
+        return position;
+    }
+}
@@ -0,0 +1,63 @@
+package src;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// BitWriter collects bits most significant first into a growing byte array
+public class BitWriter {
+    private byte[] bytes = new byte[64];
+    // number of bits written so far
+    private long length;
+
+    // writes the lowest bit of bit
+    public void write(int bit) {
+        int index = (int) (length >>> 3);
+        if (index == bytes.length) {
+            bytes = Arrays.copyOf(bytes, bytes.length * 2);
+        }
+        if ((bit & 1) != 0) {
+            bytes[index] |= (byte) (0x80 >>> (int) (length & 7));
+        }
+        length++;
+    }
+
+    // writes the lowest count bits of value, most significant first
+    public void write(int value, int count) {
+        for (int i = count - 1; i >= 0; i--) {
+            write(value >>> i);
+        }
+    }
+
+    // drops every bit from length on, so the next bit is written there
+    public void truncate(long length) {
+        if (length < 0 || length > this.length) {
+            throw new IllegalArgumentException("Cannot truncate " + this.length + " bits to " + length);
+        }
+        int index = (int) (length >>> 3);
+        if ((length & 7) != 0) {
+            bytes[index] &= (byte) (0xFF00 >>> (int) (length & 7));
+            index++;
+        }
+        Arrays.fill(bytes, index, byteLength(), (byte) 0);
+        this.length = length;
+    }
+
+    // the number of bits written
+    public long length() {
+        return length;
+    }
+
+    // the number of bytes the bits take up, the last byte is padded with zeros
+    public int byteLength() {
+        return (int) ((length + 7) >>> 3);
+    }
+
+    // copies the written bytes into buffer
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(bytes, 0, byteLength());
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, byteLength());
+    }
+}
@@ -0,0 +1,30 @@
+package src;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// CompressStepEvent is a JFR event spanning one step of Utility.Compress, see
+// CompressionStats.Step. It costs next to nothing unless a recording enables it
+@Name("quadtree.CompressStep")
+@Label("Compress Step")
+@Category({ "Quadtree", "Compress" })
+@Description("One step of compressing an image")
+class CompressStepEvent extends Event {
+    @Label("File")
+    @Description("The compressed file being written")
+    String file;
+
+    @Label("Step")
+    String step;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Allocated")
+    @DataAmount
+    long allocated;
+}
@@ -0,0 +1,269 @@
+package src;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Base64;
+
+/**
+ * A compressed image file: a fixed size header followed by the raw payload
+ * written by one of the encodings in Utility.
+ *
+ * <pre>
+ * offset size field
+ *      0    4 magic "QTIC"
+ *      4    1 format version
+ *      5    1 payload encoding
+ *      6    1 entropy coder of the payload, see EntropyCoder (since version 2)
+ *      7    1 flags, see the FLAG_ constants (since version 3)
+ *      8    4 image width
+ *     12    4 image height
+ *     16    4 maximum depth of the quad tree
+ *     20    4 similarity threshold in percent
+ *     24    4 number of leaf nodes in the payload
+ *     28    4 payload length in bytes
+ *     32      payload
+ * </pre>
+ *
+ * All values are big endian. Files are written with a gathering write on a
+ * FileChannel and the payload is read back in one buffer. It is read rather than
+ * memory mapped, as a mapping holds the file open until it is collected, which
+ * on Windows keeps a newer version from replacing it. Files written by earlier
+ * versions, a serialized Base64 String, can still be read.
+ */
+public class CompressedFile {
+    public static final int MAGIC = 0x51544943;
+    public static final int VERSION = 3;
+    public static final int HEADER_SIZE = 32;
+
+    // each leaf is 8 bytes: x, y, width and height as 10-bit integers and a 24-bit
+    // color
+    public static final int ENCODING_EXPLICIT = 0;
+    // split flags in tree order followed by the leaf colors, see TreeCodec
+    public static final int ENCODING_TREE = 1;
+    // a tile index followed by a tree encoded payload for each tile, see TileIndex
+    public static final int ENCODING_TILED = 2;
+    // every node level by level with its average color, see ProgressiveCodec
+    public static final int ENCODING_PROGRESSIVE = 3;
+
+    // the leaf colors of the tree encoding are indices into a palette
+    public static final int FLAG_PALETTE = 1;
+    // the tree was built with binary splits, see TreeCodec
+    public static final int FLAG_BINARY = 2;
+    private static final int KNOWN_FLAGS = FLAG_PALETTE | FLAG_BINARY;
+
+    // the first two bytes of a Java serialization stream, which legacy files are
+    private static final int LEGACY_MAGIC = 0xACED;
+
+    private final int version;
+    private final int encoding;
+    private final int entropyCoder;
+    private final int flags;
+    private final int width;
+    private final int height;
+    private final int maxDepth;
+    private final int threshold;
+    private final int nodeCount;
+    private final ByteBuffer payload;
+
+    public CompressedFile(int encoding, int entropyCoder, int width, int height, int maxDepth, int threshold,
+            int nodeCount, ByteBuffer payload) {
+        this(encoding, entropyCoder, 0, width, height, maxDepth, threshold, nodeCount, payload);
+    }
+
+    public CompressedFile(int encoding, int entropyCoder, int flags, int width, int height, int maxDepth,
+            int threshold, int nodeCount, ByteBuffer payload) {
+        this(VERSION, encoding, entropyCoder, flags, width, height, maxDepth, threshold, nodeCount, payload);
+    }
+
+    private CompressedFile(int version, int encoding, int entropyCoder, int flags, int width, int height,
+            int maxDepth, int threshold, int nodeCount, ByteBuffer payload) {
+        this.version = version;
+        this.encoding = encoding;
+        this.entropyCoder = entropyCoder;
+        this.flags = flags;
+        this.width = width;
+        this.height = height;
+        this.maxDepth = maxDepth;
+        this.threshold = threshold;
+        this.nodeCount = nodeCount;
+        this.payload = payload;
+    }
+
+    // the format version the file was written with, 0 for legacy files
+    public int getVersion() {
+        return version;
+    }
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    public int getEntropyCoder() {
+        return entropyCoder;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    // returns true if the given FLAG_ constant is set
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getThreshold() {
+        return threshold;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    // returns a read only view of the payload, positioned at its start
+    public ByteBuffer getPayload() {
+        return payload.asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the header and payload to a file, replacing it if it exists.
+     *
+     * @param fileName the name of the file to write
+     * @throws IOException if the file cannot be written
+     */
+    public void write(String fileName) throws IOException {
+        ByteBuffer header = header(encoding, entropyCoder, flags, width, height, maxDepth, threshold, nodeCount,
+                payload.remaining());
+        ByteBuffer[] buffers = { header, payload.duplicate() };
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffers[0].hasRemaining() || buffers[1].hasRemaining()) {
+                channel.write(buffers);
+            }
+        }
+    }
+
+    // returns the header of a file with these fields, for writers that stream the
+    // payload to the file themselves
+    static ByteBuffer header(int encoding, int entropyCoder, int flags, int width, int height, int maxDepth,
+            int threshold, int nodeCount, int payloadLength) {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.put((byte) VERSION);
+        header.put((byte) encoding);
+        header.put((byte) entropyCoder);
+        header.put((byte) flags);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(maxDepth);
+        header.putInt(threshold);
+        header.putInt(nodeCount);
+        header.putInt(payloadLength);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Reads a compressed file. The payload of a current file is read into one
+     * buffer, a legacy file is deserialized and decoded from Base64.
+     *
+     * @param fileName the name of the file to read
+     * @return the header and payload of the file
+     * @throws IOException if the file cannot be read or is not a compressed image
+     */
+    public static CompressedFile read(String fileName) throws IOException {
+        Path path = Paths.get(fileName);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    break;
+                }
+            }
+            header.flip();
+            if (header.remaining() >= 2 && (header.getShort(0) & 0xFFFF) == LEGACY_MAGIC) {
+                return readLegacy(fileName);
+            }
+            if (header.remaining() < HEADER_SIZE || header.getInt() != MAGIC) {
+                throw new IOException(fileName + " is not a compressed image file");
+            }
+            int version = header.get() & 0xFF;
+            if (version > VERSION) {
+                throw new IOException(fileName + " has unsupported format version " + version);
+            }
+            int encoding = header.get() & 0xFF;
+            // version 1 files have 0 here, which is EntropyCoder.NONE
+            int entropyCoder = header.get() & 0xFF;
+            // earlier versions have 0 here, no flags
+            int flags = header.get() & 0xFF;
+            if ((flags & ~KNOWN_FLAGS) != 0) {
+                throw new IOException(fileName + " has unsupported flags " + flags);
+            }
+            int width = header.getInt();
+            int height = header.getInt();
+            int maxDepth = header.getInt();
+            int threshold = header.getInt();
+            int nodeCount = header.getInt();
+            int payloadLength = header.getInt();
+            if (width < 0 || height < 0 || payloadLength < 0
+                    || HEADER_SIZE + (long) payloadLength > channel.size()) {
+                throw new IOException(fileName + " is truncated or has a corrupt header");
+            }
+            ByteBuffer payload = ByteBuffer.allocate(payloadLength);
+            while (payload.hasRemaining()) {
+                if (channel.read(payload, HEADER_SIZE + payload.position()) < 0) {
+                    throw new IOException(fileName + " is truncated or has a corrupt header");
+                }
+            }
+            payload.flip();
+            return new CompressedFile(version, encoding, entropyCoder, flags, width, height, maxDepth, threshold,
+                    nodeCount, payload);
+        }
+    }
+
+    // reads a file written before the binary container existed, a serialized Base64
+    // String of explicit leafs. The size of the image is found from the leafs
+    private static CompressedFile readLegacy(String fileName) throws IOException {
+        Object object;
+        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(fileName))) {
+            object = ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Invalid object type in the input file", e);
+        }
+        if (!(object instanceof String)) {
+            throw new IOException("Invalid object type in the input file");
+        }
+        ByteBuffer payload = ByteBuffer.wrap(Base64.getDecoder().decode((String) object));
+        ArrayList<simpleNode> leafs = Utility.decode(payload.duplicate());
+
+        // calculate height and width of image from leafs
+        int width = 0;
+        int height = 0;
+        for (simpleNode leaf : leafs) {
+            if (leaf.x + leaf.width > width) {
+                width = leaf.x + leaf.width;
+            }
+            if (leaf.y + leaf.height > height) {
+                height = leaf.y + leaf.height;
+            }
+        }
+        return new CompressedFile(0, ENCODING_EXPLICIT, EntropyCoder.NONE, 0, width, height, 0, 0, leafs.size(),
+                payload);
+    }
+}
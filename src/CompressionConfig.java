@@ -0,0 +1,253 @@
+package src;
+
+/**
+ * The settings for compressing one image. A config is immutable, so the same
+ * instance can be shared by any number of threads, and each setting can be
+ * changed with a with method that returns a new config.
+ */
+public final class CompressionConfig {
+    // a depth of 200 with 0% similarity is effectively lossless
+    public static final CompressionConfig DEFAULT = new CompressionConfig(200, 0, 0,
+            CompressedFile.ENCODING_TREE);
+
+    // the maximum depth of the quad tree, the tree will not go deeper than this
+    private final int maxDepth;
+    // how far in percent a pixel may be from the average of its region
+    private final int similarityPercent;
+    // the largest mean squared error per pixel, summed over the channels, that a
+    // merged region may have against the original pixels. 0 merges by comparing
+    // the children to the average of their parent instead
+    private final double mergeError;
+    // how a region is tested for being uniform, one of the SplitCriterion ids
+    private final int splitCriterion;
+    // split regions in two wherever the error is least instead of into four
+    // quadrants, see QuadTree. Only the tree encoding can store such trees
+    private final boolean binarySplits;
+    // regions of at least this many pixels are built in parallel, 0 builds the
+    // quad tree on a single thread
+    private final int parallelCutoff;
+    // how the leafs are written, CompressedFile.ENCODING_EXPLICIT, ENCODING_TREE or
+    // ENCODING_PROGRESSIVE
+    private final int encoding;
+    // the entropy coder for the tree and progressive encodings, one of the
+    // EntropyCoder ids
+    private final int entropyCoder;
+    // the most colors the leafs may be reduced to, 0 keeps every leaf color
+    private final int paletteSize;
+    // palette colors stop being split once every leaf color is roughly within this
+    // distance per channel, so fewer colors are used when that is enough
+    private final int paletteTolerance;
+    // the largest the compressed file may be in bytes, 0 for no limit. The tree is
+    // built once with the other settings and then pruned until it fits
+    private final int targetSize;
+    // the lowest PSNR the compressed image may have, 0 for no limit. The tree is
+    // pruned as far as it can be without going below it
+    private final double targetPsnr;
+
+    public CompressionConfig(int maxDepth, int similarityPercent) {
+        this(maxDepth, similarityPercent, 0);
+    }
+
+    public CompressionConfig(int maxDepth, int similarityPercent, int parallelCutoff) {
+        this(maxDepth, similarityPercent, parallelCutoff, CompressedFile.ENCODING_TREE);
+    }
+
+    public CompressionConfig(int maxDepth, int similarityPercent, int parallelCutoff, int encoding) {
+        this(maxDepth, similarityPercent, parallelCutoff, encoding,
+                encoding == CompressedFile.ENCODING_EXPLICIT ? EntropyCoder.NONE : EntropyCoder.HUFFMAN, 0, 0, 0, 0, 0,
+                SplitCriterion.RED_PERCENT, false);
+    }
+
+    private CompressionConfig(int maxDepth, int similarityPercent, int parallelCutoff, int encoding,
+            int entropyCoder, int paletteSize, int paletteTolerance, int targetSize, double targetPsnr,
+            double mergeError, int splitCriterion, boolean binarySplits) {
+        if (maxDepth < 0) {
+            throw new IllegalArgumentException("maxDepth must not be negative: " + maxDepth);
+        }
+        if (similarityPercent < 0) {
+            throw new IllegalArgumentException("similarityPercent must not be negative: " + similarityPercent);
+        }
+        if (!(mergeError >= 0)) {
+            throw new IllegalArgumentException("mergeError must not be negative: " + mergeError);
+        }
+        // throws for an unknown id
+        SplitCriterion.forId(splitCriterion);
+        if (parallelCutoff < 0) {
+            throw new IllegalArgumentException("parallelCutoff must not be negative: " + parallelCutoff);
+        }
+        if (encoding != CompressedFile.ENCODING_EXPLICIT && encoding != CompressedFile.ENCODING_TREE
+                && encoding != CompressedFile.ENCODING_PROGRESSIVE) {
+            throw new IllegalArgumentException("Unknown encoding: " + encoding);
+        }
+        // throws for an unknown id
+        EntropyCoder.forId(entropyCoder);
+        if (entropyCoder != EntropyCoder.NONE && encoding == CompressedFile.ENCODING_EXPLICIT) {
+            throw new IllegalArgumentException("The explicit encoding does not support entropy coding");
+        }
+        if (paletteSize < 0 || paletteSize > 256) {
+            throw new IllegalArgumentException("paletteSize must be between 0 and 256: " + paletteSize);
+        }
+        if (paletteTolerance < 0) {
+            throw new IllegalArgumentException("paletteTolerance must not be negative: " + paletteTolerance);
+        }
+        if (paletteSize != 0 && encoding != CompressedFile.ENCODING_TREE) {
+            throw new IllegalArgumentException("A palette needs the tree encoding");
+        }
+        if (binarySplits && encoding != CompressedFile.ENCODING_TREE) {
+            throw new IllegalArgumentException("Binary splits need the tree encoding");
+        }
+        if (targetSize < 0) {
+            throw new IllegalArgumentException("targetSize must not be negative: " + targetSize);
+        }
+        if (!(targetPsnr >= 0)) {
+            throw new IllegalArgumentException("targetPsnr must not be negative: " + targetPsnr);
+        }
+        this.maxDepth = maxDepth;
+        this.similarityPercent = similarityPercent;
+        this.parallelCutoff = parallelCutoff;
+        this.encoding = encoding;
+        this.entropyCoder = entropyCoder;
+        this.paletteSize = paletteSize;
+        this.paletteTolerance = paletteTolerance;
+        this.targetSize = targetSize;
+        this.targetPsnr = targetPsnr;
+        this.mergeError = mergeError;
+        this.splitCriterion = splitCriterion;
+        this.binarySplits = binarySplits;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getSimilarityPercent() {
+        return similarityPercent;
+    }
+
+    public double getMergeError() {
+        return mergeError;
+    }
+
+    public int getSplitCriterion() {
+        return splitCriterion;
+    }
+
+    public boolean isBinarySplits() {
+        return binarySplits;
+    }
+
+    public int getParallelCutoff() {
+        return parallelCutoff;
+    }
+
+    public int getEncoding() {
+        return encoding;
+    }
+
+    public int getEntropyCoder() {
+        return entropyCoder;
+    }
+
+    public int getPaletteSize() {
+        return paletteSize;
+    }
+
+    public int getPaletteTolerance() {
+        return paletteTolerance;
+    }
+
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    public double getTargetPsnr() {
+        return targetPsnr;
+    }
+
+    public CompressionConfig withMaxDepth(int maxDepth) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding, entropyCoder,
+                paletteSize, paletteTolerance, targetSize, targetPsnr, mergeError, splitCriterion, binarySplits);
+    }
+
+    public CompressionConfig withSimilarityPercent(int similarityPercent) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding, entropyCoder,
+                paletteSize, paletteTolerance, targetSize, targetPsnr, mergeError, splitCriterion, binarySplits);
+    }
+
+    // merges a node whose children are all leafs when the mean squared error of its
+    // pixels against its average is at most mergeError, 0 goes back to comparing
+    // the children to the average
+    public CompressionConfig withMergeError(double mergeError) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding, entropyCoder,
+                paletteSize, paletteTolerance, targetSize, targetPsnr, mergeError, splitCriterion, binarySplits);
+    }
+
+    // tests regions with a different SplitCriterion, similarityPercent is the
+    // tolerance of whichever is used
+    public CompressionConfig withSplitCriterion(int splitCriterion) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding, entropyCoder,
+                paletteSize, paletteTolerance, targetSize, targetPsnr, mergeError, splitCriterion, binarySplits);
+    }
+
+    // builds trees with binary splits, cut wherever the error is least, instead of
+    // quad splits
+    public CompressionConfig withBinarySplits(boolean binarySplits) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding, entropyCoder,
+                paletteSize, paletteTolerance, targetSize, targetPsnr, mergeError, splitCriterion, binarySplits);
+    }
+
+    public CompressionConfig withParallelCutoff(int parallelCutoff) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding, entropyCoder,
+                paletteSize, paletteTolerance, targetSize, targetPsnr, mergeError, splitCriterion, binarySplits);
+    }
+
+    // switching to the explicit encoding also turns entropy coding off, and
+    // switching away from the tree encoding turns the palette and binary splits
+    // off, which they do not support
+    public CompressionConfig withEncoding(int encoding) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding,
+                encoding == CompressedFile.ENCODING_EXPLICIT ? EntropyCoder.NONE : entropyCoder,
+                encoding == CompressedFile.ENCODING_TREE ? paletteSize : 0, paletteTolerance, targetSize,
+                targetPsnr, mergeError, splitCriterion,
+                encoding == CompressedFile.ENCODING_TREE && binarySplits);
+    }
+
+    public CompressionConfig withEntropyCoder(int entropyCoder) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding, entropyCoder,
+                paletteSize, paletteTolerance, targetSize, targetPsnr, mergeError, splitCriterion, binarySplits);
+    }
+
+    // reduces the leaf colors to a palette of at most paletteSize colors, 0 turns
+    // the palette off. paletteTolerance is the per channel distance at which a
+    // palette color is good enough and is not split any further
+    public CompressionConfig withPalette(int paletteSize, int paletteTolerance) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding, entropyCoder,
+                paletteSize, paletteTolerance, targetSize, targetPsnr, mergeError, splitCriterion, binarySplits);
+    }
+
+    // prunes the tree until the compressed file is at most targetSize bytes, 0
+    // turns the limit off. If a target PSNR is set as well the size wins. With
+    // either target the tree is built in full and similarityPercent is not used,
+    // see RateControl
+    public CompressionConfig withTargetSize(int targetSize) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding, entropyCoder,
+                paletteSize, paletteTolerance, targetSize, targetPsnr, mergeError, splitCriterion, binarySplits);
+    }
+
+    // prunes the tree as far as it can be while the PSNR of the image stays at
+    // least targetPsnr, 0 turns the limit off. A palette changes the colors after
+    // pruning, so with a palette the PSNR can end up lower
+    public CompressionConfig withTargetPsnr(double targetPsnr) {
+        return new CompressionConfig(maxDepth, similarityPercent, parallelCutoff, encoding, entropyCoder,
+                paletteSize, paletteTolerance, targetSize, targetPsnr, mergeError, splitCriterion, binarySplits);
+    }
+
+    @Override
+    public String toString() {
+        return "CompressionConfig[maxDepth=" + maxDepth + ", similarityPercent=" + similarityPercent
+                + ", splitCriterion=" + splitCriterion + ", binarySplits=" + binarySplits + ", mergeError="
+                + mergeError + ", parallelCutoff=" + parallelCutoff + ", encoding=" + encoding + ", entropyCoder="
+                + entropyCoder + ", paletteSize=" + paletteSize + ", paletteTolerance=" + paletteTolerance
+                + ", targetSize=" + targetSize + ", targetPsnr=" + targetPsnr + "]";
+    }
+}
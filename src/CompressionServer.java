@@ -0,0 +1,275 @@
+package src;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import lib.ImagetoPixelConverter;
+import lib.PixelBuffer;
+
+/**
+ * Serves compression and decompression over HTTP on the JDK HttpServer. The
+ * compressed files live in one directory, and each is known by a name of
+ * letters, digits, dots, dashes and underscores:
+ *
+ * <pre>
+ * POST /images/{name}   compresses the image in the body (any format ImageIO
+ *                       reads) into {name}.bin, and answers with its size
+ * GET  /images/{name}   decodes {name}.bin as packed RGB, 3 bytes per pixel
+ *                       row by row, with its size in the X-Image-Width and
+ *                       X-Image-Height headers. ?format=png answers with a PNG
+ * GET  /stats           the cache and latency counters as JSON
+ * </pre>
+ *
+ * Decoded rasters are kept in a RasterCache, so a file that is read again before
+ * it changes is served without decoding it. A file is written to a temporary
+ * name and moved into place, so a request never decodes half of one, and its
+ * raster is then dropped from the cache.
+ */
+public class CompressionServer {
+    private static final Pattern NAME = Pattern.compile("[A-Za-z0-9_-][A-Za-z0-9._-]*");
+    private static final String IMAGES = "/images/";
+
+    private final Utility utility;
+    private final File directory;
+    private final RasterCache cache;
+    private final LatencyHistogram compressLatency = new LatencyHistogram();
+    private final LatencyHistogram decodeLatency = new LatencyHistogram();
+    private final LongAdder errors = new LongAdder();
+    private HttpServer server;
+    private ExecutorService handlers;
+
+    /**
+     * @param utility    the compressor, with the settings every upload is
+     *                   compressed with
+     * @param directory  where the compressed files are kept
+     * @param cacheBytes the most bytes of decoded raster to keep
+     */
+    public CompressionServer(Utility utility, File directory, long cacheBytes) {
+        this.utility = utility;
+        this.directory = directory;
+        this.cache = new RasterCache(cacheBytes);
+    }
+
+    /**
+     * Starts serving. Requests are handled on a fixed pool of threads, as decoding
+     * and compressing are bound by the CPU rather than by the connection.
+     *
+     * @param port    the port to listen on, 0 for any free port
+     * @param threads the number of requests handled at once
+     * @throws IOException if the port cannot be bound or the directory created
+     */
+    public synchronized void start(int port, int threads) throws IOException {
+        if (server != null) {
+            throw new IllegalStateException("The server is already running");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("threads must be positive");
+        }
+        Files.createDirectories(directory.toPath());
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext(IMAGES, this::handleImage);
+        server.createContext("/stats", this::handleStats);
+        handlers = Executors.newFixedThreadPool(threads);
+        server.setExecutor(handlers);
+        server.start();
+    }
+
+    // stops accepting requests and waits up to delay seconds for running ones
+    public synchronized void stop(int delay) {
+        if (server == null) {
+            return;
+        }
+        server.stop(delay);
+        handlers.shutdown();
+        try {
+            handlers.awaitTermination(delay, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        server = null;
+        handlers = null;
+    }
+
+    // the port the server listens on
+    public synchronized int getPort() {
+        if (server == null) {
+            throw new IllegalStateException("The server is not running");
+        }
+        return server.getAddress().getPort();
+    }
+
+    public RasterCache getCache() {
+        return cache;
+    }
+
+    private void handleImage(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String name = exchange.getRequestURI().getPath().substring(IMAGES.length());
+            if (!NAME.matcher(name).matches()) {
+                send(exchange, 400, "Invalid image name: " + name);
+                return;
+            }
+            File file = new File(directory, name + ".bin");
+            long start = System.nanoTime();
+            switch (exchange.getRequestMethod()) {
+                case "POST":
+                    if (compress(exchange, file)) {
+                        compressLatency.record(System.nanoTime() - start);
+                    }
+                    break;
+                case "GET":
+                    if (decode(exchange, file)) {
+                        decodeLatency.record(System.nanoTime() - start);
+                    }
+                    break;
+                default:
+                    exchange.getResponseHeaders().set("Allow", "GET, POST");
+                    send(exchange, 405, "Only GET and POST are supported");
+            }
+        } catch (IOException | RuntimeException e) {
+            errors.increment();
+            throw e;
+        }
+    }
+
+    // compresses the uploaded image into file and returns true, or answers with
+    // the error and returns false
+    private boolean compress(HttpExchange exchange, File file) throws IOException {
+        BufferedImage image;
+        try (InputStream body = exchange.getRequestBody()) {
+            image = ImageIO.read(body);
+        } catch (IOException e) {
+            errors.increment();
+            send(exchange, 400, "Could not read the image: " + e.getMessage());
+            return false;
+        }
+        if (image == null) {
+            errors.increment();
+            send(exchange, 400, "The body is not an image ImageIO can read");
+            return false;
+        }
+        PixelBuffer pixels = ImagetoPixelConverter.toPixelBuffer(image);
+        try {
+            Path temporary = Files.createTempFile(directory.toPath(), file.getName(), ".tmp");
+            try {
+                utility.Compress(pixels, temporary.toString());
+                Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                cache.invalidate(file);
+            } finally {
+                Files.deleteIfExists(temporary);
+            }
+        } catch (IOException e) {
+            errors.increment();
+            send(exchange, 500, "Could not compress the image: " + e.getMessage());
+            return false;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        send(exchange, 201, String.format(Locale.ROOT, "{\"width\": %d, \"height\": %d, \"bytes\": %d}",
+                pixels.getWidth(), pixels.getHeight(), file.length()));
+        return true;
+    }
+
+    // answers with the decoded file and returns true, or answers with the error
+    // and returns false
+    private boolean decode(HttpExchange exchange, File file) throws IOException {
+        if (!file.isFile()) {
+            send(exchange, 404, "No such image");
+            return false;
+        }
+        BufferedImage image;
+        try {
+            image = cache.get(file, loaded -> utility.DecompressImage(loaded.getPath()));
+        } catch (IOException e) {
+            errors.increment();
+            send(exchange, 500, "Could not decode the image: " + e.getMessage());
+            return false;
+        }
+        if (wantsPng(exchange.getRequestURI().getQuery())) {
+            exchange.getResponseHeaders().set("Content-Type", "image/png");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                ImageIO.write(image, "png", out);
+            }
+            return true;
+        }
+        PixelBuffer pixels = PixelBuffer.wrap(image);
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+        exchange.getResponseHeaders().set("X-Image-Width", Integer.toString(width));
+        exchange.getResponseHeaders().set("X-Image-Height", Integer.toString(height));
+        exchange.sendResponseHeaders(200, (long) width * height * 3);
+        try (OutputStream out = exchange.getResponseBody()) {
+            int[] data = pixels.getData();
+            byte[] row = new byte[width * 3];
+            for (int y = 0; y < height; y++) {
+                int index = pixels.getIndex(0, y);
+                for (int x = 0; x < width; x++) {
+                    int rgb = data[index + x];
+                    row[x * 3] = (byte) (rgb >> 16);
+                    row[x * 3 + 1] = (byte) (rgb >> 8);
+                    row[x * 3 + 2] = (byte) rgb;
+                }
+                out.write(row);
+            }
+        }
+        return true;
+    }
+
+    private static boolean wantsPng(String query) {
+        if (query == null) {
+            return false;
+        }
+        for (String parameter : query.split("&")) {
+            if (parameter.equals("format=png")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void handleStats(HttpExchange exchange) throws IOException {
+        try (exchange) {
+            String stats = "{\n"
+                    + "  \"cache\": {\"hits\": " + cache.getHits() + ", \"misses\": " + cache.getMisses()
+                    + ", \"evictions\": " + cache.getEvictions() + ", \"entries\": " + cache.getEntryCount()
+                    + ", \"bytes\": " + cache.getSize() + ", \"capacity\": " + cache.getCapacity() + "},\n"
+                    + "  \"compress\": " + compressLatency.toJson() + ",\n"
+                    + "  \"decode\": " + decodeLatency.toJson() + ",\n"
+                    + "  \"errors\": " + errors.sum() + "\n"
+                    + "}\n";
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            send(exchange, 200, stats);
+        }
+    }
+
+    private static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        if (!exchange.getResponseHeaders().containsKey("Content-Type")) {
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        }
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package src;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * Records where the time of one call to Utility.Compress goes, step by step, and
+ * the shape of the tree it wrote. Each step is also a CompressStepEvent, so a JFR
+ * recording shows the same steps on the timeline. A CompressionStats belongs to
+ * the thread running the call, and is read once the call returns.
+ */
+public class CompressionStats {
+
+    // the steps of Utility.Compress, in order. BUILD includes the summed area
+    // table, PRUNE only runs with a target size or PSNR, and ENCODE encodes the
+    // tree into the payload of the file
+    public enum Step {
+        BUILD, MERGE, PRUNE, ENCODE, WRITE
+    }
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final long[] stepNanos = new long[Step.values().length];
+    private final long[] stepAllocated = new long[Step.values().length];
+    private int nodeCount;
+    private int leafCount;
+    private int maxDepth;
+    private long compressedBytes;
+    private boolean targetMet = true;
+
+    private String file;
+    private long pixels;
+    // the step that is running, when it started and what the thread had allocated
+    private Step step;
+    private long start;
+    private long startAllocated;
+    private CompressStepEvent event;
+
+    // returns the bytes the current thread has allocated so far, or 0 if the JVM
+    // does not count them
+    static long allocatedBytes() {
+        if (THREADS instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) THREADS;
+            if (threads.isThreadAllocatedMemorySupported() && threads.isThreadAllocatedMemoryEnabled()) {
+                return threads.getCurrentThreadAllocatedBytes();
+            }
+        }
+        return 0;
+    }
+
+    // names the file and the number of pixels the steps are working on
+    void setImage(String file, long pixels) {
+        this.file = file;
+        this.pixels = pixels;
+    }
+
+    void begin(Step step) {
+        this.step = step;
+        event = new CompressStepEvent();
+        event.begin();
+        startAllocated = allocatedBytes();
+        start = System.nanoTime();
+    }
+
+    // ends the step that is running, adding to its time if it ran before
+    void end() {
+        long elapsed = System.nanoTime() - start;
+        long allocated = allocatedBytes() - startAllocated;
+        stepNanos[step.ordinal()] += elapsed;
+        stepAllocated[step.ordinal()] += allocated;
+        event.end();
+        if (event.shouldCommit()) {
+            event.file = file;
+            event.step = step.name();
+            event.pixels = pixels;
+            event.allocated = allocated;
+            event.commit();
+        }
+        event = null;
+    }
+
+    // counts the nodes and leafs of the tree that cover any pixels, and the depth
+    // of its deepest leaf
+    void countTree(QuadTree quadtree) {
+        nodeCount = 0;
+        leafCount = 0;
+        maxDepth = 0;
+        countTree(quadtree.getNodes(), quadtree.getRoot(), 0);
+    }
+
+    private void countTree(NodeArena nodes, int node, int depth) {
+        if (nodes.isEmpty(node)) {
+            return;
+        }
+        nodeCount++;
+        if (nodes.isLeaf(node)) {
+            leafCount++;
+            maxDepth = Math.max(maxDepth, depth);
+            return;
+        }
+        int first = nodes.getFirstChild(node);
+        for (int child = first; child < first + nodes.getChildCount(node); child++) {
+            countTree(nodes, child, depth + 1);
+        }
+    }
+
+    void setCompressedBytes(long compressedBytes) {
+        this.compressedBytes = compressedBytes;
+    }
+
+    // the time spent in the step, in nanoseconds
+    public long getStepNanos(Step step) {
+        return stepNanos[step.ordinal()];
+    }
+
+    // the bytes allocated during the step, 0 if the JVM does not count them
+    public long getStepAllocated(Step step) {
+        return stepAllocated[step.ordinal()];
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    // the depth of the deepest leaf, counting each cut of a binary tree as a level
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    // the size of the compressed file, header included
+    public long getCompressedBytes() {
+        return compressedBytes;
+    }
+
+    void setTargetMet(boolean targetMet) {
+        this.targetMet = targetMet;
+    }
+
+    // false if the file misses the target size or PSNR it was compressed with, see
+    // RateControl.prune
+    public boolean isTargetMet() {
+        return targetMet;
+    }
+
+    public double getBytesPerLeaf() {
+        return leafCount == 0 ? 0 : (double) compressedBytes / leafCount;
+    }
+}
@@ -0,0 +1,220 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import lib.PixelBuffer;
+
+/**
+ * Encodes a frame of a sequence as the changes from the frame before it. The
+ * frame is walked with the same splits as QuadTree.divide, starting from the
+ * whole image. Each region gets a changed flag, 0 if the decoder can keep what
+ * it painted there for the previous frame, and nothing more is written for it.
+ * A changed region larger than BLOCK_AREA pixels gets a second flag, 1 if it is
+ * walked further, so only the parts that changed are coded. A changed region
+ * that is not walked further is coded as a tree of its own, built from the
+ * frame, exactly as TreeCodec codes a tree at that depth.
+ *
+ * Unchanged regions are never built into a tree, so the time and size of a
+ * frame follow how much of it changed rather than its size. Only the comparison
+ * with the previous frame reads every pixel.
+ *
+ * The flags and the coded trees share one flag stream, and the leaf colors
+ * follow in the layout TreeCodec uses without a palette.
+ */
+public class DeltaCodec {
+    // changed regions of at most this many pixels are coded rather than walked
+    static final int BLOCK_AREA = 16 * 16;
+
+    /**
+     * Encodes the changes from reference to frame, and copies the pixels of
+     * every region it codes from frame into reference. A region whose every pixel
+     * is within tolerance of reference in every channel is unchanged. As the
+     * reference keeps the pixels a region was last coded from, slow changes add
+     * up until they pass the tolerance, instead of being lost.
+     *
+     * @param frame     the frame to encode
+     * @param reference the pixels the decoder's raster was last coded from, the
+     *                  same size as frame
+     * @param config    the settings each changed region is built with, which
+     *                  must use quad splits and no palette
+     * @param tolerance the largest difference in a channel that is not a change
+     * @return the encoded changes, ready to be read
+     */
+    public static ByteBuffer encode(PixelBuffer frame, PixelBuffer reference, CompressionConfig config,
+            int tolerance) {
+        if (frame.getWidth() != reference.getWidth() || frame.getHeight() != reference.getHeight()) {
+            throw new IllegalArgumentException("The frame and reference have different sizes");
+        }
+        Encoder encoder = new Encoder(frame, reference, config, tolerance);
+        encoder.walk(0, 0, frame.getWidth(), frame.getHeight(), 0);
+        TreeCodec.TreeWriter writer = encoder.writer;
+        return TreeCodec.encodeLeafs(writer.flags, writer.colors, writer.colorCount,
+                EntropyCoder.forId(config.getEntropyCoder()));
+    }
+
+    /**
+     * Decodes the changes onto the raster of the previous frame, leaving the
+     * unchanged regions as they are.
+     *
+     * @param data     the encoded changes, read from their position
+     * @param raster   the previous frame, which becomes this frame
+     * @param maxDepth the maximum depth the frames were built with
+     * @param coder    the entropy coder the changes were encoded with, or null
+     * @throws IOException if the encoded changes are corrupt
+     */
+    public static void decode(ByteBuffer data, PixelBuffer raster, int maxDepth, EntropyCoder coder)
+            throws IOException {
+        Decoder decoder = new Decoder(raster, TreeCodec.reader(data, raster.getWidth(), raster.getHeight(),
+                maxDepth, coder, false, false, raster::fillRect), maxDepth);
+        try {
+            decoder.walk(0, 0, raster.getWidth(), raster.getHeight(), 0);
+        } catch (IllegalStateException | ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Encoded changes do not match the frame size", e);
+        }
+    }
+
+    // true if a changed region is walked further instead of being coded
+    private static boolean canWalk(int width, int height, int depth, int maxDepth) {
+        return depth < maxDepth && width * height > BLOCK_AREA;
+    }
+
+    // Encoder walks a frame and writes the flags and trees of its changes
+    private static class Encoder {
+        final PixelBuffer frame;
+        final PixelBuffer reference;
+        final CompressionConfig config;
+        final int tolerance;
+        final TreeCodec.TreeWriter writer;
+
+        Encoder(PixelBuffer frame, PixelBuffer reference, CompressionConfig config, int tolerance) {
+            this.frame = frame;
+            this.reference = reference;
+            this.config = config;
+            this.tolerance = tolerance;
+            this.writer = new TreeCodec.TreeWriter(frame.getWidth(), frame.getHeight(),
+                    config.getMaxDepth(), false);
+        }
+
+        void walk(int x, int y, int width, int height, int depth) {
+            if (width == 0 || height == 0) {
+                return;
+            }
+            if (!changed(x, y, width, height)) {
+                writer.flags.write(0);
+                return;
+            }
+            writer.flags.write(1);
+            walkChanged(x, y, width, height, depth);
+        }
+
+        // the region is known to have changed. It is walked further only if some
+        // quadrant did not change, as coding it whole is cheaper otherwise
+        void walkChanged(int x, int y, int width, int height, int depth) {
+            if (!canWalk(width, height, depth, config.getMaxDepth())) {
+                code(x, y, width, height, depth);
+                return;
+            }
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+            int remainderWidth = width - halfWidth;
+            int remainderHeight = height - halfHeight;
+            int[][] quadrants = { { x, y, halfWidth, halfHeight }, { x + halfWidth, y, remainderWidth, halfHeight },
+                    { x, y + halfHeight, halfWidth, remainderHeight },
+                    { x + halfWidth, y + halfHeight, remainderWidth, remainderHeight } };
+            boolean[] changed = new boolean[4];
+            boolean all = true;
+            for (int i = 0; i < 4; i++) {
+                int[] q = quadrants[i];
+                changed[i] = q[2] > 0 && q[3] > 0 && changed(q[0], q[1], q[2], q[3]);
+                all &= changed[i] || q[2] == 0 || q[3] == 0;
+            }
+            if (all) {
+                writer.flags.write(0);
+                code(x, y, width, height, depth);
+                return;
+            }
+            writer.flags.write(1);
+            for (int i = 0; i < 4; i++) {
+                int[] q = quadrants[i];
+                if (q[2] == 0 || q[3] == 0) {
+                    continue;
+                }
+                writer.flags.write(changed[i] ? 1 : 0);
+                if (changed[i]) {
+                    walkChanged(q[0], q[1], q[2], q[3], depth + 1);
+                }
+            }
+        }
+
+        // builds the region into a tree of its own that is maxDepth - depth deep,
+        // and writes it as the subtree at depth
+        void code(int x, int y, int width, int height, int depth) {
+            QuadTree quadtree = Utility.buildTree(frame.region(x, y, width, height), config.withMaxDepth(config.getMaxDepth() - depth));
+            writer.write(quadtree.getNodes(), quadtree.getRoot(), depth);
+            int[] from = frame.getData();
+            int[] to = reference.getData();
+            for (int j = y; j < y + height; j++) {
+                System.arraycopy(from, frame.getIndex(x, j), to, reference.getIndex(x, j), width);
+            }
+        }
+
+        boolean changed(int x, int y, int width, int height) {
+            int[] a = frame.getData();
+            int[] b = reference.getData();
+            for (int j = y; j < y + height; j++) {
+                int rowA = frame.getIndex(x, j);
+                int rowB = reference.getIndex(x, j);
+                if (tolerance == 0) {
+                    if (Arrays.mismatch(a, rowA, rowA + width, b, rowB, rowB + width) >= 0) {
+                        return true;
+                    }
+                    continue;
+                }
+                for (int i = 0; i < width; i++) {
+                    int p = a[rowA + i];
+                    int q = b[rowB + i];
+                    if (Math.abs(((p >> 16) & 0xFF) - ((q >> 16) & 0xFF)) > tolerance
+                            || Math.abs(((p >> 8) & 0xFF) - ((q >> 8) & 0xFF)) > tolerance
+                            || Math.abs((p & 0xFF) - (q & 0xFF)) > tolerance) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+    }
+
+    // Decoder walks the frame like Encoder and paints the trees of the changes
+    private static class Decoder {
+        final PixelBuffer raster;
+        final TreeCodec.TreeReader reader;
+        final int maxDepth;
+
+        Decoder(PixelBuffer raster, TreeCodec.TreeReader reader, int maxDepth) {
+            this.raster = raster;
+            this.reader = reader;
+            this.maxDepth = maxDepth;
+        }
+
+        void walk(int x, int y, int width, int height, int depth) {
+            if (width == 0 || height == 0 || reader.flags.read() == 0) {
+                return;
+            }
+            if (canWalk(width, height, depth, maxDepth) && reader.flags.read() == 1) {
+                // the same split as QuadTree.divide
+                int halfWidth = width / 2;
+                int halfHeight = height / 2;
+                int remainderWidth = width - halfWidth;
+                int remainderHeight = height - halfHeight;
+                walk(x, y, halfWidth, halfHeight, depth + 1);
+                walk(x + halfWidth, y, remainderWidth, halfHeight, depth + 1);
+                walk(x, y + halfHeight, halfWidth, remainderHeight, depth + 1);
+                walk(x + halfWidth, y + halfHeight, remainderWidth, remainderHeight, depth + 1);
+                return;
+            }
+            reader.read(x, y, width, height, depth);
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A lossless coder for a stream of byte symbols. Every encoded block carries the
+ * tables built for its own symbols, so a coder adapts to each image and stream,
+ * and the decoder only needs the block and the number of symbols in it.
+ */
+public interface EntropyCoder {
+    // ids stored in the file header, NONE writes the streams as they are
+    int NONE = 0;
+    int HUFFMAN = 1;
+    int RANS = 2;
+
+    // the id of this coder in the file header
+    int getId();
+
+    // encodes the symbols into a block holding the tables and the coded data
+    byte[] encode(byte[] symbols);
+
+    /**
+     * Decodes count symbols from a block written by encode.
+     *
+     * @param data   the buffer holding the block
+     * @param offset the position of the block in data
+     * @param length the length of the block in bytes
+     * @param count  the number of symbols that were encoded
+     * @return the decoded symbols
+     * @throws IOException if the block is corrupt
+     */
+    byte[] decode(ByteBuffer data, int offset, int length, int count) throws IOException;
+
+    // returns the coder with the given id, or null for NONE
+    static EntropyCoder forId(int id) {
+        switch (id) {
+            case NONE:
+                return null;
+            case HUFFMAN:
+                return new HuffmanCoder();
+            case RANS:
+                return new RansCoder();
+            default:
+                throw new IllegalArgumentException("Unknown entropy coder: " + id);
+        }
+    }
+}
@@ -0,0 +1,224 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.PriorityQueue;
+
+/**
+ * Canonical Huffman coding of byte symbols. Code lengths are limited to
+ * MAX_LENGTH bits, so the decoder resolves every symbol with a single lookup in
+ * a table of 2^MAX_LENGTH entries.
+ *
+ * <pre>
+ * 32 bytes  bitmap of the symbols that occur, symbol 0 in the top bit of byte 0
+ * n bytes   4-bit code length of each symbol that occurs, in symbol order
+ * m bytes   the codes, most significant bit first
+ * </pre>
+ */
+public class HuffmanCoder implements EntropyCoder {
+    static final int MAX_LENGTH = 12;
+
+    @Override
+    public int getId() {
+        return HUFFMAN;
+    }
+
+    @Override
+    public byte[] encode(byte[] symbols) {
+        if (symbols.length == 0) {
+            return new byte[0];
+        }
+        long[] frequencies = new long[256];
+        for (byte symbol : symbols) {
+            frequencies[symbol & 0xFF]++;
+        }
+        int[] lengths = codeLengths(frequencies);
+        int[] codes = canonicalCodes(lengths);
+
+        int present = 0;
+        for (int length : lengths) {
+            if (length > 0) {
+                present++;
+            }
+        }
+        int tableSize = 32 + (present + 1) / 2;
+        long bitCount = 0;
+        for (int s = 0; s < 256; s++) {
+            bitCount += frequencies[s] * lengths[s];
+        }
+        byte[] out = new byte[tableSize + (int) ((bitCount + 7) >>> 3)];
+
+        // the table: which symbols occur, then their code lengths two to a byte
+        int nibble = 0;
+        for (int s = 0; s < 256; s++) {
+            if (lengths[s] > 0) {
+                out[s >>> 3] |= (byte) (0x80 >>> (s & 7));
+                out[32 + nibble / 2] |= (byte) (nibble % 2 == 0 ? lengths[s] << 4 : lengths[s]);
+                nibble++;
+            }
+        }
+
+        // the codes, gathered in a 64-bit accumulator and flushed a byte at a time
+        int position = tableSize;
+        long accumulator = 0;
+        int pending = 0;
+        for (byte symbol : symbols) {
+            int s = symbol & 0xFF;
+            accumulator = (accumulator << lengths[s]) | codes[s];
+            pending += lengths[s];
+            while (pending >= 8) {
+                pending -= 8;
+                out[position++] = (byte) (accumulator >>> pending);
+            }
+        }
+        if (pending > 0) {
+            out[position] = (byte) (accumulator << (8 - pending));
+        }
+        return out;
+    }
+
+    @Override
+    public byte[] decode(ByteBuffer data, int offset, int length, int count) throws IOException {
+        byte[] symbols = new byte[count];
+        if (count == 0) {
+            return symbols;
+        }
+        if (length < 32) {
+            throw new IOException("Huffman block is truncated");
+        }
+        int[] lengths = new int[256];
+        int nibble = 0;
+        // the share of the lookup table the codes take, which is at most all of it
+        // for a prefix code
+        int used = 0;
+        for (int s = 0; s < 256; s++) {
+            if ((data.get(offset + (s >>> 3)) & (0x80 >>> (s & 7))) != 0) {
+                if (32 + nibble / 2 >= length) {
+                    throw new IOException("Huffman block is truncated");
+                }
+                int packed = data.get(offset + 32 + nibble / 2);
+                lengths[s] = nibble % 2 == 0 ? (packed >>> 4) & 0x0F : packed & 0x0F;
+                if (lengths[s] == 0 || lengths[s] > MAX_LENGTH) {
+                    throw new IOException("Invalid Huffman code length " + lengths[s]);
+                }
+                used += 1 << (MAX_LENGTH - lengths[s]);
+                nibble++;
+            }
+        }
+        if (used > 1 << MAX_LENGTH) {
+            throw new IOException("Huffman code lengths do not form a prefix code");
+        }
+        int[] codes = canonicalCodes(lengths);
+
+        // every MAX_LENGTH-bit prefix maps to the symbol whose code starts it and the
+        // length of that code, packed as symbol | length << 8
+        int[] table = new int[1 << MAX_LENGTH];
+        for (int s = 0; s < 256; s++) {
+            if (lengths[s] > 0) {
+                int shift = MAX_LENGTH - lengths[s];
+                int first = codes[s] << shift;
+                int last = (codes[s] + 1) << shift;
+                for (int i = first; i < last; i++) {
+                    table[i] = s | (lengths[s] << 8);
+                }
+            }
+        }
+
+        int position = offset + 32 + (nibble + 1) / 2;
+        int end = offset + length;
+        // the next bits of the stream sit at the top of bits
+        long bits = 0;
+        int available = 0;
+        for (int i = 0; i < count; i++) {
+            while (available <= 56 && position < end) {
+                bits |= (long) (data.get(position++) & 0xFF) << (56 - available);
+                available += 8;
+            }
+            int entry = table[(int) (bits >>> (64 - MAX_LENGTH))];
+            int codeLength = entry >>> 8;
+            if (codeLength == 0 || codeLength > available) {
+                throw new IOException("Corrupt Huffman stream");
+            }
+            symbols[i] = (byte) entry;
+            bits <<= codeLength;
+            available -= codeLength;
+        }
+        return symbols;
+    }
+
+    // builds Huffman code lengths for the frequencies. If the longest code is over
+    // MAX_LENGTH the frequencies are flattened and the lengths rebuilt, which
+    // converges quickly and costs very little compression
+    static int[] codeLengths(long[] frequencies) {
+        long[] weights = frequencies.clone();
+        while (true) {
+            int[] lengths = huffmanLengths(weights);
+            int longest = 0;
+            for (int length : lengths) {
+                longest = Math.max(longest, length);
+            }
+            if (longest <= MAX_LENGTH) {
+                return lengths;
+            }
+            for (int s = 0; s < weights.length; s++) {
+                if (weights[s] > 0) {
+                    weights[s] = (weights[s] >>> 1) | 1;
+                }
+            }
+        }
+    }
+
+    // plain Huffman code lengths, a single symbol gets a 1-bit code
+    private static int[] huffmanLengths(long[] weights) {
+        int[] parent = new int[512];
+        // nodes are ordered by weight and then by index, so the lengths only
+        // depend on the frequencies
+        PriorityQueue<long[]> queue = new PriorityQueue<>(
+                (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : Long.compare(a[1], b[1]));
+        for (int s = 0; s < 256; s++) {
+            if (weights[s] > 0) {
+                queue.add(new long[] { weights[s], s });
+            }
+        }
+        int[] lengths = new int[256];
+        if (queue.size() == 1) {
+            lengths[(int) queue.peek()[1]] = 1;
+            return lengths;
+        }
+        int next = 256;
+        while (queue.size() > 1) {
+            long[] a = queue.poll();
+            long[] b = queue.poll();
+            parent[(int) a[1]] = next;
+            parent[(int) b[1]] = next;
+            queue.add(new long[] { a[0] + b[0], next });
+            next++;
+        }
+        int root = next - 1;
+        for (int s = 0; s < 256; s++) {
+            if (weights[s] > 0) {
+                int length = 0;
+                for (int node = s; node != root; node = parent[node]) {
+                    length++;
+                }
+                lengths[s] = length;
+            }
+        }
+        return lengths;
+    }
+
+    // assigns canonical codes: shorter codes first, ties broken by symbol
+    static int[] canonicalCodes(int[] lengths) {
+        int[] codes = new int[256];
+        int code = 0;
+        for (int length = 1; length <= MAX_LENGTH; length++) {
+            for (int s = 0; s < 256; s++) {
+                if (lengths[s] == length) {
+                    codes[s] = code++;
+                }
+            }
+            code <<= 1;
+        }
+        return codes;
+    }
+}
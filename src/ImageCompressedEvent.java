@@ -0,0 +1,52 @@
+package src;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// ImageCompressedEvent is a JFR event spanning an image's trip through
+// BatchCompressor, with the statistics of its tree and its quality
+@Name("quadtree.ImageCompressed")
+@Label("Image Compressed")
+@Category({ "Quadtree", "Batch" })
+@Description("An image that went through every stage of a batch run")
+class ImageCompressedEvent extends Event {
+    @Label("Image")
+    String image;
+
+    @Label("Width")
+    int width;
+
+    @Label("Height")
+    int height;
+
+    @Label("Nodes")
+    @Description("Nodes of the tree that cover any pixels")
+    int nodes;
+
+    @Label("Leafs")
+    @Description("Leafs of the tree that cover any pixels")
+    int leafs;
+
+    @Label("Max Depth")
+    @Description("The depth of the deepest leaf")
+    int maxDepth;
+
+    @Label("Compressed Size")
+    @DataAmount
+    long compressedBytes;
+
+    @Label("Bytes Per Leaf")
+    double bytesPerLeaf;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the threads running the stages of the image")
+    @DataAmount
+    long allocated;
+
+    @Label("PSNR")
+    double psnr;
+}
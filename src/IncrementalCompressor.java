@@ -0,0 +1,274 @@
+package src;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+
+import lib.PixelBuffer;
+
+/**
+ * Compresses an edited image again by reusing the unchanged parts of its last
+ * compressed file. Each file is kept with the RegionHashes of the image it was
+ * compressed from, in a file of the same name ending in HASH_SUFFIX, which also
+ * records where the flags and colors of each region are in the file. On the
+ * next save the flags and colors of every region whose hash did not change are
+ * copied over as they are, and only the blocks with a changed pixel are built
+ * into trees again, so the tree building after a small edit costs about the size
+ * of the edit. Hashing the image and entropy coding the streams still read all
+ * of them, but both are far cheaper than building the tree.
+ *
+ * An unchanged region decodes exactly as it did before, even where the old tree
+ * had it inside a larger leaf. The regions above a change are only merged when
+ * their quadrants come out as leafs of one color, so the tree may have a few
+ * more leafs than a full build of the edited image would. Compressing from
+ * scratch, by deleting the hash file, gives the full build again.
+ */
+public class IncrementalCompressor {
+    public static final String HASH_SUFFIX = ".hash";
+
+    private final CompressionConfig config;
+    private final int maxDepth;
+    private final EntropyCoder coder;
+    // what the last call to compress built and copied
+    private int rebuiltRegions;
+    private int reusedRegions;
+    private long rebuiltPixels;
+
+    /**
+     * @param config the settings to compress with, which must be the tree encoding
+     *               with quad splits, no palette and no size or PSNR target, as a
+     *               file holding anything else cannot be patched
+     */
+    public IncrementalCompressor(CompressionConfig config) {
+        if (config.getEncoding() != CompressedFile.ENCODING_TREE || config.isBinarySplits()
+                || config.getPaletteSize() > 0) {
+            throw new IllegalArgumentException(
+                    "Incremental compression needs the tree encoding with quad splits and no palette");
+        }
+        if (config.getTargetSize() > 0 || config.getTargetPsnr() > 0) {
+            throw new IllegalArgumentException("Incremental compression cannot prune to a size or PSNR target");
+        }
+        this.config = config;
+        this.maxDepth = config.getMaxDepth();
+        this.coder = EntropyCoder.forId(config.getEntropyCoder());
+    }
+
+    /**
+     * Compresses the image into a file. If the file and its hashes were written by
+     * this class for an image of the same size with the same settings, only the
+     * changed regions are built, otherwise the whole image is.
+     *
+     * @param pixels         the image
+     * @param outputFileName the compressed file, which may be the last version of
+     *                       the image
+     * @return true if the old file was reused, false if the image was built whole
+     * @throws IOException if a file cannot be read or written
+     */
+    public boolean compress(PixelBuffer pixels, String outputFileName) throws IOException {
+        String hashFileName = outputFileName + HASH_SUFFIX;
+        RegionHashes hashes = RegionHashes.of(pixels, maxDepth);
+        RegionHashes oldHashes = null;
+        CompressedFile old = previous(outputFileName, pixels);
+        if (old != null) {
+            try {
+                oldHashes = RegionHashes.read(hashFileName, pixels.getWidth(), pixels.getHeight(), config,
+                        checksum(old.getPayload()));
+            } catch (IOException e) {
+                // hashes that cannot be read are written again from scratch
+            }
+        }
+        rebuiltRegions = 0;
+        reusedRegions = 0;
+        rebuiltPixels = 0;
+
+        Emitter emitter = new Emitter(pixels, hashes);
+        if (oldHashes == null) {
+            // delete the hashes first, so a failed write leaves no hashes that claim
+            // to match the file
+            new File(hashFileName).delete();
+            QuadTree quadtree = Utility.buildTree(pixels, config);
+            emitter.emitTree(quadtree.getNodes(), quadtree.getRoot(), 0, 0);
+            rebuiltRegions = 1;
+            rebuiltPixels = (long) pixels.getWidth() * pixels.getHeight();
+        } else {
+            emitter.old = TreeCodec.reader(old.getPayload(), pixels.getWidth(), pixels.getHeight(), maxDepth,
+                    EntropyCoder.forId(old.getEntropyCoder()), false, false, null);
+            emitter.oldHashes = oldHashes;
+            try {
+                emitter.patch(0, 0, 0, pixels.getWidth(), pixels.getHeight(), 0);
+            } catch (IllegalStateException | ArrayIndexOutOfBoundsException e) {
+                throw new IOException(hashFileName + " does not match " + outputFileName, e);
+            }
+        }
+
+        TreeCodec.TreeWriter writer = emitter.writer;
+        ByteBuffer payload = TreeCodec.encodeLeafs(writer.flags, writer.colors, writer.colorCount, coder);
+        CompressedFile file = new CompressedFile(CompressedFile.ENCODING_TREE, config.getEntropyCoder(),
+                pixels.getWidth(), pixels.getHeight(), maxDepth, config.getSimilarityPercent(), writer.colorCount,
+                payload);
+        try {
+            file.write(outputFileName);
+        } catch (IOException e) {
+            throw new IOException("Error writing to the output file", e);
+        }
+        hashes.write(hashFileName, config, checksum(file.getPayload()));
+        return oldHashes != null;
+    }
+
+    // the last version of the file, or null if there is none this class can patch
+    private CompressedFile previous(String fileName, PixelBuffer pixels) {
+        if (!new File(fileName).isFile() || !new File(fileName + HASH_SUFFIX).isFile()) {
+            return null;
+        }
+        try {
+            CompressedFile file = CompressedFile.read(fileName);
+            if (file.getEncoding() != CompressedFile.ENCODING_TREE || file.getFlags() != 0
+                    || file.getWidth() != pixels.getWidth() || file.getHeight() != pixels.getHeight()
+                    || file.getMaxDepth() != maxDepth) {
+                return null;
+            }
+            return file;
+        } catch (IOException e) {
+            // a file that cannot be read is written again from scratch
+            return null;
+        }
+    }
+
+    private static long checksum(ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    // the number of blocks built again by the last call to compress, 1 if the
+    // whole image was
+    public int getRebuiltRegions() {
+        return rebuiltRegions;
+    }
+
+    // the number of regions copied from the old file by the last call to compress
+    public int getReusedRegions() {
+        return reusedRegions;
+    }
+
+    // the pixels built into trees again by the last call to compress
+    public long getRebuiltPixels() {
+        return rebuiltPixels;
+    }
+
+    // Emitter writes the tree region by region in the order TreeWriter would, and
+    // records where each hashed region ends up
+    private class Emitter {
+        final PixelBuffer pixels;
+        final RegionHashes hashes;
+        final TreeCodec.TreeWriter writer;
+        // the old file and its hashes, when it is patched
+        TreeCodec.TreeReader old;
+        RegionHashes oldHashes;
+
+        Emitter(PixelBuffer pixels, RegionHashes hashes) {
+            this.pixels = pixels;
+            this.hashes = hashes;
+            this.writer = new TreeCodec.TreeWriter(pixels.getWidth(), pixels.getHeight(), maxDepth, false);
+        }
+
+        // writes the subtree under node, which covers the region hashed at index.
+        // The flags come out the same as TreeWriter.write(nodes, node, depth)
+        void emitTree(NodeArena nodes, int node, int index, int depth) {
+            long flagStart = writer.flags.length();
+            int colorStart = writer.colorCount;
+            if (nodes.isLeaf(node) || RegionHashes.isBlock(nodes.getWidth(node), nodes.getHeight(node), depth,
+                    maxDepth)) {
+                writer.write(nodes, node, depth);
+                hashes.setRange(index, flagStart, writer.flags.length(), colorStart, writer.colorCount);
+                if (nodes.isLeaf(node)) {
+                    hashes.setInside(index + 1, hashes.getEnd(index), colorStart);
+                }
+                return;
+            }
+            // a hashed region that is not a block can always be split
+            writer.flags.write(1);
+            int first = nodes.getFirstChild(node);
+            int child = index + 1;
+            for (int quadrant = first; quadrant < first + 4; quadrant++) {
+                if (!nodes.isEmpty(quadrant)) {
+                    emitTree(nodes, quadrant, child, depth + 1);
+                    child = hashes.getEnd(child);
+                }
+            }
+            hashes.setRange(index, flagStart, writer.flags.length(), colorStart, writer.colorCount);
+        }
+
+        // writes the region hashed at index, copying it from the old file if its
+        // hash did not change and building the blocks that did
+        void patch(int index, int x, int y, int width, int height, int depth) {
+            long flagStart = writer.flags.length();
+            int colorStart = writer.colorCount;
+            if (hashes.getHash(index) == oldHashes.getHash(index)) {
+                reusedRegions++;
+                if (oldHashes.getFlagStart(index) < 0) {
+                    // inside a leaf of the old tree, it becomes a leaf of the same color
+                    if (TreeCodec.canSplit(width, height, depth, maxDepth)) {
+                        writer.flags.write(0);
+                    }
+                    writer.writeColor(old.colors[oldHashes.getColorStart(index)], width * height);
+                    hashes.setRange(index, flagStart, writer.flags.length(), colorStart, writer.colorCount);
+                    hashes.setInside(index + 1, hashes.getEnd(index), colorStart);
+                    return;
+                }
+                writer.copy(old, oldHashes.getFlagStart(index), oldHashes.getFlagEnd(index),
+                        oldHashes.getColorStart(index), oldHashes.getColorEnd(index));
+                // the regions under it move by as much as it did
+                long flagShift = flagStart - oldHashes.getFlagStart(index);
+                int colorShift = colorStart - oldHashes.getColorStart(index);
+                for (int i = index; i < hashes.getEnd(index); i++) {
+                    long oldFlagStart = oldHashes.getFlagStart(i);
+                    hashes.setRange(i, oldFlagStart < 0 ? -1 : oldFlagStart + flagShift,
+                            oldFlagStart < 0 ? -1 : oldHashes.getFlagEnd(i) + flagShift,
+                            oldHashes.getColorStart(i) + colorShift, oldHashes.getColorEnd(i) + colorShift);
+                }
+                return;
+            }
+            if (RegionHashes.isBlock(width, height, depth, maxDepth)) {
+                rebuiltRegions++;
+                rebuiltPixels += (long) width * height;
+                QuadTree quadtree = Utility.buildTree(pixels.region(x, y, width, height),
+                        config.withMaxDepth(maxDepth - depth));
+                writer.write(quadtree.getNodes(), quadtree.getRoot(), depth);
+                hashes.setRange(index, flagStart, writer.flags.length(), colorStart, writer.colorCount);
+                return;
+            }
+            // the same split as QuadTree.divide, a hashed region that is not a block
+            // can always be split
+            writer.flags.write(1);
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+            int[][] quadrants = { { x, y, halfWidth, halfHeight }, { x + halfWidth, y, width - halfWidth, halfHeight },
+                    { x, y + halfHeight, halfWidth, height - halfHeight },
+                    { x + halfWidth, y + halfHeight, width - halfWidth, height - halfHeight } };
+            int child = index + 1;
+            // the color of the quadrants while each is a single leaf of one color, -1
+            // once one is not
+            int color = -2;
+            for (int[] q : quadrants) {
+                if (q[2] == 0 || q[3] == 0) {
+                    continue;
+                }
+                patch(child, q[0], q[1], q[2], q[3], depth + 1);
+                int leafColor = writer.colors[hashes.getColorStart(child)];
+                boolean leaf = hashes.getColorEnd(child) - hashes.getColorStart(child) == 1;
+                color = leaf && (color == -2 || color == leafColor) ? leafColor : -1;
+                child = hashes.getEnd(child);
+            }
+            if (color >= 0) {
+                // merge the quadrants back into one leaf
+                writer.truncate(flagStart, colorStart);
+                writer.flags.write(0);
+                writer.writeColor(color, width * height);
+                hashes.setInside(index + 1, hashes.getEnd(index), colorStart);
+            }
+            hashes.setRange(index, flagStart, writer.flags.length(), colorStart, writer.colorCount);
+        }
+    }
+}
@@ -0,0 +1,9 @@
+package src;
+
+// LeafVisitor receives the leafs of a compressed image one at a time as they are
+// decoded, so a decoder can paint them straight into a raster without collecting
+// them first. PixelBuffer::fillRect is a LeafVisitor
+@FunctionalInterface
+public interface LeafVisitor {
+    void visit(int x, int y, int width, int height, int color);
+}
@@ -0,0 +1,32 @@
+package src;
+
+/**
+ * A node is a leaf if the variance of its luma (Rec. 601: 0.299 red, 0.587
+ * green, 0.114 blue) is at most that of a standard deviation of percentage% of
+ * 255. Changes in brightness split a region, while changes of hue at the same
+ * brightness, which the eye notices least, do not.
+ */
+public class LuminanceCriterion implements SplitCriterion {
+
+    @Override
+    public int getId() {
+        return LUMINANCE;
+    }
+
+    @Override
+    public boolean needsRange() {
+        return false;
+    }
+
+    @Override
+    public boolean needsLuma() {
+        return true;
+    }
+
+    @Override
+    public boolean isUniform(NodeArena nodes, int node, SummedAreaTable table, int percentage) {
+        double deviation = percentage * 255 / 100.0;
+        return table.lumaVariance(nodes.getX(node), nodes.getY(node), nodes.getWidth(node),
+                nodes.getHeight(node)) <= deviation * deviation;
+    }
+}
@@ -0,0 +1,32 @@
+package src;
+
+/**
+ * A node is a leaf if every pixel is within percentage% of 255 of the average of
+ * the node in each of the red, green and blue channels, read from the per
+ * channel range of the node.
+ */
+public class MaxDeviationCriterion implements SplitCriterion {
+
+    @Override
+    public int getId() {
+        return MAX_DEVIATION;
+    }
+
+    @Override
+    public boolean needsRange() {
+        return true;
+    }
+
+    @Override
+    public boolean isUniform(NodeArena nodes, int node, SummedAreaTable table, int percentage) {
+        int tolerance = percentage * 255 / 100;
+        for (int shift = 16; shift >= 0; shift -= 8) {
+            int average = (nodes.getColor(node) >> shift) & 0xff;
+            if (((nodes.getMax(node) >> shift) & 0xff) - average > tolerance
+                    || average - ((nodes.getMin(node) >> shift) & 0xff) > tolerance) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
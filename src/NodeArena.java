@@ -0,0 +1,255 @@
+package src;
+
+import java.util.Arrays;
+
+import lib.PixelBuffer;
+
+/**
+ * Holds the nodes of a tree in parallel primitive arrays instead of one object
+ * per node. A node is an index into the arrays. The children of a split node are
+ * stored next to each other, from firstChild on, so the tree needs no child
+ * arrays either. A node that was merged back into a leaf leaves its children
+ * behind unused, they are dropped when the arena is cleared.
+ *
+ * An arena is cleared and reused for the next tree, so a batch of images only
+ * allocates when a tree is larger than any before it. It is not thread safe: a
+ * tree is built into one arena by one thread, and parallel builds give each task
+ * an arena of its own and copy it in with adopt.
+ */
+public class NodeArena {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // the region and average color of each node, packed 0xRRGGBB
+    int[] x;
+    int[] y;
+    int[] width;
+    int[] height;
+    int[] color;
+    // the per channel minimum and maximum pixel values of the region, packed the
+    // same way as color, only set when the quad tree needs them
+    int[] min;
+    int[] max;
+    // the index of the first child, and the number of children, 0 for a leaf
+    int[] firstChild;
+    byte[] childCount;
+    private int size;
+
+    public NodeArena() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public NodeArena(int capacity) {
+        capacity = Math.max(capacity, 1);
+        x = new int[capacity];
+        y = new int[capacity];
+        width = new int[capacity];
+        height = new int[capacity];
+        color = new int[capacity];
+        min = new int[capacity];
+        max = new int[capacity];
+        firstChild = new int[capacity];
+        childCount = new byte[capacity];
+    }
+
+    // forgets every node, keeping the arrays for the next tree
+    public void clear() {
+        size = 0;
+    }
+
+    // the number of nodes in the arena, including unused ones
+    public int size() {
+        return size;
+    }
+
+    // adds count leafs with empty regions next to each other and returns the index
+    // of the first. The arrays may be replaced, so no reference to them is kept
+    // across a call to allocate
+    int allocate(int count) {
+        if (size + count > x.length) {
+            grow(size + count);
+        }
+        int first = size;
+        for (int i = first; i < first + count; i++) {
+            set(i, 0, 0, 0, 0);
+        }
+        size += count;
+        return first;
+    }
+
+    // drops every node from index first on, which must be the whole subtree of the
+    // nodes allocated last
+    void truncate(int first) {
+        size = first;
+    }
+
+    private void grow(int capacity) {
+        capacity = Math.max(capacity, x.length * 2);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        width = Arrays.copyOf(width, capacity);
+        height = Arrays.copyOf(height, capacity);
+        color = Arrays.copyOf(color, capacity);
+        min = Arrays.copyOf(min, capacity);
+        max = Arrays.copyOf(max, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        childCount = Arrays.copyOf(childCount, capacity);
+    }
+
+    // makes node a leaf covering the region
+    void set(int node, int x, int y, int width, int height) {
+        this.x[node] = x;
+        this.y[node] = y;
+        this.width[node] = width;
+        this.height[node] = height;
+        color[node] = 0;
+        min[node] = 0;
+        max[node] = 0;
+        firstChild[node] = 0;
+        childCount[node] = 0;
+    }
+
+    // gives node count children, allocated next to each other, and returns the
+    // index of the first
+    int split(int node, int count) {
+        int first = allocate(count);
+        firstChild[node] = first;
+        childCount[node] = (byte) count;
+        return first;
+    }
+
+    // turns node back into a leaf, its children stay behind unused
+    void merge(int node) {
+        childCount[node] = 0;
+    }
+
+    /**
+     * Copies a tree built in another arena into this one. The root of the other
+     * tree, at index 0, replaces the node at slot and the rest of it is appended.
+     *
+     * @param other the arena holding the tree, which is left unchanged
+     * @param slot  the node in this arena to replace with the root
+     */
+    void adopt(NodeArena other, int slot) {
+        int count = other.size - 1;
+        int base = size;
+        if (size + count > x.length) {
+            grow(size + count);
+        }
+        copy(other, 0, slot, base);
+        for (int i = 1; i <= count; i++) {
+            copy(other, i, base + i - 1, base);
+        }
+        size += count;
+    }
+
+    // copies node from into node to, where index i > 0 of other becomes base + i - 1
+    private void copy(NodeArena other, int from, int to, int base) {
+        x[to] = other.x[from];
+        y[to] = other.y[from];
+        width[to] = other.width[from];
+        height[to] = other.height[from];
+        color[to] = other.color[from];
+        min[to] = other.min[from];
+        max[to] = other.max[from];
+        childCount[to] = other.childCount[from];
+        firstChild[to] = other.childCount[from] == 0 ? 0 : base + other.firstChild[from] - 1;
+    }
+
+    public int getX(int node) {
+        return x[node];
+    }
+
+    public int getY(int node) {
+        return y[node];
+    }
+
+    public int getWidth(int node) {
+        return width[node];
+    }
+
+    public int getHeight(int node) {
+        return height[node];
+    }
+
+    public int getColor(int node) {
+        return color[node];
+    }
+
+    public int getMin(int node) {
+        return min[node];
+    }
+
+    public int getMax(int node) {
+        return max[node];
+    }
+
+    public boolean isLeaf(int node) {
+        return childCount[node] == 0;
+    }
+
+    public int getFirstChild(int node) {
+        return firstChild[node];
+    }
+
+    public int getChildCount(int node) {
+        return childCount[node];
+    }
+
+    // true if the region of node covers no pixels
+    public boolean isEmpty(int node) {
+        return width[node] == 0 || height[node] == 0;
+    }
+
+    // sets the color of node to the average color of the pixels it covers, read
+    // from the summed area table in constant time
+    void setColor(int node, SummedAreaTable table) {
+        if (isEmpty(node)) {
+            return;
+        }
+        color[node] = table.meanColor(x[node], y[node], width[node], height[node]);
+    }
+
+    // scans the pixels node covers for the per channel minimum and maximum, an
+    // empty region gets an empty range (min above max)
+    void setRange(int node, PixelBuffer pixels) {
+        int minR = 255, minG = 255, minB = 255;
+        int maxR = 0, maxG = 0, maxB = 0;
+        int[] data = pixels.getData();
+        int left = x[node];
+        int right = left + width[node];
+        for (int j = y[node]; j < y[node] + height[node]; j++) {
+            int row = pixels.getIndex(0, j);
+            for (int i = left; i < right; i++) {
+                int rgb = data[row + i];
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                minR = Math.min(minR, r);
+                minG = Math.min(minG, g);
+                minB = Math.min(minB, b);
+                maxR = Math.max(maxR, r);
+                maxG = Math.max(maxG, g);
+                maxB = Math.max(maxB, b);
+            }
+        }
+        min[node] = (minR << 16) | (minG << 8) | minB;
+        max[node] = (maxR << 16) | (maxG << 8) | maxB;
+    }
+
+    // combines the ranges of the children of node, which together cover it
+    void setRangeFromChildren(int node) {
+        int minR = 255, minG = 255, minB = 255;
+        int maxR = 0, maxG = 0, maxB = 0;
+        int first = firstChild[node];
+        for (int child = first; child < first + childCount[node]; child++) {
+            minR = Math.min(minR, (min[child] >> 16) & 0xff);
+            minG = Math.min(minG, (min[child] >> 8) & 0xff);
+            minB = Math.min(minB, min[child] & 0xff);
+            maxR = Math.max(maxR, (max[child] >> 16) & 0xff);
+            maxG = Math.max(maxG, (max[child] >> 8) & 0xff);
+            maxB = Math.max(maxB, max[child] & 0xff);
+        }
+        min[node] = (minR << 16) | (minG << 8) | minB;
+        max[node] = (maxR << 16) | (maxG << 8) | maxB;
+    }
+}
@@ -0,0 +1,290 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * A palette of at most 256 colors chosen for a set of leaf colors, so each leaf
+ * can be stored as a one byte index instead of a 24-bit color.
+ *
+ * The palette is built from a sample of the colors, weighted by the number of
+ * pixels each leaf covers. Median cut splits the color box with the largest
+ * squared error until there are maxColors boxes or every box spans at most
+ * 2 * tolerance in each channel, so flat images get small palettes. A few
+ * rounds of k-means then move each palette color to the weighted mean of the
+ * colors nearest to it. Finding the nearest palette color runs in parallel over
+ * chunks of colors, and the chunk results are added up in order, so the palette
+ * does not depend on the number of threads.
+ */
+public class Palette {
+    // at most this many colors are sampled to build the palette
+    static final int SAMPLE_SIZE = 1 << 16;
+    private static final int KMEANS_ROUNDS = 4;
+    private static final int CHUNK = 4096;
+
+    private final int[] colors;
+
+    private Palette(int[] colors) {
+        this.colors = colors;
+    }
+
+    public int size() {
+        return colors.length;
+    }
+
+    public int getColor(int index) {
+        return colors[index];
+    }
+
+    /**
+     * Builds a palette for the first count colors.
+     *
+     * @param colors    the leaf colors, packed as 0xRRGGBB
+     * @param weights   the number of pixels each leaf covers
+     * @param count     the number of colors to use
+     * @param maxColors the most colors the palette may have, at most 256
+     * @param tolerance splitting stops once every color box spans at most twice
+     *                  this in each channel
+     * @return the palette
+     */
+    public static Palette build(int[] colors, int[] weights, int count, int maxColors, int tolerance) {
+        if (maxColors < 1 || maxColors > 256) {
+            throw new IllegalArgumentException("A palette holds 1 to 256 colors: " + maxColors);
+        }
+        if (count == 0) {
+            return new Palette(new int[0]);
+        }
+        // take every step-th color, which keeps the spatial spread of the leafs
+        int step = Math.max(1, (count + SAMPLE_SIZE - 1) / SAMPLE_SIZE);
+        int sampleCount = (count + step - 1) / step;
+        int[] sampleColors = new int[sampleCount];
+        long[] sampleWeights = new long[sampleCount];
+        for (int i = 0; i < sampleCount; i++) {
+            sampleColors[i] = colors[i * step];
+            sampleWeights[i] = Math.max(1, weights[i * step]);
+        }
+
+        int[] palette = medianCut(sampleColors, sampleWeights, maxColors, tolerance);
+        for (int round = 0; round < KMEANS_ROUNDS; round++) {
+            palette = refine(palette, sampleColors, sampleWeights);
+        }
+        return new Palette(palette);
+    }
+
+    // returns the index of the nearest palette color for each of the first count
+    // colors
+    public byte[] indexAll(int[] colors, int count) {
+        byte[] indices = new byte[count];
+        IntStream.range(0, (count + CHUNK - 1) / CHUNK).parallel().forEach(chunk -> {
+            int end = Math.min(count, (chunk + 1) * CHUNK);
+            for (int i = chunk * CHUNK; i < end; i++) {
+                indices[i] = (byte) nearest(this.colors, colors[i]);
+            }
+        });
+        return indices;
+    }
+
+    // Box is a range of the sample order that median cut may split further
+    private static class Box {
+        final int start;
+        final int end;
+        final double error;
+        final int widestChannel;
+        final int widestRange;
+
+        Box(int[] order, int[] colors, long[] weights, int start, int end) {
+            this.start = start;
+            this.end = end;
+            long total = 0;
+            long[] sum = new long[3];
+            double squares = 0;
+            int[] min = { 255, 255, 255 };
+            int[] max = { 0, 0, 0 };
+            for (int i = start; i < end; i++) {
+                int color = colors[order[i]];
+                long weight = weights[order[i]];
+                total += weight;
+                for (int c = 0; c < 3; c++) {
+                    int value = channel(color, c);
+                    sum[c] += weight * value;
+                    squares += (double) weight * value * value;
+                    min[c] = Math.min(min[c], value);
+                    max[c] = Math.max(max[c], value);
+                }
+            }
+            double error = squares;
+            for (int c = 0; c < 3; c++) {
+                error -= (double) sum[c] * sum[c] / total;
+            }
+            this.error = error;
+            int widest = 0;
+            for (int c = 1; c < 3; c++) {
+                if (max[c] - min[c] > max[widest] - min[widest]) {
+                    widest = c;
+                }
+            }
+            this.widestChannel = widest;
+            this.widestRange = max[widest] - min[widest];
+        }
+    }
+
+    private static int[] medianCut(int[] colors, long[] weights, int maxColors, int tolerance) {
+        // sort keys, the channel value above the sample index
+        long[] keys = new long[colors.length];
+        int[] order = new int[colors.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        ArrayList<Box> boxes = new ArrayList<>();
+        boxes.add(new Box(order, colors, weights, 0, order.length));
+        while (boxes.size() < maxColors) {
+            // split the box with the largest error among those still too wide
+            int worst = -1;
+            for (int i = 0; i < boxes.size(); i++) {
+                Box box = boxes.get(i);
+                if (box.end - box.start > 1 && box.widestRange > 2 * tolerance
+                        && (worst < 0 || box.error > boxes.get(worst).error)) {
+                    worst = i;
+                }
+            }
+            if (worst < 0) {
+                break;
+            }
+            Box box = boxes.get(worst);
+            int c = box.widestChannel;
+            // sort the box by its widest channel, ties by index to stay deterministic
+            for (int i = box.start; i < box.end; i++) {
+                keys[i] = ((long) channel(colors[order[i]], c) << 32) | order[i];
+            }
+            Arrays.sort(keys, box.start, box.end);
+            long total = 0;
+            for (int i = box.start; i < box.end; i++) {
+                order[i] = (int) keys[i];
+                total += weights[order[i]];
+            }
+            // cut at the weighted median, leaving at least one color on each side
+            int cut = box.start + 1;
+            long below = weights[order[box.start]];
+            while (cut < box.end - 1 && below * 2 < total) {
+                below += weights[order[cut]];
+                cut++;
+            }
+            boxes.set(worst, new Box(order, colors, weights, box.start, cut));
+            boxes.add(new Box(order, colors, weights, cut, box.end));
+        }
+
+        int[] palette = new int[boxes.size()];
+        for (int i = 0; i < palette.length; i++) {
+            Box box = boxes.get(i);
+            long total = 0;
+            long[] sum = new long[3];
+            for (int j = box.start; j < box.end; j++) {
+                long weight = weights[order[j]];
+                total += weight;
+                for (int c = 0; c < 3; c++) {
+                    sum[c] += weight * channel(colors[order[j]], c);
+                }
+            }
+            palette[i] = pack(sum, total);
+        }
+        Arrays.sort(palette);
+        return palette;
+    }
+
+    // one round of k-means: every color moves to its nearest palette color, and
+    // every palette color moves to the weighted mean of the colors it got. The
+    // palette stays sorted
+    private static int[] refine(int[] palette, int[] colors, long[] weights) {
+        int chunks = (colors.length + CHUNK - 1) / CHUNK;
+        long[][] sums = new long[chunks][];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            // red, green, blue and weight for each palette color
+            long[] sum = new long[palette.length * 4];
+            int end = Math.min(colors.length, (chunk + 1) * CHUNK);
+            for (int i = chunk * CHUNK; i < end; i++) {
+                int index = nearest(palette, colors[i]) * 4;
+                long weight = weights[i];
+                sum[index] += weight * channel(colors[i], 0);
+                sum[index + 1] += weight * channel(colors[i], 1);
+                sum[index + 2] += weight * channel(colors[i], 2);
+                sum[index + 3] += weight;
+            }
+            sums[chunk] = sum;
+        });
+        long[] total = new long[palette.length * 4];
+        for (long[] sum : sums) {
+            for (int i = 0; i < total.length; i++) {
+                total[i] += sum[i];
+            }
+        }
+        // palette colors that no color is nearest to are dropped
+        int[] refined = new int[palette.length];
+        int size = 0;
+        for (int p = 0; p < palette.length; p++) {
+            if (total[p * 4 + 3] > 0) {
+                refined[size++] = pack(new long[] { total[p * 4], total[p * 4 + 1], total[p * 4 + 2] },
+                        total[p * 4 + 3]);
+            }
+        }
+        refined = Arrays.copyOf(refined, size);
+        Arrays.sort(refined);
+        return refined;
+    }
+
+    // the index of the palette color with the smallest squared distance to color.
+    // The palette is sorted, which sorts it by red, so the search starts at the
+    // nearest red and stops in each direction once red alone is too far away
+    private static int nearest(int[] palette, int color) {
+        int r = channel(color, 0);
+        int g = channel(color, 1);
+        int b = channel(color, 2);
+        int start = Arrays.binarySearch(palette, r << 16);
+        if (start < 0) {
+            start = -start - 1;
+        }
+        int best = 0;
+        int bestDistance = Integer.MAX_VALUE;
+        for (int p = start; p < palette.length; p++) {
+            int dr = channel(palette[p], 0) - r;
+            int distance = dr * dr;
+            if (distance >= bestDistance) {
+                break;
+            }
+            int dg = channel(palette[p], 1) - g;
+            int db = channel(palette[p], 2) - b;
+            distance += dg * dg + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = p;
+            }
+        }
+        for (int p = start - 1; p >= 0; p--) {
+            int dr = channel(palette[p], 0) - r;
+            int distance = dr * dr;
+            if (distance >= bestDistance) {
+                break;
+            }
+            int dg = channel(palette[p], 1) - g;
+            int db = channel(palette[p], 2) - b;
+            distance += dg * dg + db * db;
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = p;
+            }
+        }
+        return best;
+    }
+
+    private static int channel(int color, int channel) {
+        return (color >> (16 - channel * 8)) & 0xFF;
+    }
+
+    // the rounded mean of the weighted channel sums
+    private static int pack(long[] sum, long total) {
+        int r = (int) ((sum[0] + total / 2) / total);
+        int g = (int) ((sum[1] + total / 2) / total);
+        int b = (int) ((sum[2] + total / 2) / total);
+        return (r << 16) | (g << 8) | b;
+    }
+}
@@ -0,0 +1,30 @@
+package src;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// PipelineStageEvent is a JFR event spanning one stage of an image in
+// BatchCompressor
+@Name("quadtree.PipelineStage")
+@Label("Pipeline Stage")
+@Category({ "Quadtree", "Batch" })
+@Description("One stage of an image in a batch run")
+class PipelineStageEvent extends Event {
+    @Label("Image")
+    String image;
+
+    @Label("Stage")
+    String stage;
+
+    @Label("Pixels")
+    long pixels;
+
+    @Label("Allocated")
+    @Description("Bytes allocated by the thread running the stage")
+    @DataAmount
+    long allocated;
+}
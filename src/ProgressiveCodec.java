@@ -0,0 +1,303 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Encodes a quad tree level by level, so a decoder can stop after any depth and
+ * still paint the whole image. Every node, not only every leaf, keeps the average
+ * color of its region, and a node that is cut off at the requested depth is
+ * painted with that color. Levels are stored in order with their lengths up
+ * front, so decoding to depth d only reads the first d + 1 levels of the payload.
+ * Within a level the nodes are in breadth first order: the children of each split
+ * node of the level above, children 0 to 3. As in TreeCodec, each node that could
+ * have been split has a split flag and empty regions are skipped.
+ *
+ * <pre>
+ * 4 bytes   number of levels
+ * 4 bytes   length of each level in bytes
+ * levels    for each level: 4 bytes length of the split flags, the split flags,
+ *           then 3 bytes color of each node
+ * </pre>
+ *
+ * With an entropy coder each level is instead four coded blocks, each preceded by
+ * its symbol count and length: the split flag bytes, then the red, green and blue
+ * difference of each node color from the color of its parent. Children are close
+ * to the average of their parent, so the differences code well.
+ */
+public class ProgressiveCodec {
+
+    /**
+     * Encodes the tree under root level by level.
+     *
+     * @param nodes    the nodes of the tree
+     * @param root     the root of the tree, covering the whole image
+     * @param maxDepth the maximum depth the tree was built with
+     * @param coder    the entropy coder for the flags and colors, or null
+     * @return the encoded tree, ready to be read
+     */
+    public static ByteBuffer encode(NodeArena nodes, int root, int maxDepth, EntropyCoder coder) {
+        ArrayList<byte[]> levels = new ArrayList<>();
+        // the nodes of the current level and the colors of their parents
+        IntList level = new IntList();
+        IntList parentColors = new IntList();
+        if (!nodes.isEmpty(root)) {
+            level.add(root);
+            parentColors.add(0);
+        }
+        for (int depth = 0; level.size > 0; depth++) {
+            BitWriter flags = new BitWriter();
+            IntList nextLevel = new IntList();
+            IntList nextParentColors = new IntList();
+            for (int i = 0; i < level.size; i++) {
+                int node = level.values[i];
+                if (TreeCodec.canSplit(nodes.getWidth(node), nodes.getHeight(node), depth, maxDepth)) {
+                    flags.write(nodes.isLeaf(node) ? 0 : 1);
+                }
+                int first = nodes.getFirstChild(node);
+                for (int child = first; child < first + nodes.getChildCount(node); child++) {
+                    if (!nodes.isEmpty(child)) {
+                        nextLevel.add(child);
+                        nextParentColors.add(nodes.getColor(node));
+                    }
+                }
+            }
+            levels.add(encodeLevel(flags, nodes, level, parentColors, coder));
+            level = nextLevel;
+            parentColors = nextParentColors;
+        }
+
+        int size = 4 + levels.size() * 4;
+        for (byte[] bytes : levels) {
+            size += bytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(levels.size());
+        for (byte[] bytes : levels) {
+            buffer.putInt(bytes.length);
+        }
+        for (byte[] bytes : levels) {
+            buffer.put(bytes);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static byte[] encodeLevel(BitWriter flags, NodeArena nodes, IntList level, IntList parentColors,
+            EntropyCoder coder) {
+        int count = level.size;
+        if (coder == null) {
+            ByteBuffer bytes = ByteBuffer.allocate(4 + flags.byteLength() + count * 3);
+            bytes.putInt(flags.byteLength());
+            flags.writeTo(bytes);
+            for (int i = 0; i < count; i++) {
+                int color = nodes.getColor(level.values[i]);
+                bytes.put((byte) (color >> 16));
+                bytes.put((byte) (color >> 8));
+                bytes.put((byte) color);
+            }
+            return bytes.array();
+        }
+        byte[][] streams = { flags.toByteArray(), new byte[count], new byte[count], new byte[count] };
+        for (int i = 0; i < count; i++) {
+            int color = nodes.getColor(level.values[i]);
+            int parent = parentColors.values[i];
+            streams[1][i] = (byte) ((color >> 16) - (parent >> 16));
+            streams[2][i] = (byte) (((color >> 8) & 0xFF) - ((parent >> 8) & 0xFF));
+            streams[3][i] = (byte) ((color & 0xFF) - (parent & 0xFF));
+        }
+        byte[][] blocks = new byte[streams.length][];
+        int size = 0;
+        for (int i = 0; i < streams.length; i++) {
+            blocks[i] = coder.encode(streams[i]);
+            size += 8 + blocks[i].length;
+        }
+        ByteBuffer bytes = ByteBuffer.allocate(size);
+        for (int i = 0; i < streams.length; i++) {
+            bytes.putInt(streams[i].length);
+            bytes.putInt(blocks[i].length);
+            bytes.put(blocks[i]);
+        }
+        return bytes.array();
+    }
+
+    // returns the number of leafs of the tree under node that cover any pixels
+    public static int leafCount(NodeArena nodes, int node) {
+        if (nodes.isEmpty(node)) {
+            return 0;
+        }
+        if (nodes.isLeaf(node)) {
+            return 1;
+        }
+        int count = 0;
+        int first = nodes.getFirstChild(node);
+        for (int child = first; child < first + nodes.getChildCount(node); child++) {
+            count += leafCount(nodes, child);
+        }
+        return count;
+    }
+
+    /**
+     * Decodes the levels of an encoded tree down to a depth. Nodes at that depth
+     * are handed to the visitor as leafs with the average color of their region.
+     *
+     * @param data     the encoded tree, read from its position
+     * @param width    the width of the image
+     * @param height   the height of the image
+     * @param maxDepth the maximum depth the tree was built with
+     * @param coder    the entropy coder the tree was encoded with, or null
+     * @param depth    the deepest level to decode, 0 paints the average color of
+     *                 the whole image
+     * @param visitor  receives the leafs that cover any pixels, level by level
+     * @throws IOException if the encoded tree is corrupt
+     */
+    public static void decode(ByteBuffer data, int width, int height, int maxDepth, EntropyCoder coder,
+            int depth, LeafVisitor visitor) throws IOException {
+        int start = data.position();
+        if (start + 4 > data.limit()) {
+            throw new IOException("Encoded tree is truncated");
+        }
+        int levelCount = data.getInt(start);
+        if (levelCount < 0 || start + 4 + (long) levelCount * 4 > data.limit()) {
+            throw new IOException("Encoded tree is truncated");
+        }
+        int position = start + 4 + levelCount * 4;
+        // no block holds more symbols than a few per pixel, see TreeCodec.reader
+        long maxCount = 8L * width * height + (1 << 20);
+
+        // the regions of the current level and the colors of their parents
+        Regions regions = new Regions();
+        if (width > 0 && height > 0) {
+            regions.add(0, 0, width, height, 0);
+        }
+        for (int level = 0; regions.count > 0; level++) {
+            if (level == levelCount) {
+                throw new IOException("Encoded tree is missing level " + level);
+            }
+            int length = data.getInt(start + 4 + level * 4);
+            if (length < 0 || position + (long) length > data.limit()) {
+                throw new IOException("Encoded tree is truncated");
+            }
+            BitReader flags;
+            int[] colors = new int[regions.count];
+            if (coder != null) {
+                byte[][] streams = new byte[4][];
+                int blockPosition = position;
+                for (int i = 0; i < streams.length; i++) {
+                    if (blockPosition + 8 > position + length) {
+                        throw new IOException("Encoded tree is truncated");
+                    }
+                    int count = data.getInt(blockPosition);
+                    int blockLength = data.getInt(blockPosition + 4);
+                    if (count < 0 || blockLength < 0 || blockLength > position + length - blockPosition - 8) {
+                        throw new IOException("Encoded tree is truncated");
+                    }
+                    if (count > maxCount) {
+                        throw new IOException("Encoded tree has " + count + " symbols in one block");
+                    }
+                    streams[i] = coder.decode(data, blockPosition + 8, blockLength, count);
+                    blockPosition += 8 + blockLength;
+                }
+                for (int i = 1; i < 4; i++) {
+                    if (streams[i].length != regions.count) {
+                        throw new IOException("Level " + level + " has the wrong number of colors");
+                    }
+                }
+                flags = new BitReader(ByteBuffer.wrap(streams[0]), 0, streams[0].length);
+                for (int i = 0; i < regions.count; i++) {
+                    int parent = regions.parentColors[i];
+                    int r = ((parent >> 16) + streams[1][i]) & 0xFF;
+                    int g = (((parent >> 8) & 0xFF) + streams[2][i]) & 0xFF;
+                    int b = ((parent & 0xFF) + streams[3][i]) & 0xFF;
+                    colors[i] = (r << 16) | (g << 8) | b;
+                }
+            } else {
+                if (length < 4) {
+                    throw new IOException("Encoded tree is truncated");
+                }
+                int flagLength = data.getInt(position);
+                if (flagLength < 0 || flagLength > length - 4 - (long) regions.count * 3) {
+                    throw new IOException("Level " + level + " has the wrong number of colors");
+                }
+                int colorStart = position + 4 + flagLength;
+                flags = new BitReader(data, position + 4, flagLength);
+                for (int i = 0; i < regions.count; i++) {
+                    int index = colorStart + i * 3;
+                    colors[i] = ((data.get(index) & 0xFF) << 16) | ((data.get(index + 1) & 0xFF) << 8)
+                            | (data.get(index + 2) & 0xFF);
+                }
+            }
+
+            Regions next = new Regions();
+            try {
+                for (int i = 0; i < regions.count; i++) {
+                    int x = regions.xs[i];
+                    int y = regions.ys[i];
+                    int w = regions.widths[i];
+                    int h = regions.heights[i];
+                    boolean split = TreeCodec.canSplit(w, h, level, maxDepth) && flags.read() == 1;
+                    if (!split || level == depth) {
+                        visitor.visit(x, y, w, h, colors[i]);
+                        continue;
+                    }
+                    // the same split as QuadTree.divide
+                    int halfWidth = w / 2;
+                    int halfHeight = h / 2;
+                    next.add(x, y, halfWidth, halfHeight, colors[i]);
+                    next.add(x + halfWidth, y, w - halfWidth, halfHeight, colors[i]);
+                    next.add(x, y + halfHeight, halfWidth, h - halfHeight, colors[i]);
+                    next.add(x + halfWidth, y + halfHeight, w - halfWidth, h - halfHeight, colors[i]);
+                }
+            } catch (IllegalStateException e) {
+                throw new IOException("Encoded tree does not match the image size", e);
+            }
+            position += length;
+            regions = next;
+        }
+    }
+
+    // IntList is a growable list of ints
+    private static class IntList {
+        int[] values = new int[16];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    // Regions is a growable list of the regions of one level
+    private static class Regions {
+        int[] xs = new int[16];
+        int[] ys = new int[16];
+        int[] widths = new int[16];
+        int[] heights = new int[16];
+        int[] parentColors = new int[16];
+        int count;
+
+        // adds a region unless it is empty
+        void add(int x, int y, int width, int height, int parentColor) {
+            if (width == 0 || height == 0) {
+                return;
+            }
+            if (count == xs.length) {
+                xs = Arrays.copyOf(xs, count * 2);
+                ys = Arrays.copyOf(ys, count * 2);
+                widths = Arrays.copyOf(widths, count * 2);
+                heights = Arrays.copyOf(heights, count * 2);
+                parentColors = Arrays.copyOf(parentColors, count * 2);
+            }
+            xs[count] = x;
+            ys[count] = y;
+            widths[count] = width;
+            heights[count] = height;
+            parentColors[count] = parentColor;
+            count++;
+        }
+    }
+}
@@ -1,146 +1,370 @@
 package src;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+import lib.PixelBuffer;
 
 public class QuadTree {
 
-        // the maximum depth of the quad tree, the tree will not go deeper than this,
-        // edit this to change the depth
-        private static int MAX_DEPTH = 200;
-        private static int PERCENTAGE = 0;
-        private Node root;
+        // regions with at most this many pixels find their channel range by scanning
+        // their pixels, larger regions combine the ranges of their children instead
+        private static final int SCAN_AREA = 64;
+        // a sensible region size above which parallel builds split into tasks
+        public static final int DEFAULT_PARALLEL_CUTOFF = 128 * 128;
+        private final CompressionConfig config;
+        // the maximum depth of the quad tree, the tree will not go deeper than this
+        private final int maxDepth;
+        private final int percentage;
+        private final double mergeError;
+        private final SplitCriterion criterion;
+        // true if split nodes are cut in two wherever the error is least instead of
+        // being divided into four quadrants
+        private final boolean binary;
+        // a binary tree cuts a region while it is larger than the leafs of a quad tree
+        // at maxDepth, see TreeCodec.canCut
+        private final int minWidth;
+        private final int minHeight;
+        // regions with at least parallelCutoff pixels build their four children as
+        // separate fork join tasks, a cutoff of 0 builds the whole tree on one thread
+        private final int parallelCutoff;
+        private final PixelBuffer pixels;
+        private final SummedAreaTable table;
+        // the nodes of the tree, see NodeArena
+        private final NodeArena nodes;
+        private final int root;
 
         // builds the quad tree from the pixels, maxDepth is the maximum depth of the
         // tree
-        public QuadTree(int[][][] pixels, int maxDepth, int percentage) {
-            MAX_DEPTH = maxDepth;
-            PERCENTAGE = percentage;
-            root = buildQuadTree(pixels, 0, 0, pixels.length, pixels[0].length, 0);
+        public QuadTree(PixelBuffer pixels, int maxDepth, int percentage) {
+            this(pixels, new CompressionConfig(maxDepth, percentage));
+        }
+
+        // builds the quad tree in parallel on the common fork join pool, splitting
+        // every region of at least parallelCutoff pixels into tasks. The tree is the
+        // same as the one built on a single thread
+        public QuadTree(PixelBuffer pixels, int maxDepth, int percentage, int parallelCutoff) {
+            this(pixels, new CompressionConfig(maxDepth, percentage, parallelCutoff));
+        }
+
+        // builds the quad tree from the pixels with the settings in config. Every
+        // setting is kept in the tree itself, so trees with different settings can be
+        // built at the same time
+        public QuadTree(PixelBuffer pixels, CompressionConfig config) {
+            this(pixels, config, new NodeArena());
+        }
+
+        // builds the quad tree into nodes, which is cleared first. The tree is only
+        // valid until nodes is cleared again, so reusing one arena for a batch of
+        // images saves allocating the nodes of each
+        public QuadTree(PixelBuffer pixels, CompressionConfig config, NodeArena nodes) {
+            this.config = config;
+            this.binary = config.isBinarySplits();
+            this.maxDepth = config.getMaxDepth();
+            this.minWidth = TreeCodec.leafSide(pixels.getWidth(), maxDepth);
+            this.minHeight = TreeCodec.leafSide(pixels.getHeight(), maxDepth);
+            this.percentage = config.getSimilarityPercent();
+            this.mergeError = config.getMergeError();
+            this.criterion = SplitCriterion.forId(config.getSplitCriterion());
+            this.parallelCutoff = config.getParallelCutoff();
+            this.pixels = pixels;
+            this.table = new SummedAreaTable(pixels, criterion.needsLuma());
+            this.nodes = nodes;
+            nodes.clear();
+            BuildTask task = new BuildTask(nodes, 0, 0, pixels.getWidth(), pixels.getHeight(), 0, false);
+            if (parallelCutoff > 0) {
+                ForkJoinPool.commonPool().invoke(task);
+            } else {
+                task.compute();
+            }
+            root = 0;
         }
 
         // builds the quad tree from the pixels, with a default max depth of 200
         // (probably lossless)
-        private QuadTree(int[][][] pixels) {
-
-            root = buildQuadTree(pixels, 0, 0, pixels.length, pixels[0].length, 0);
-        }
-
-        // builds the quad tree recursively
-        private Node buildQuadTree(int[][][] pixels, int x, int y, int width, int height, int depth) {
-            Node node = new Node(x, y, width, height);
-            node.setColor(pixels);
-            if (depth < MAX_DEPTH) {
-                boolean isLeaf = true;
-
-                for (int i = x; i < x + width; i++) {
-                    for (int j = y; j < y + height; j++) {
-                        // if the color of the pixel is not within PERCENTAGE% of the average color of
-                        // the node, then the node is not a leaf
-                        if (Math.abs((pixels[i][j][0] & 0xff) - ((node.color >> 16) & 0xff)) > ((node.color >> 16)
-                                & 0xff) * PERCENTAGE / 100) {
-                            isLeaf = false;
-                            break;
-                        }
-                    }
-                    if (!isLeaf) {
-                        break;
-                    }
+        private QuadTree(PixelBuffer pixels) {
+            this(pixels, CompressionConfig.DEFAULT);
+        }
+
+        // builds the quad tree recursively into node, which is a leaf in nodes. The
+        // average color of every node comes from the summed area table. A criterion
+        // that only needs the table is tested before any children are built. For one
+        // that needs the range of the node, large regions take it from their children
+        // and small regions scan their pixels, so no pixel is summed or scanned more
+        // than a few times. needRange is set when the parent needs the range of this
+        // node
+        private void buildQuadTree(NodeArena nodes, int node, int x, int y, int width, int height, int depth,
+                boolean needRange) {
+            nodes.set(node, x, y, width, height);
+            nodes.setColor(node, table);
+            // a binary tree cuts a region while it is larger than the leafs of a quad
+            // tree at maxDepth, and no deeper than TreeCodec.MAX_CUT_DEPTH
+            boolean splittable = binary ? TreeCodec.canCut(width, height, depth, minWidth, minHeight)
+                    : depth < maxDepth;
+            if (!criterion.needsRange()) {
+                if (splittable && !criterion.isUniform(nodes, node, table, percentage)) {
+                    split(nodes, node, depth + 1, false);
+                }
+            } else if (splittable && width * height > SCAN_AREA) {
+                // the children are built first so that the range of this node can be
+                // combined from theirs, they are dropped again if the node is a leaf.
+                // They and everything under them were allocated last, so the arena
+                // takes their space back
+                split(nodes, node, depth + 1, true);
+                nodes.setRangeFromChildren(node);
+                if (criterion.isUniform(nodes, node, table, percentage)) {
+                    nodes.merge(node);
+                    nodes.truncate(nodes.firstChild[node]);
+                }
+            } else if (needRange || (splittable && criterion.getId() != SplitCriterion.RED_PERCENT)) {
+                nodes.setRange(node, pixels);
+                if (splittable && !criterion.isUniform(nodes, node, table, percentage)) {
+                    split(nodes, node, depth + 1, false);
+                }
+            } else if (splittable && !scanUniform(nodes, node)) {
+                split(nodes, node, depth + 1, false);
+            }
+        }
+
+        // splits the node into four quadrants, or cuts it in two with binary splits
+        private void split(NodeArena nodes, int node, int depth, boolean needRange) {
+            if (binary) {
+                cut(nodes, node, depth, needRange);
+            } else {
+                divide(nodes, node, depth, needRange);
+            }
+        }
+
+        // cuts the node in two at the position with the least total squared error,
+        // trying every column and then every row. Of equal positions the one nearest
+        // the middle of its side wins, and a column wins over a row, so a flat region
+        // is halved rather than peeled a strip at a time. A cut follows the edges in
+        // the image and never leaves an empty part
+        public void cut(NodeArena nodes, int node, int depth, boolean needRange) {
+            int x = nodes.x[node];
+            int y = nodes.y[node];
+            int width = nodes.width[node];
+            int height = nodes.height[node];
+            double best = Double.MAX_VALUE;
+            int bestCut = 0;
+            // how far the best cut is from the middle of its side, doubled
+            int bestOffset = Integer.MAX_VALUE;
+            boolean cutWidth = true;
+            for (int cut = 1; cut < width; cut++) {
+                double error = table.squaredError(x, y, cut, height)
+                        + table.squaredError(x + cut, y, width - cut, height);
+                int offset = Math.abs(2 * cut - width);
+                if (error < best || (error == best && offset < bestOffset)) {
+                    best = error;
+                    bestCut = cut;
+                    bestOffset = offset;
+                }
+            }
+            for (int cut = 1; cut < height; cut++) {
+                double error = table.squaredError(x, y, width, cut)
+                        + table.squaredError(x, y + cut, width, height - cut);
+                int offset = Math.abs(2 * cut - height);
+                if (error < best || (error == best && !cutWidth && offset < bestOffset)) {
+                    best = error;
+                    bestCut = cut;
+                    bestOffset = offset;
+                    cutWidth = false;
+                }
+            }
+
+            int[][] parts = cutWidth
+                    ? new int[][] { { x, y, bestCut, height }, { x + bestCut, y, width - bestCut, height } }
+                    : new int[][] { { x, y, width, bestCut }, { x, y + bestCut, width, height - bestCut } };
+            int first = nodes.split(node, 2);
+            if (parallelCutoff > 0 && width * height >= parallelCutoff) {
+                BuildTask[] tasks = new BuildTask[2];
+                for (int i = 0; i < 2; i++) {
+                    tasks[i] = new BuildTask(new NodeArena(), parts[i][0], parts[i][1], parts[i][2], parts[i][3],
+                            depth, needRange);
                 }
-                if (!isLeaf) {
-                    divide(node, pixels, depth + 1);
+                ForkJoinTask.invokeAll(tasks);
+                for (int i = 0; i < 2; i++) {
+                    nodes.adopt(tasks[i].join(), first + i);
                 }
+                return;
+            }
+            for (int i = 0; i < 2; i++) {
+                buildQuadTree(nodes, first + i, parts[i][0], parts[i][1], parts[i][2], parts[i][3], depth,
+                        needRange);
             }
-            return node;
+        }
+
+        // the RedPercentCriterion test for a node without a range, stopping at the
+        // first pixel that is out of tolerance
+        private boolean scanUniform(NodeArena nodes, int node) {
+            int average = (nodes.color[node] >> 16) & 0xff;
+            int tolerance = average * percentage / 100;
+            int x = nodes.x[node];
+            int y = nodes.y[node];
+            for (int j = y; j < y + nodes.height[node]; j++) {
+                for (int i = x; i < x + nodes.width[node]; i++) {
+                    if (Math.abs(pixels.getRed(i, j) - average) > tolerance) {
+                        return false;
+                    }
+                }
+            }
+            return true;
         }
 
         // divides the node into four children
-        public void divide(Node node, int[][][] pixels, int depth) {
-            node.children = new Node[4];
-            int halfWidth = node.width / 2;
-            int halfHeight = node.height / 2;
-            int remainderWidth = node.width - halfWidth;
-            int remainderHeight = node.height - halfHeight;
+        public void divide(NodeArena nodes, int node, int depth, boolean needRange) {
+            int x = nodes.x[node];
+            int y = nodes.y[node];
+            int width = nodes.width[node];
+            int height = nodes.height[node];
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+            int remainderWidth = width - halfWidth;
+            int remainderHeight = height - halfHeight;
+            int first = nodes.split(node, 4);
             // For odd numbered sizes, the first child will be one pixel larger than the
             // others
-            node.children[0] = buildQuadTree(pixels, node.x, node.y, halfWidth, halfHeight, depth);
-            node.children[1] = buildQuadTree(pixels, node.x + halfWidth, node.y, remainderWidth, halfHeight, depth);
-            node.children[2] = buildQuadTree(pixels, node.x, node.y + halfHeight, halfWidth, remainderHeight, depth);
-            node.children[3] = buildQuadTree(pixels, node.x + halfWidth, node.y + halfHeight, remainderWidth,
-                    remainderHeight, depth);
+            if (parallelCutoff > 0 && width * height >= parallelCutoff) {
+                // the quadrants are independent, each child is built into an arena of its
+                // own and copied into its slot, so the tree does not depend on which task
+                // finishes first
+                BuildTask[] tasks = {
+                        new BuildTask(new NodeArena(), x, y, halfWidth, halfHeight, depth, needRange),
+                        new BuildTask(new NodeArena(), x + halfWidth, y, remainderWidth, halfHeight, depth,
+                                needRange),
+                        new BuildTask(new NodeArena(), x, y + halfHeight, halfWidth, remainderHeight, depth,
+                                needRange),
+                        new BuildTask(new NodeArena(), x + halfWidth, y + halfHeight, remainderWidth,
+                                remainderHeight, depth, needRange) };
+                ForkJoinTask.invokeAll(tasks);
+                for (int i = 0; i < 4; i++) {
+                    nodes.adopt(tasks[i].join(), first + i);
+                }
+                return;
+            }
+            buildQuadTree(nodes, first, x, y, halfWidth, halfHeight, depth, needRange);
+            buildQuadTree(nodes, first + 1, x + halfWidth, y, remainderWidth, halfHeight, depth, needRange);
+            buildQuadTree(nodes, first + 2, x, y + halfHeight, halfWidth, remainderHeight, depth, needRange);
+            buildQuadTree(nodes, first + 3, x + halfWidth, y + halfHeight, remainderWidth, remainderHeight, depth,
+                    needRange);
+        }
+
+        // BuildTask builds the subtree of one region as node 0 of its arena
+        private class BuildTask extends RecursiveTask<NodeArena> {
+            private static final long serialVersionUID = 1L;
+
+            private final NodeArena arena;
+            private final int x;
+            private final int y;
+            private final int width;
+            private final int height;
+            private final int depth;
+            private final boolean needRange;
+
+            BuildTask(NodeArena arena, int x, int y, int width, int height, int depth, boolean needRange) {
+                this.arena = arena;
+                this.x = x;
+                this.y = y;
+                this.width = width;
+                this.height = height;
+                this.depth = depth;
+                this.needRange = needRange;
+            }
+
+            @Override
+            protected NodeArena compute() {
+                buildQuadTree(arena, arena.allocate(1), x, y, width, height, depth, needRange);
+                return arena;
+            }
         }
 
-        public Node getRoot() {
+        // the index of the root in getNodes, covering the whole image
+        public int getRoot() {
             return root;
         }
 
+        public NodeArena getNodes() {
+            return nodes;
+        }
+
+        public CompressionConfig getConfig() {
+            return config;
+        }
+
+        // the summed area table of the pixels the tree was built from
+        SummedAreaTable getTable() {
+            return table;
+        }
+
+        // returns every leaf of the tree in tree order, including the ones that cover
+        // no pixels
         public ArrayList<simpleNode> getLeafs() {
-            return convertLeafs(findLeafs(root, new ArrayList<Node>()));
+            return findLeafs(root, new ArrayList<simpleNode>());
         }
 
-        public ArrayList<Node> findLeafs(Node node, ArrayList<Node> leafs) {
-            if (node.isLeaf()) {
-                leafs.add(node);
+        public ArrayList<simpleNode> findLeafs(int node, ArrayList<simpleNode> leafs) {
+            if (nodes.isLeaf(node)) {
+                leafs.add(new simpleNode(nodes.x[node], nodes.y[node], nodes.width[node], nodes.height[node],
+                        nodes.color[node]));
             } else {
-                for (Node child : node.children) {
+                int first = nodes.firstChild[node];
+                for (int child = first; child < first + nodes.childCount[node]; child++) {
                     findLeafs(child, leafs);
                 }
             }
             return leafs;
         }
 
-        // converts arraylist of nodes to arrayList of simplenodes
-        public ArrayList<simpleNode> convertLeafs(ArrayList<Node> leafs) {
-            ArrayList<simpleNode> simpleLeafs = new ArrayList<simpleNode>();
-            for (Node leaf : leafs) {
-                simpleLeafs.add(new simpleNode(leaf.x, leaf.y, leaf.width, leaf.height, leaf.color));
-            }
-            return simpleLeafs;
-        }
-
-        public void mergeSimilarNodes(Node node) {
-            if (node.isLeaf()) {
+        // mergeSimilarNodes turns every node whose children are all leafs, and similar
+        // enough, into a leaf. The children are merged before their parent, so one
+        // call cascades merges all the way up and a second call finds nothing left
+        // to merge. Every node is visited once and the result does not depend on
+        // anything but the tree
+        public void mergeSimilarNodes(int node) {
+            if (nodes.isLeaf(node)) {
                 return;
             }
 
-            mergeSimilarNodes(node.children[0]);
-            mergeSimilarNodes(node.children[1]);
-            mergeSimilarNodes(node.children[2]);
-            mergeSimilarNodes(node.children[3]);
+            // four children, or two with binary splits
+            int first = nodes.firstChild[node];
+            int last = first + nodes.childCount[node];
+            for (int child = first; child < last; child++) {
+                mergeSimilarNodes(child);
+            }
+            for (int child = first; child < last; child++) {
+                if (!nodes.isLeaf(child)) {
+                    return;
+                }
+            }
 
-            if (!node.children[0].isLeaf() || !node.children[1].isLeaf() || !node.children[2].isLeaf()
-                    || !node.children[3].isLeaf()) {
-                return;
+            if (mergeError > 0 ? withinMergeError(node) : similarChildren(node)) {
+                nodes.merge(node);
             }
+        }
 
-            int color0 = node.children[0].color;
-            int color1 = node.children[1].color;
-            int color2 = node.children[2].color;
-            int color3 = node.children[3].color;
-
-            // if the color of the child nodes are within PERCENTAGE% of the average color
-            // of
-            // the node, then the node is a leaf
-            if (Math.abs(((color0 >> 16) & 0xff) - ((node.color >> 16) & 0xff)) <= ((node.color >> 16) & 0xff)
-                    * PERCENTAGE / 100
-                    && Math.abs(((color1 >> 16) & 0xff) - ((node.color >> 16) & 0xff)) <= ((node.color >> 16) & 0xff)
-                            * PERCENTAGE / 100
-                    && Math.abs(((color2 >> 16) & 0xff) - ((node.color >> 16) & 0xff)) <= ((node.color >> 16) & 0xff)
-                            * PERCENTAGE / 100
-                    && Math.abs(((color3 >> 16) & 0xff) - ((node.color >> 16) & 0xff)) <= ((node.color >> 16) & 0xff)
-                            * PERCENTAGE / 100
-                    && Math.abs(((color0 >> 8) & 0xff) - ((node.color >> 8) & 0xff)) <= ((node.color >> 8) & 0xff)
-                            * PERCENTAGE / 100
-                    && Math.abs(((color1 >> 8) & 0xff) - ((node.color >> 8) & 0xff)) <= ((node.color >> 8) & 0xff)
-                            * PERCENTAGE / 100
-                    && Math.abs(((color2 >> 8) & 0xff) - ((node.color >> 8) & 0xff)) <= ((node.color >> 8) & 0xff)
-                            * PERCENTAGE / 100
-                    && Math.abs(((color3 >> 8) & 0xff) - ((node.color >> 8) & 0xff)) <= ((node.color >> 8) & 0xff)
-                            * PERCENTAGE / 100
-                    && Math.abs((color0 & 0xff) - (node.color & 0xff)) <= ((node.color & 0xff) * PERCENTAGE / 100)
-                    && Math.abs((color1 & 0xff) - (node.color & 0xff)) <= ((node.color & 0xff) * PERCENTAGE / 100)
-                    && Math.abs((color2 & 0xff) - (node.color & 0xff)) <= ((node.color & 0xff) * PERCENTAGE / 100)
-                    && Math.abs((color3 & 0xff) - (node.color & 0xff)) <= ((node.color & 0xff) * PERCENTAGE / 100)) {
-                node.children = null;
+        // a node may be merged if its pixels, not only its children, are close to
+        // its average: their mean squared error against it is at most mergeError
+        private boolean withinMergeError(int node) {
+            long error = table.squaredError(nodes.x[node], nodes.y[node], nodes.width[node], nodes.height[node],
+                    nodes.color[node]);
+            return error <= mergeError * nodes.width[node] * nodes.height[node];
+        }
+
+        // a node may be merged if the color of each of its children is within
+        // percentage% of its average color in every channel
+        private boolean similarChildren(int node) {
+            int color = nodes.color[node];
+            int first = nodes.firstChild[node];
+            for (int child = first; child < first + nodes.childCount[node]; child++) {
+                for (int shift = 16; shift >= 0; shift -= 8) {
+                    int average = (color >> shift) & 0xff;
+                    if (Math.abs(((nodes.color[child] >> shift) & 0xff) - average) > average * percentage / 100) {
+                        return false;
+                    }
+                }
             }
+            return true;
         }
     }
\ No newline at end of file
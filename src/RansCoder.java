@@ -0,0 +1,177 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Range asymmetric numeral system (rANS) coding of byte symbols, with a 32-bit
+ * state renormalized a byte at a time and symbol frequencies scaled to
+ * 2^SCALE_BITS. Unlike Huffman it can spend less than a bit on a very likely
+ * symbol, which suits the split flags and small colour deltas. The decoder finds
+ * each symbol with one lookup in a table of 2^SCALE_BITS slots.
+ *
+ * <pre>
+ * 32 bytes  bitmap of the symbols that occur, symbol 0 in the top bit of byte 0
+ * 2 bytes   scaled frequency of each symbol that occurs, in symbol order
+ * 4 bytes   final encoder state
+ * n bytes   renormalization bytes, in the order the decoder reads them
+ * </pre>
+ */
+public class RansCoder implements EntropyCoder {
+    static final int SCALE_BITS = 12;
+    static final int SCALE = 1 << SCALE_BITS;
+    // lower bound of the normalized state
+    private static final long LOWER_BOUND = 1L << 23;
+
+    @Override
+    public int getId() {
+        return RANS;
+    }
+
+    @Override
+    public byte[] encode(byte[] symbols) {
+        if (symbols.length == 0) {
+            return new byte[0];
+        }
+        long[] counts = new long[256];
+        for (byte symbol : symbols) {
+            counts[symbol & 0xFF]++;
+        }
+        int[] frequencies = normalize(counts, symbols.length);
+        int[] cumulative = cumulative(frequencies);
+
+        // the symbols are encoded last to first and the output grows downwards from
+        // the end of the buffer, so the decoder reads it forwards. No symbol emits
+        // more than 2 bytes
+        byte[] buffer = new byte[symbols.length * 2 + 4];
+        int position = buffer.length;
+        long state = LOWER_BOUND;
+        for (int i = symbols.length - 1; i >= 0; i--) {
+            int s = symbols[i] & 0xFF;
+            long frequency = frequencies[s];
+            long limit = ((LOWER_BOUND >>> SCALE_BITS) << 8) * frequency;
+            while (state >= limit) {
+                buffer[--position] = (byte) state;
+                state >>>= 8;
+            }
+            state = ((state / frequency) << SCALE_BITS) + (state % frequency) + cumulative[s];
+        }
+        for (int i = 0; i < 4; i++) {
+            buffer[--position] = (byte) state;
+            state >>>= 8;
+        }
+
+        int present = 0;
+        for (int frequency : frequencies) {
+            if (frequency > 0) {
+                present++;
+            }
+        }
+        int tableSize = 32 + present * 2;
+        byte[] out = new byte[tableSize + buffer.length - position];
+        int index = 32;
+        for (int s = 0; s < 256; s++) {
+            if (frequencies[s] > 0) {
+                out[s >>> 3] |= (byte) (0x80 >>> (s & 7));
+                out[index++] = (byte) (frequencies[s] >>> 8);
+                out[index++] = (byte) frequencies[s];
+            }
+        }
+        System.arraycopy(buffer, position, out, tableSize, buffer.length - position);
+        return out;
+    }
+
+    @Override
+    public byte[] decode(ByteBuffer data, int offset, int length, int count) throws IOException {
+        byte[] symbols = new byte[count];
+        if (count == 0) {
+            return symbols;
+        }
+        if (length < 36) {
+            throw new IOException("rANS block is truncated");
+        }
+        int[] frequencies = new int[256];
+        int index = offset + 32;
+        for (int s = 0; s < 256; s++) {
+            if ((data.get(offset + (s >>> 3)) & (0x80 >>> (s & 7))) != 0) {
+                frequencies[s] = ((data.get(index) & 0xFF) << 8) | (data.get(index + 1) & 0xFF);
+                index += 2;
+            }
+        }
+        int[] cumulative = cumulative(frequencies);
+        if (cumulative[256] != SCALE) {
+            throw new IOException("rANS frequencies do not add up to " + SCALE);
+        }
+        // slot i of the table holds the symbol whose range covers i
+        byte[] slots = new byte[SCALE];
+        for (int s = 0; s < 256; s++) {
+            Arrays.fill(slots, cumulative[s], cumulative[s + 1], (byte) s);
+        }
+
+        int end = offset + length;
+        if (index + 4 > end) {
+            throw new IOException("rANS block is truncated");
+        }
+        long state = 0;
+        for (int i = 0; i < 4; i++) {
+            state = (state << 8) | (data.get(index++) & 0xFF);
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = (int) (state & (SCALE - 1));
+            int s = slots[slot] & 0xFF;
+            symbols[i] = (byte) s;
+            state = frequencies[s] * (state >>> SCALE_BITS) + slot - cumulative[s];
+            while (state < LOWER_BOUND && index < end) {
+                state = (state << 8) | (data.get(index++) & 0xFF);
+            }
+        }
+        return symbols;
+    }
+
+    // scales the counts so they add up to SCALE, keeping every symbol that occurs
+    // at a frequency of at least 1
+    static int[] normalize(long[] counts, long total) {
+        int[] frequencies = new int[256];
+        int sum = 0;
+        for (int s = 0; s < 256; s++) {
+            if (counts[s] > 0) {
+                frequencies[s] = (int) Math.max(1, counts[s] * SCALE / total);
+                sum += frequencies[s];
+            }
+        }
+        // hand the rounding error to the most frequent symbols, which are hurt the
+        // least by it
+        while (sum != SCALE) {
+            int largest = 0;
+            for (int s = 1; s < 256; s++) {
+                if (frequencies[s] > frequencies[largest]) {
+                    largest = s;
+                }
+            }
+            if (sum < SCALE) {
+                frequencies[largest] += SCALE - sum;
+                sum = SCALE;
+            } else {
+                int excess = Math.min(sum - SCALE, frequencies[largest] - 1);
+                if (excess == 0) {
+                    // every symbol is at 1 already, which cannot happen with 256
+                    // symbols and a scale of 4096
+                    throw new IllegalStateException("Too many symbols for the rANS scale");
+                }
+                frequencies[largest] -= excess;
+                sum -= excess;
+            }
+        }
+        return frequencies;
+    }
+
+    // cumulative[s] is the sum of the frequencies of the symbols before s
+    private static int[] cumulative(int[] frequencies) {
+        int[] cumulative = new int[257];
+        for (int s = 0; s < 256; s++) {
+            cumulative[s + 1] = cumulative[s] + frequencies[s];
+        }
+        return cumulative;
+    }
+}
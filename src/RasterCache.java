@@ -0,0 +1,162 @@
+package src;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the decoded rasters of recently read compressed files, up to a total
+ * number of bytes, and drops the least recently used ones first. A raster is
+ * found by the path of its file and only used while the file keeps the length
+ * and modification time it had when it was decoded, so a file that is written
+ * again is decoded again. A writer that may keep both, such as a same-size
+ * upload within the resolution of the file clock, calls invalidate after it
+ * replaces the file. The rasters are shared between callers and must not be
+ * changed.
+ *
+ * Two threads that miss on the same file at once both decode it, and the second
+ * replaces the first in the cache, which costs time but is never wrong. A raster
+ * whose decode began before an invalidate is returned but not cached.
+ */
+public class RasterCache {
+
+    // Loader decodes a compressed file into a TYPE_INT_RGB raster
+    public interface Loader {
+        BufferedImage load(File file) throws IOException;
+    }
+
+    // Entry is a raster and the file version it was decoded from
+    private static class Entry {
+        final BufferedImage image;
+        final long lastModified;
+        final long length;
+        final long bytes;
+
+        Entry(BufferedImage image, long lastModified, long length) {
+            this.image = image;
+            this.lastModified = lastModified;
+            this.length = length;
+            // TYPE_INT_RGB rasters hold an int per pixel
+            this.bytes = (long) image.getWidth() * image.getHeight() * 4;
+        }
+    }
+
+    private final long capacity;
+    // in access order, so the first entry is the least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size;
+    // bumped by invalidate, so a decode that raced it is not cached
+    private long generation;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param capacity the most bytes of raster the cache holds, a raster larger
+     *                 than this is decoded every time
+     */
+    public RasterCache(long capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("capacity must not be negative");
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Returns the decoded raster of a file, from the cache if the file has not
+     * changed since it was cached, otherwise from loader.
+     *
+     * @param file   the compressed file
+     * @param loader decodes the file on a miss
+     * @return the raster, which must not be changed
+     * @throws IOException if the file cannot be read or decoded
+     */
+    public BufferedImage get(File file, Loader loader) throws IOException {
+        String key = file.getAbsolutePath();
+        long started;
+        synchronized (this) {
+            started = generation;
+        }
+        long lastModified = file.lastModified();
+        long length = file.length();
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && entry.lastModified == lastModified && entry.length == length) {
+                hits.increment();
+                return entry.image;
+            }
+        }
+        misses.increment();
+        Entry entry = new Entry(loader.load(file), lastModified, length);
+        if (entry.bytes <= capacity) {
+            put(key, entry, started);
+        }
+        return entry.image;
+    }
+
+    private synchronized void put(String key, Entry entry, long started) {
+        if (started != generation) {
+            return;
+        }
+        Entry old = entries.put(key, entry);
+        if (old != null) {
+            size -= old.bytes;
+        }
+        size += entry.bytes;
+        Iterator<Entry> oldest = entries.values().iterator();
+        while (size > capacity) {
+            Entry evicted = oldest.next();
+            oldest.remove();
+            size -= evicted.bytes;
+            evictions.increment();
+        }
+    }
+
+    /**
+     * Drops the raster of a file that was just replaced, and keeps any decode
+     * already running from caching what it read.
+     *
+     * @param file the compressed file
+     */
+    public synchronized void invalidate(File file) {
+        generation++;
+        Entry old = entries.remove(file.getAbsolutePath());
+        if (old != null) {
+            size -= old.bytes;
+        }
+    }
+
+    // drops every raster
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    // the bytes of raster held now
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        return entries.size();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,202 @@
+package src;
+
+import java.util.ArrayList;
+import java.util.PriorityQueue;
+import java.util.function.ToIntFunction;
+
+/**
+ * Prunes a built quad tree down to a target file size or PSNR, so the tree only
+ * has to be built once per image instead of once per guess at maxDepth and
+ * similarityPercent. The tree is built in full first, see fullTree: every region
+ * that is not flat is split down to maxDepth, so the pruning rather than
+ * similarityPercent picks the leafs. The tree cannot get finer than maxDepth, so
+ * a target PSNR above what maxDepth reaches is not met.
+ *
+ * A node whose children are all leafs can be merged into a single leaf. Merging
+ * it adds to the squared error of the image and saves the leafs of all but one
+ * child. The squared error of any region against any color follows from the sums
+ * of the summed area table, so every candidate is priced in constant time. The
+ * candidates are kept in a priority queue by added error per saved leaf, and the
+ * cheapest is merged first. Merging the last split child of a node makes that
+ * node a candidate in turn.
+ */
+class RateControl {
+    private final SummedAreaTable table;
+    private final NodeArena nodes;
+    private final PriorityQueue<Candidate> queue = new PriorityQueue<>();
+    // the squared error of the image, summed over the channels of every pixel
+    private long error;
+    // the number of leafs that cover any pixels
+    private int leafCount;
+
+    // Candidate is a node that is split, and can be merged once its children are
+    private static class Candidate implements Comparable<Candidate> {
+        final int node;
+        final Candidate parent;
+        // the number of children that are still split
+        int splitChildren;
+        // the squared error merging the node adds and the leafs it saves, set once
+        // all children are leafs
+        long increase;
+        int saved;
+
+        Candidate(int node, Candidate parent) {
+            this.node = node;
+            this.parent = parent;
+        }
+
+        @Override
+        public int compareTo(Candidate other) {
+            // increase / saved against other.increase / other.saved, without division
+            return Long.compare(increase * other.saved, other.increase * saved);
+        }
+    }
+
+    private RateControl(QuadTree quadtree) {
+        this.table = quadtree.getTable();
+        this.nodes = quadtree.getNodes();
+        collect(quadtree.getRoot(), null);
+    }
+
+    /**
+     * Returns the settings a tree that is pruned to the targets of config is built
+     * with: similarity 0 and no merge error, so the tree is split wherever it is
+     * not flat. Settings without a target are returned as they are.
+     *
+     * @param config the settings holding the targets
+     * @return the settings to build the tree with
+     */
+    static CompressionConfig fullTree(CompressionConfig config) {
+        if (config.getTargetSize() == 0 && config.getTargetPsnr() == 0) {
+            return config;
+        }
+        return config.withSimilarityPercent(0).withMergeError(0);
+    }
+
+    /**
+     * Prunes the tree to the target size and PSNR of config. The PSNR is met first
+     * by merging every candidate that still keeps the image above it, then the
+     * tree is merged further until the file fits the target size. The size of the
+     * encoded tree is measured with payloadSize, which is called again after each
+     * round of merging, until the file fits or the tree is a single leaf.
+     *
+     * @param quadtree    the tree to prune, with the color of every node set
+     * @param config      the settings holding the targets
+     * @param payloadSize encodes a tree and returns the length of its payload,
+     *                    only used with a target size
+     * @return true if the pruned tree meets every target of config, false if the
+     *         tree never reached the target PSNR, a single leaf is still over
+     *         the target size, or meeting the size took the PSNR below its target
+     */
+    static boolean prune(QuadTree quadtree, CompressionConfig config, ToIntFunction<QuadTree> payloadSize) {
+        RateControl control = new RateControl(quadtree);
+        double maxError = Double.POSITIVE_INFINITY;
+        if (config.getTargetPsnr() > 0) {
+            // PSNR is measured as in QualityMetrics, from the squared error summed
+            // over the channels divided by the number of pixels
+            SummedAreaTable table = quadtree.getTable();
+            double pixels = (double) table.getWidth() * table.getHeight();
+            maxError = pixels * 255 * 255 / Math.pow(10, config.getTargetPsnr() / 10);
+            control.mergeWithin(maxError);
+        }
+        boolean sizeMet = true;
+        if (config.getTargetSize() > 0) {
+            long target = config.getTargetSize() - CompressedFile.HEADER_SIZE;
+            int size = payloadSize.applyAsInt(quadtree);
+            while (size > target && !control.queue.isEmpty()) {
+                // assume each leaf keeps costing what it costs now, and merge down to
+                // the number of leafs that would fit
+                double bytesPerLeaf = (double) size / Math.max(control.leafCount, 1);
+                int leafs = (int) Math.min(Math.max(target, 0) / bytesPerLeaf, control.leafCount - 1);
+                control.mergeDownTo(leafs);
+                size = payloadSize.applyAsInt(quadtree);
+            }
+            sizeMet = size <= target;
+        }
+        return sizeMet && control.error <= maxError;
+    }
+
+    // adds up the error and leafs under node, and queues every split node whose
+    // children are all leafs
+    private void collect(int node, Candidate parent) {
+        if (nodes.isEmpty(node)) {
+            return;
+        }
+        if (nodes.isLeaf(node)) {
+            error += error(node);
+            leafCount++;
+            return;
+        }
+        Candidate candidate = new Candidate(node, parent);
+        int first = nodes.getFirstChild(node);
+        for (int child = first; child < first + nodes.getChildCount(node); child++) {
+            if (!nodes.isLeaf(child)) {
+                candidate.splitChildren++;
+            }
+            collect(child, candidate);
+        }
+        if (candidate.splitChildren == 0) {
+            offer(candidate);
+        }
+    }
+
+    // prices the merge of a node whose children are all leafs and queues it. A
+    // node with a single child that covers pixels would save no leaf and is never
+    // queued, divide and cut give every split node at least two such children
+    private void offer(Candidate candidate) {
+        long childError = 0;
+        int leafs = 0;
+        int first = nodes.getFirstChild(candidate.node);
+        for (int child = first; child < first + nodes.getChildCount(candidate.node); child++) {
+            if (!nodes.isEmpty(child)) {
+                childError += error(child);
+                leafs++;
+            }
+        }
+        if (leafs < 2) {
+            return;
+        }
+        candidate.increase = error(candidate.node) - childError;
+        candidate.saved = leafs - 1;
+        queue.add(candidate);
+    }
+
+    // merges the cheapest candidates for as long as the error stays within
+    // maxError. Candidates that would go over are set aside rather than ending the
+    // search, as a cheaper one may still fit, and are queued again at the end
+    private void mergeWithin(double maxError) {
+        ArrayList<Candidate> skipped = new ArrayList<>();
+        while (!queue.isEmpty()) {
+            Candidate candidate = queue.poll();
+            if (error + candidate.increase <= maxError) {
+                merge(candidate);
+            } else {
+                skipped.add(candidate);
+            }
+        }
+        queue.addAll(skipped);
+    }
+
+    // merges the cheapest candidates until at most leafs leafs are left
+    private void mergeDownTo(int leafs) {
+        while (leafCount > leafs && !queue.isEmpty()) {
+            merge(queue.poll());
+        }
+    }
+
+    private void merge(Candidate candidate) {
+        nodes.merge(candidate.node);
+        error += candidate.increase;
+        leafCount -= candidate.saved;
+        Candidate parent = candidate.parent;
+        if (parent != null && --parent.splitChildren == 0) {
+            offer(parent);
+        }
+    }
+
+    // returns the squared error of the pixels of node against its color
+    private long error(int node) {
+        return table.squaredError(nodes.getX(node), nodes.getY(node), nodes.getWidth(node), nodes.getHeight(node),
+                nodes.getColor(node));
+    }
+}
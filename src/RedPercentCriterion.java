@@ -0,0 +1,27 @@
+package src;
+
+/**
+ * The original split test: a node is a leaf if the red value of every pixel is
+ * within percentage% of the average red of the node, which holds exactly when
+ * both ends of the red range are. Green and blue are not looked at.
+ */
+public class RedPercentCriterion implements SplitCriterion {
+
+    @Override
+    public int getId() {
+        return RED_PERCENT;
+    }
+
+    @Override
+    public boolean needsRange() {
+        return true;
+    }
+
+    @Override
+    public boolean isUniform(NodeArena nodes, int node, SummedAreaTable table, int percentage) {
+        int average = (nodes.getColor(node) >> 16) & 0xff;
+        int tolerance = average * percentage / 100;
+        return ((nodes.getMax(node) >> 16) & 0xff) - average <= tolerance
+                && average - ((nodes.getMin(node) >> 16) & 0xff) <= tolerance;
+    }
+}
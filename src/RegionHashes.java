@@ -0,0 +1,324 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import lib.PixelBuffer;
+
+/**
+ * A content hash of every region of an image down to blocks of BLOCK_AREA
+ * pixels, with the same splits as QuadTree.divide. A block hashes its pixels
+ * row by row, and a larger region hashes the hashes of its quadrants, so the
+ * hashes of two images of the same size differ in exactly the regions that hold
+ * a changed pixel, up to the odds of a 64-bit collision. Every step of the hash
+ * is a bijection of the hash so far, so a single changed pixel always changes
+ * every region holding it.
+ *
+ * The hashes are in tree order, each region before its quadrants, and regions
+ * that cover no pixels have none. They are kept next to a tree encoded file, see
+ * IncrementalCompressor, with the settings and checksum of that file and where
+ * each region is in it: the range of its split flags and the range of its leaf
+ * colors, see TreeCodec. A region inside a leaf of the tree has no flags of its
+ * own, its flag range starts at -1 and its color range is the color of the leaf.
+ *
+ * <pre>
+ * offset size field
+ *      0    4 magic "QTHS"
+ *      4    4 format version
+ *      8    4 image width
+ *     12    4 image height
+ *     16    4 maximum depth of the quad tree
+ *     20    4 similarity threshold in percent
+ *     24    4 split criterion
+ *     28    8 merge error
+ *     36    4 entropy coder
+ *     40    8 CRC-32 of the compressed file's payload
+ *     48    4 number of regions
+ *     52      each region as its hash, the start and end of its flags as 8
+ *             bytes each and the start and end of its colors as 4 bytes each
+ * </pre>
+ */
+public class RegionHashes {
+    public static final int MAGIC = 0x51544853;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 52;
+    private static final int REGION_SIZE = 32;
+    // regions of at most this many pixels are hashed whole rather than split
+    public static final int BLOCK_AREA = 32 * 32;
+
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private final int width;
+    private final int height;
+    private final int maxDepth;
+    private long[] hashes;
+    // the index after the last hash under each region
+    private int[] ends;
+    // where each region is in the compressed file
+    private long[] flagStarts;
+    private long[] flagEnds;
+    private int[] colorStarts;
+    private int[] colorEnds;
+    private int count;
+
+    private RegionHashes(int width, int height, int maxDepth, int capacity) {
+        this.width = width;
+        this.height = height;
+        this.maxDepth = maxDepth;
+        capacity = Math.max(capacity, 1);
+        this.hashes = new long[capacity];
+        this.ends = new int[capacity];
+        this.flagStarts = new long[capacity];
+        this.flagEnds = new long[capacity];
+        this.colorStarts = new int[capacity];
+        this.colorEnds = new int[capacity];
+    }
+
+    /**
+     * Hashes every region of the image.
+     *
+     * @param pixels   the image
+     * @param maxDepth the maximum depth of the quad tree, regions at it are not
+     *                 split further
+     * @return the hashes
+     */
+    public static RegionHashes of(PixelBuffer pixels, int maxDepth) {
+        int blocks = (int) Math.min(Integer.MAX_VALUE / 2,
+                (long) pixels.getWidth() * pixels.getHeight() / BLOCK_AREA + 1);
+        RegionHashes hashes = new RegionHashes(pixels.getWidth(), pixels.getHeight(), maxDepth, blocks * 4 / 3 + 1);
+        hashes.hash(pixels, 0, 0, pixels.getWidth(), pixels.getHeight(), 0);
+        return hashes;
+    }
+
+    // true if the region is hashed whole, and so is rebuilt whole when it changes
+    static boolean isBlock(int width, int height, int depth, int maxDepth) {
+        return depth >= maxDepth || width * height <= BLOCK_AREA;
+    }
+
+    // one step of the hash, a bijection of hash for any value
+    private static long mix(long hash, long value) {
+        return Long.rotateLeft((hash ^ value) * MULTIPLIER, 29);
+    }
+
+    // takes the next index, growing the arrays if they are full
+    private int next() {
+        if (count == hashes.length) {
+            hashes = Arrays.copyOf(hashes, count * 2);
+            ends = Arrays.copyOf(ends, count * 2);
+            flagStarts = Arrays.copyOf(flagStarts, count * 2);
+            flagEnds = Arrays.copyOf(flagEnds, count * 2);
+            colorStarts = Arrays.copyOf(colorStarts, count * 2);
+            colorEnds = Arrays.copyOf(colorEnds, count * 2);
+        }
+        return count++;
+    }
+
+    // hashes the region into the next index and returns its hash, the region must
+    // cover pixels
+    private long hash(PixelBuffer pixels, int x, int y, int width, int height, int depth) {
+        int index = next();
+        long hash = width * 31L + height;
+        if (isBlock(width, height, depth, maxDepth)) {
+            int[] data = pixels.getData();
+            for (int j = y; j < y + height; j++) {
+                int row = pixels.getIndex(x, j);
+                for (int i = row; i < row + width; i++) {
+                    hash = mix(hash, data[i] & 0xFFFFFF);
+                }
+            }
+        } else {
+            // the same split as QuadTree.divide
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+            int remainderWidth = width - halfWidth;
+            int remainderHeight = height - halfHeight;
+            int[][] quadrants = { { x, y, halfWidth, halfHeight }, { x + halfWidth, y, remainderWidth, halfHeight },
+                    { x, y + halfHeight, halfWidth, remainderHeight },
+                    { x + halfWidth, y + halfHeight, remainderWidth, remainderHeight } };
+            for (int[] q : quadrants) {
+                if (q[2] > 0 && q[3] > 0) {
+                    hash = mix(hash, hash(pixels, q[0], q[1], q[2], q[3], depth + 1));
+                }
+            }
+        }
+        hashes[index] = hash;
+        ends[index] = count;
+        return hash;
+    }
+
+    // lays the region out at the next index without hashing it, for hashes that
+    // were read rather than computed
+    private void layout(int width, int height, int depth) {
+        int index = next();
+        if (!isBlock(width, height, depth, maxDepth)) {
+            int halfWidth = width / 2;
+            int halfHeight = height / 2;
+            int[][] sizes = { { halfWidth, halfHeight }, { width - halfWidth, halfHeight },
+                    { halfWidth, height - halfHeight }, { width - halfWidth, height - halfHeight } };
+            for (int[] size : sizes) {
+                if (size[0] > 0 && size[1] > 0) {
+                    layout(size[0], size[1], depth + 1);
+                }
+            }
+        }
+        ends[index] = count;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    // the number of regions hashed
+    public int getCount() {
+        return count;
+    }
+
+    // the hash of the region at index, in tree order
+    public long getHash(int index) {
+        return hashes[index];
+    }
+
+    // the index of the region after the ones under the region at index
+    public int getEnd(int index) {
+        return ends[index];
+    }
+
+    // the first split flag of the region at index, -1 if it is inside a leaf
+    public long getFlagStart(int index) {
+        return flagStarts[index];
+    }
+
+    // the split flag after the region at index
+    public long getFlagEnd(int index) {
+        return flagEnds[index];
+    }
+
+    // the first leaf color of the region at index, or the color of the leaf it is
+    // inside
+    public int getColorStart(int index) {
+        return colorStarts[index];
+    }
+
+    // the leaf color after the region at index
+    public int getColorEnd(int index) {
+        return colorEnds[index];
+    }
+
+    // records where the region at index is in the compressed file
+    void setRange(int index, long flagStart, long flagEnd, int colorStart, int colorEnd) {
+        flagStarts[index] = flagStart;
+        flagEnds[index] = flagEnd;
+        colorStarts[index] = colorStart;
+        colorEnds[index] = colorEnd;
+    }
+
+    // records that the regions from index up to end are inside the leaf with the
+    // given color
+    void setInside(int index, int end, int color) {
+        for (int i = index; i < end; i++) {
+            setRange(i, -1, -1, color, color + 1);
+        }
+    }
+
+    /**
+     * Writes the hashes and ranges of a compressed file next to it, replacing the
+     * file if it exists.
+     *
+     * @param fileName the name of the file to write
+     * @param config   the settings the compressed file was written with
+     * @param checksum the CRC-32 of the compressed file's payload
+     * @throws IOException if the file cannot be written
+     */
+    public void write(String fileName, CompressionConfig config, long checksum) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + count * REGION_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.putInt(width);
+        buffer.putInt(height);
+        buffer.putInt(maxDepth);
+        buffer.putInt(config.getSimilarityPercent());
+        buffer.putInt(config.getSplitCriterion());
+        buffer.putDouble(config.getMergeError());
+        buffer.putInt(config.getEntropyCoder());
+        buffer.putLong(checksum);
+        buffer.putInt(count);
+        for (int i = 0; i < count; i++) {
+            buffer.putLong(hashes[i]);
+            buffer.putLong(flagStarts[i]);
+            buffer.putLong(flagEnds[i]);
+            buffer.putInt(colorStarts[i]);
+            buffer.putInt(colorEnds[i]);
+        }
+        buffer.flip();
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads the hashes and ranges written next to a compressed file, if they were
+     * written for an image of this size with these settings and the file still has
+     * the given checksum.
+     *
+     * @param fileName the name of the file to read
+     * @param width    the width of the image
+     * @param height   the height of the image
+     * @param config   the settings the image is compressed with
+     * @param checksum the CRC-32 of the compressed file's payload
+     * @return the hashes, or null if they are for another image, settings or
+     *         version of the compressed file
+     * @throws IOException if the file cannot be read or is not a hash file
+     */
+    public static RegionHashes read(String fileName, int width, int height, CompressionConfig config, long checksum)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) {
+                throw new IOException(fileName + " is not a region hash file");
+            }
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC) {
+                throw new IOException(fileName + " is not a region hash file");
+            }
+            int version = buffer.getInt();
+            if (version > VERSION) {
+                throw new IOException(fileName + " has unsupported format version " + version);
+            }
+            if (buffer.getInt() != width || buffer.getInt() != height || buffer.getInt() != config.getMaxDepth()
+                    || buffer.getInt() != config.getSimilarityPercent()
+                    || buffer.getInt() != config.getSplitCriterion()
+                    || buffer.getDouble() != config.getMergeError()
+                    || buffer.getInt() != config.getEntropyCoder() || buffer.getLong() != checksum) {
+                return null;
+            }
+            int count = buffer.getInt();
+            if (count < 0 || count > buffer.remaining() / REGION_SIZE) {
+                throw new IOException(fileName + " is truncated");
+            }
+            RegionHashes hashes = new RegionHashes(width, height, config.getMaxDepth(), count);
+            hashes.layout(width, height, 0);
+            if (hashes.count != count) {
+                throw new IOException(fileName + " has " + count + " hashes for " + hashes.count + " regions");
+            }
+            for (int i = 0; i < count; i++) {
+                hashes.hashes[i] = buffer.getLong();
+                hashes.setRange(i, buffer.getLong(), buffer.getLong(), buffer.getInt(), buffer.getInt());
+            }
+            return hashes;
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package src;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import lib.PixelBuffer;
+
+/**
+ * Reads the frames of a file written by SequenceWriter in order. The file is
+ * memory mapped, and every frame is decoded into the same raster: a keyframe
+ * paints all of it, the other frames only the regions that changed.
+ */
+public class SequenceReader implements Closeable {
+    private final String fileName;
+    private final FileChannel channel;
+    private final ByteBuffer frames;
+    private final int width;
+    private final int height;
+    private final int maxDepth;
+    private final int similarityPercent;
+    private final EntropyCoder coder;
+    private final int keyframeInterval;
+    private final int frameCount;
+    private final PixelBuffer raster;
+    private int frameIndex;
+    private boolean started;
+
+    /**
+     * Opens a sequence file and reads its header.
+     *
+     * @param fileName the name of the file to read
+     * @throws IOException if the file cannot be read or is not a sequence file
+     */
+    public SequenceReader(String fileName) throws IOException {
+        this.fileName = fileName;
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            if (channel.size() < SequenceWriter.HEADER_SIZE) {
+                throw new IOException(fileName + " is not a sequence file");
+            }
+            ByteBuffer file = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (file.getInt() != SequenceWriter.MAGIC) {
+                throw new IOException(fileName + " is not a sequence file");
+            }
+            int version = file.getInt();
+            if (version > SequenceWriter.VERSION) {
+                throw new IOException(fileName + " has unsupported format version " + version);
+            }
+            width = file.getInt();
+            height = file.getInt();
+            maxDepth = file.getInt();
+            similarityPercent = file.getInt();
+            int entropyCoder = file.getInt();
+            keyframeInterval = file.getInt();
+            frameCount = file.getInt();
+            if (width <= 0 || height <= 0 || keyframeInterval < 1 || frameCount < 0) {
+                throw new IOException(fileName + " has a corrupt header");
+            }
+            try {
+                coder = EntropyCoder.forId(entropyCoder);
+            } catch (IllegalArgumentException e) {
+                throw new IOException(fileName + " has an unknown entropy coder " + entropyCoder, e);
+            }
+            frames = file.slice();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        raster = new PixelBuffer(width, height);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getSimilarityPercent() {
+        return similarityPercent;
+    }
+
+    public int getKeyframeInterval() {
+        return keyframeInterval;
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Decodes the next frame. The raster is reused for every frame, so it is only
+     * valid until the next call and must be copied to be kept.
+     *
+     * @return the frame, or null after the last frame
+     * @throws IOException if the frame is corrupt, or the sequence does not start
+     *                     with a keyframe
+     */
+    public PixelBuffer next() throws IOException {
+        if (frameIndex == frameCount) {
+            return null;
+        }
+        int type;
+        ByteBuffer payload;
+        try {
+            type = frames.get();
+            int length = frames.getInt();
+            if (length < 0 || length > frames.remaining()) {
+                throw new IOException(fileName + " is truncated at frame " + frameIndex);
+            }
+            payload = frames.slice().limit(length);
+            frames.position(frames.position() + length);
+        } catch (BufferUnderflowException e) {
+            throw new IOException(fileName + " is truncated at frame " + frameIndex, e);
+        }
+        if (type == SequenceWriter.FRAME_KEY) {
+            TreeCodec.decode(payload, width, height, maxDepth, coder, false, false, raster::fillRect);
+            started = true;
+        } else if (type == SequenceWriter.FRAME_DELTA) {
+            if (!started) {
+                throw new IOException(fileName + " has a delta frame before its first keyframe");
+            }
+            DeltaCodec.decode(payload, raster, maxDepth, coder);
+        } else {
+            throw new IOException(fileName + " has an unknown frame type " + type);
+        }
+        frameIndex++;
+        return raster;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
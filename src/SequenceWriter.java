@@ -0,0 +1,183 @@
+package src;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+import lib.PixelBuffer;
+
+/**
+ * Writes a sequence of frames of the same size, such as the frames of a fixed
+ * camera, into one file. Every keyframeInterval frames the whole frame is
+ * encoded with TreeCodec, and the frames in between are encoded with DeltaCodec
+ * as the changes from the frame before, so the time and size of a frame follow
+ * how much of the scene moved rather than its resolution.
+ *
+ * <pre>
+ * offset size field
+ *      0    4 magic "QTSQ"
+ *      4    4 format version
+ *      8    4 frame width
+ *     12    4 frame height
+ *     16    4 maximum depth of the quad trees
+ *     20    4 similarity threshold in percent
+ *     24    4 entropy coder, see EntropyCoder
+ *     28    4 keyframe interval
+ *     32    4 number of frames
+ *     36      frames
+ * </pre>
+ *
+ * Each frame is a byte that is FRAME_KEY or FRAME_DELTA, the length of its
+ * payload as 4 bytes, and the payload. All values are big endian. The number of
+ * frames is written when the writer is closed.
+ */
+public class SequenceWriter implements Closeable {
+    public static final int MAGIC = 0x51545351;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 36;
+
+    // the payload is the tree encoding of the whole frame
+    public static final int FRAME_KEY = 0;
+    // the payload is the DeltaCodec encoding of the changes from the frame before
+    public static final int FRAME_DELTA = 1;
+
+    private final FileChannel channel;
+    private final int width;
+    private final int height;
+    private final CompressionConfig config;
+    private final int keyframeInterval;
+    private final int changeTolerance;
+    // the pixels each region of the decoded frame was last coded from
+    private final PixelBuffer reference;
+    private int frameCount;
+    private long keyframeBytes;
+    private long deltaBytes;
+
+    /**
+     * Creates the file, replacing it if it exists.
+     *
+     * @param fileName         the name of the file to write
+     * @param width            the width of every frame
+     * @param height           the height of every frame
+     * @param config           the settings each frame is built with, which must
+     *                         be the tree encoding with quad splits, no palette
+     *                         and no size or PSNR target
+     * @param keyframeInterval a keyframe is written every this many frames, so a
+     *                         reader can start from it and errors do not add up
+     * @param changeTolerance  the largest difference in a channel that is not a
+     *                         change, 0 codes every change
+     * @throws IOException if the file cannot be created
+     */
+    public SequenceWriter(String fileName, int width, int height, CompressionConfig config, int keyframeInterval,
+            int changeTolerance) throws IOException {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("The frame size must be positive");
+        }
+        if (keyframeInterval < 1) {
+            throw new IllegalArgumentException("keyframeInterval must be positive");
+        }
+        if (changeTolerance < 0) {
+            throw new IllegalArgumentException("changeTolerance must not be negative");
+        }
+        if (config.getEncoding() != CompressedFile.ENCODING_TREE || config.isBinarySplits()
+                || config.getPaletteSize() > 0) {
+            throw new IllegalArgumentException("Sequences need the tree encoding with quad splits and no palette");
+        }
+        if (config.getTargetSize() > 0 || config.getTargetPsnr() > 0) {
+            throw new IllegalArgumentException("Sequences cannot be pruned to a size or PSNR target");
+        }
+        this.width = width;
+        this.height = height;
+        this.config = config;
+        this.keyframeInterval = keyframeInterval;
+        this.changeTolerance = changeTolerance;
+        this.reference = new PixelBuffer(width, height);
+        this.channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        writeFully(header());
+    }
+
+    private ByteBuffer header() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putInt(width);
+        header.putInt(height);
+        header.putInt(config.getMaxDepth());
+        header.putInt(config.getSimilarityPercent());
+        header.putInt(config.getEntropyCoder());
+        header.putInt(keyframeInterval);
+        header.putInt(frameCount);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * Encodes the next frame and appends it to the file.
+     *
+     * @param frame the frame, the size given to the constructor
+     * @throws IOException if the file cannot be written
+     */
+    public void write(PixelBuffer frame) throws IOException {
+        if (frame.getWidth() != width || frame.getHeight() != height) {
+            throw new IllegalArgumentException("Frame is " + frame.getWidth() + "x" + frame.getHeight()
+                    + " but the sequence is " + width + "x" + height);
+        }
+        boolean key = frameCount % keyframeInterval == 0;
+        ByteBuffer payload;
+        if (key) {
+            QuadTree quadtree = Utility.buildTree(frame, config);
+            payload = TreeCodec.encode(quadtree.getNodes(), quadtree.getRoot(), config.getMaxDepth(),
+                    EntropyCoder.forId(config.getEntropyCoder()));
+            for (int y = 0; y < height; y++) {
+                System.arraycopy(frame.getData(), frame.getIndex(0, y), reference.getData(),
+                        reference.getIndex(0, y), width);
+            }
+            keyframeBytes += payload.remaining();
+        } else {
+            payload = DeltaCodec.encode(frame, reference, config, changeTolerance);
+            deltaBytes += payload.remaining();
+        }
+        ByteBuffer record = ByteBuffer.allocate(5);
+        record.put((byte) (key ? FRAME_KEY : FRAME_DELTA));
+        record.putInt(payload.remaining());
+        record.flip();
+        writeFully(record, payload);
+        frameCount++;
+    }
+
+    private void writeFully(ByteBuffer... buffers) throws IOException {
+        ByteBuffer last = buffers[buffers.length - 1];
+        while (last.hasRemaining()) {
+            channel.write(buffers);
+        }
+    }
+
+    public int getFrameCount() {
+        return frameCount;
+    }
+
+    // the payload bytes of the keyframes written so far
+    public long getKeyframeBytes() {
+        return keyframeBytes;
+    }
+
+    // the payload bytes of the other frames written so far
+    public long getDeltaBytes() {
+        return deltaBytes;
+    }
+
+    // writes the number of frames into the header and closes the file
+    @Override
+    public void close() throws IOException {
+        try (channel) {
+            ByteBuffer header = header();
+            while (header.hasRemaining()) {
+                channel.write(header, header.position());
+            }
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package src;
+
+/**
+ * Decides whether a region of the image is uniform enough to be a leaf or has to
+ * be split. Each criterion reads only statistics that are already at hand: the
+ * average color of the node, its per channel minimum and maximum, or the sums of
+ * the summed area table. Only a region of at most SCAN_AREA pixels (see
+ * QuadTree) rescans its pixels, to find its minimum and maximum when a criterion
+ * needs them; larger regions combine the ranges of their children.
+ *
+ * Every criterion is controlled by similarityPercent. RED_PERCENT, the original
+ * test, takes it as a percentage of the average red of the region, so dark
+ * regions get almost no tolerance and keep splitting. The others take it as a
+ * percentage of the full 0 to 255 range of a channel, the same everywhere.
+ */
+public interface SplitCriterion {
+    // ids for CompressionConfig.withSplitCriterion
+    int RED_PERCENT = 0;
+    int MAX_DEVIATION = 1;
+    int VARIANCE = 2;
+    int LUMINANCE = 3;
+
+    int getId();
+
+    // true if isUniform reads the min and max of the node, which the quad tree
+    // then sets before calling it
+    boolean needsRange();
+
+    // true if isUniform needs a summed area table built withLuma
+    default boolean needsLuma() {
+        return false;
+    }
+
+    /**
+     * Tests whether a node may stay a leaf.
+     *
+     * @param nodes      the nodes of the tree
+     * @param node       the node, with its average color set, and its range set
+     *                   if needsRange is true
+     * @param table      the summed area table of the image
+     * @param percentage the similarityPercent of the config
+     * @return true if the node does not need to be split
+     */
+    boolean isUniform(NodeArena nodes, int node, SummedAreaTable table, int percentage);
+
+    // returns the criterion with the given id
+    static SplitCriterion forId(int id) {
+        switch (id) {
+            case RED_PERCENT:
+                return new RedPercentCriterion();
+            case MAX_DEVIATION:
+                return new MaxDeviationCriterion();
+            case VARIANCE:
+                return new VarianceCriterion();
+            case LUMINANCE:
+                return new LuminanceCriterion();
+            default:
+                throw new IllegalArgumentException("Unknown split criterion: " + id);
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package src;
+
+import lib.PixelBuffer;
+
+// SummedAreaTable holds the prefix sums (integral image) of every colour channel
+// and of the squared channel values, and when asked for of the luma and its
+// square. It is built once per image, after which the sum, mean and variance of
+// any rectangle can be read in constant time.
+//
+// The channel sums are kept in ints, which wrap around on large images. The sum
+// of a rectangle is a difference of four entries, so it still comes out exactly
+// as long as it fits in 32 bits unsigned, see rectangle. The squares would wrap
+// on far smaller rectangles and stay in longs.
+public class SummedAreaTable {
+    // the largest area whose channel sum, at most 255 per pixel, fits in 32 bits
+    private static final long MAX_SUM_AREA = 0xFFFFFFFFL / 255;
+
+    private final int width;
+    private final int height;
+    // each table has one extra row and column of zeros so that lookups need no
+    // bounds checks, entry y * stride + x holds the sum over [0, x) x [0, y)
+    private final int stride;
+    private final int[] red;
+    private final int[] green;
+    private final int[] blue;
+    // sum of r*r + g*g + b*b, one table is enough for the total squared error
+    private final long[] squares;
+    // the luma of each pixel, see luma, and its square. Null unless asked for
+    private final int[] luma;
+    private final long[] lumaSquares;
+
+    public SummedAreaTable(PixelBuffer pixels) {
+        this(pixels, false);
+    }
+
+    // withLuma also keeps the tables of the luma, which lumaVariance needs
+    public SummedAreaTable(PixelBuffer pixels, boolean withLuma) {
+        this.width = pixels.getWidth();
+        this.height = pixels.getHeight();
+        this.stride = width + 1;
+        int size = stride * (height + 1);
+        this.red = new int[size];
+        this.green = new int[size];
+        this.blue = new int[size];
+        this.squares = new long[size];
+        this.luma = withLuma ? new int[size] : null;
+        this.lumaSquares = withLuma ? new long[size] : null;
+
+        int[] data = pixels.getData();
+        for (int y = 0; y < height; y++) {
+            int rowRed = 0;
+            int rowGreen = 0;
+            int rowBlue = 0;
+            long rowSquares = 0;
+            int rowLuma = 0;
+            long rowLumaSquares = 0;
+            int source = pixels.getIndex(0, y);
+            int above = y * stride + 1;
+            int current = above + stride;
+            for (int x = 0; x < width; x++) {
+                int rgb = data[source + x];
+                int r = (rgb >> 16) & 0xff;
+                int g = (rgb >> 8) & 0xff;
+                int b = rgb & 0xff;
+                rowRed += r;
+                rowGreen += g;
+                rowBlue += b;
+                red[current + x] = red[above + x] + rowRed;
+                green[current + x] = green[above + x] + rowGreen;
+                blue[current + x] = blue[above + x] + rowBlue;
+                rowSquares += r * r + g * g + b * b;
+                squares[current + x] = squares[above + x] + rowSquares;
+                if (withLuma) {
+                    int l = luma(r, g, b);
+                    rowLuma += l;
+                    rowLumaSquares += l * l;
+                    luma[current + x] = luma[above + x] + rowLuma;
+                    lumaSquares[current + x] = lumaSquares[above + x] + rowLumaSquares;
+                }
+            }
+        }
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    // returns the sum of channel (0 = red, 1 = green, 2 = blue) over the rectangle
+    public long sum(int channel, int x, int y, int width, int height) {
+        int[] table = channel == 0 ? red : channel == 1 ? green : blue;
+        return rectangle(table, x, y, width, height);
+    }
+
+    // returns the sum of r*r + g*g + b*b over the rectangle
+    public long sumOfSquares(int x, int y, int width, int height) {
+        return rectangle(squares, x, y, width, height);
+    }
+
+    // the Rec. 601 luma of a color, 0.299 red + 0.587 green + 0.114 blue rounded
+    // to 0 to 255
+    static int luma(int r, int g, int b) {
+        return (299 * r + 587 * g + 114 * b + 500) / 1000;
+    }
+
+    /**
+     * Returns the average colour of the rectangle packed as 0xRRGGBB. Each channel
+     * is truncated the same way the original per-pixel average in Node was, so the
+     * trees built from it are unchanged. An empty rectangle averages to 0.
+     */
+    public int meanColor(int x, int y, int width, int height) {
+        long count = (long) width * height;
+        if (count == 0) {
+            return 0;
+        }
+        int r = (int) (rectangle(red, x, y, width, height) / count);
+        int g = (int) (rectangle(green, x, y, width, height) / count);
+        int b = (int) (rectangle(blue, x, y, width, height) / count);
+        return (r << 16) | (g << 8) | b;
+    }
+
+    /**
+     * Returns the total squared error of the rectangle against its exact mean,
+     * summed over the three channels. Dividing by the pixel count gives the
+     * variance of the region.
+     */
+    public double squaredError(int x, int y, int width, int height) {
+        long count = (long) width * height;
+        if (count == 0) {
+            return 0;
+        }
+        double r = rectangle(red, x, y, width, height);
+        double g = rectangle(green, x, y, width, height);
+        double b = rectangle(blue, x, y, width, height);
+        double error = sumOfSquares(x, y, width, height) - (r * r + g * g + b * b) / count;
+        // rounding can leave a tiny negative value for flat regions
+        return Math.max(error, 0);
+    }
+
+    // returns the total squared error of the rectangle against a packed color,
+    // summed over the three channels. Per channel, sum (p - c)^2 is
+    // sum p^2 - 2c sum p + n c^2, so this is exact
+    public long squaredError(int x, int y, int width, int height, int color) {
+        long count = (long) width * height;
+        if (count == 0) {
+            return 0;
+        }
+        long error = sumOfSquares(x, y, width, height);
+        for (int channel = 0; channel < 3; channel++) {
+            long c = (color >> (16 - channel * 8)) & 0xFF;
+            error += c * (count * c - 2 * sum(channel, x, y, width, height));
+        }
+        return error;
+    }
+
+    // returns the variance of the rectangle, summed over the three channels
+    public double variance(int x, int y, int width, int height) {
+        long count = (long) width * height;
+        return count == 0 ? 0 : squaredError(x, y, width, height) / count;
+    }
+
+    // returns the variance of the luma over the rectangle, which needs a table
+    // built withLuma
+    public double lumaVariance(int x, int y, int width, int height) {
+        if (luma == null) {
+            throw new IllegalStateException("The table was built without the luma");
+        }
+        long count = (long) width * height;
+        if (count == 0) {
+            return 0;
+        }
+        double sum = rectangle(luma, x, y, width, height);
+        double variance = (rectangle(lumaSquares, x, y, width, height) - sum * sum / count) / count;
+        return Math.max(variance, 0);
+    }
+
+    // returns the sum of a channel over the rectangle. The entries of the table
+    // wrap around, but their differences are right modulo 2^32, so the sum of a
+    // rectangle below MAX_SUM_AREA is exact read as unsigned. Larger rectangles,
+    // only the top few nodes of a tree of a huge image, are halved until they fit
+    private long rectangle(int[] table, int x, int y, int width, int height) {
+        if ((long) width * height > MAX_SUM_AREA) {
+            if (width > height) {
+                int half = width / 2;
+                return rectangle(table, x, y, half, height) + rectangle(table, x + half, y, width - half, height);
+            }
+            int half = height / 2;
+            return rectangle(table, x, y, width, half) + rectangle(table, x, y + half, width, height - half);
+        }
+        int top = y * stride;
+        int bottom = (y + height) * stride;
+        return (table[bottom + x + width] - table[bottom + x] - table[top + x + width] + table[top + x])
+                & 0xFFFFFFFFL;
+    }
+
+    private long rectangle(long[] table, int x, int y, int width, int height) {
+        int top = y * stride;
+        int bottom = (y + height) * stride;
+        return table[bottom + x + width] - table[bottom + x] - table[top + x + width] + table[top + x];
+    }
+}
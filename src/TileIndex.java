@@ -0,0 +1,156 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The index at the start of a tiled payload. The image is cut into square tiles
+ * of tileSize pixels, smaller along the right and bottom edges, numbered row by
+ * row. Each tile is a separate quad tree encoded with TreeCodec, using the entropy
+ * coder, palette and binary split flags of the file, so any tile can be decoded
+ * on its own.
+ *
+ * <pre>
+ * 4 bytes   tile size in pixels
+ * 16 bytes  for each tile: offset of its payload from the start of the payload
+ *           (8 bytes), length of its payload and its number of leafs
+ * n bytes   the tile payloads, in any order
+ * </pre>
+ */
+public class TileIndex {
+    static final int ENTRY_SIZE = 16;
+
+    private final ByteBuffer payload;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int columns;
+    private final int rows;
+
+    private TileIndex(ByteBuffer payload, int width, int height, int tileSize) {
+        this.payload = payload;
+        this.width = width;
+        this.height = height;
+        this.tileSize = tileSize;
+        this.columns = (width + tileSize - 1) / tileSize;
+        this.rows = (height + tileSize - 1) / tileSize;
+    }
+
+    // returns the number of tiles an image of this size is cut into
+    static int tileCount(int width, int height, int tileSize) {
+        return ((width + tileSize - 1) / tileSize) * ((height + tileSize - 1) / tileSize);
+    }
+
+    // returns the size of the index in bytes, which is where the tile payloads
+    // may start
+    static int indexSize(int tileCount) {
+        return 4 + tileCount * ENTRY_SIZE;
+    }
+
+    // writes the entry of a tile into an index buffer
+    static void putEntry(ByteBuffer index, int tile, long offset, int length, int leafCount) {
+        int position = 4 + tile * ENTRY_SIZE;
+        index.putLong(position, offset);
+        index.putInt(position + 8, length);
+        index.putInt(position + 12, leafCount);
+    }
+
+    /**
+     * Reads the index of a tiled payload and checks that every tile lies inside it.
+     *
+     * @param payload the payload of a tiled file, read from its position
+     * @param width   the width of the image
+     * @param height  the height of the image
+     * @return the index
+     * @throws IOException if the index is corrupt
+     */
+    public static TileIndex read(ByteBuffer payload, int width, int height) throws IOException {
+        ByteBuffer data = payload.slice();
+        if (data.remaining() < 4) {
+            throw new IOException("Tile index is truncated");
+        }
+        int tileSize = data.getInt(0);
+        if (tileSize < 1) {
+            throw new IOException("Invalid tile size " + tileSize);
+        }
+        TileIndex index = new TileIndex(data, width, height, tileSize);
+        int tileCount = index.getTileCount();
+        if (indexSize(tileCount) > data.limit()) {
+            throw new IOException("Tile index is truncated");
+        }
+        for (int tile = 0; tile < tileCount; tile++) {
+            long offset = index.offset(tile);
+            int length = index.length(tile);
+            if (offset < indexSize(tileCount) || length < 0 || offset + length > data.limit()) {
+                throw new IOException("Tile " + tile + " lies outside the payload");
+            }
+        }
+        return index;
+    }
+
+    public int getTileSize() {
+        return tileSize;
+    }
+
+    public int getColumns() {
+        return columns;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public int getTileCount() {
+        return columns * rows;
+    }
+
+    public int tileX(int tile) {
+        return (tile % columns) * tileSize;
+    }
+
+    public int tileY(int tile) {
+        return (tile / columns) * tileSize;
+    }
+
+    public int tileWidth(int tile) {
+        return Math.min(tileSize, width - tileX(tile));
+    }
+
+    public int tileHeight(int tile) {
+        return Math.min(tileSize, height - tileY(tile));
+    }
+
+    public int leafCount(int tile) {
+        return payload.getInt(4 + tile * ENTRY_SIZE + 12);
+    }
+
+    private long offset(int tile) {
+        return payload.getLong(4 + tile * ENTRY_SIZE);
+    }
+
+    private int length(int tile) {
+        return payload.getInt(4 + tile * ENTRY_SIZE + 8);
+    }
+
+    /**
+     * Decodes one tile, handing its leafs to the visitor in image coordinates.
+     *
+     * @param tile     the number of the tile
+     * @param maxDepth the maximum depth the tiles were built with
+     * @param coder    the entropy coder of the file, or null
+     * @param palette  true if the file has the palette flag
+     * @param binary   true if the file has the binary split flag
+     * @param visitor  receives the leafs of the tile
+     * @throws IOException if the tile is corrupt
+     */
+    public void decodeTile(int tile, int maxDepth, EntropyCoder coder, boolean palette, boolean binary,
+            LeafVisitor visitor) throws IOException {
+        int x = tileX(tile);
+        int y = tileY(tile);
+        ByteBuffer data = payload.duplicate();
+        data.limit((int) offset(tile) + length(tile)).position((int) offset(tile));
+        TreeCodec.decode(data.slice(), tileWidth(tile), tileHeight(tile), maxDepth, coder, palette, binary,
+                (leafX, leafY, leafWidth, leafHeight, color) -> visitor.visit(x + leafX, y + leafY, leafWidth,
+                        leafHeight, color));
+    }
+}
@@ -0,0 +1,182 @@
+package src;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import lib.ImagetoPixelConverter;
+import lib.PixelBuffer;
+
+/**
+ * Compresses images that are too large to hold in memory by cutting them into
+ * square tiles and giving each tile its own quad tree. The image is read one
+ * strip of tileSize rows at a time through an ImageReader source region, then the
+ * tiles of the strip are compressed in parallel and appended to the output file
+ * while the next strip is read, so at most two strips are ever held at once. The
+ * result is a CompressedFile with the ENCODING_TILED encoding, see TileIndex,
+ * which Utility.Decompress reads like any other file.
+ *
+ * Formats such as PNG and JPEG decode the image from the top for each strip, so
+ * reading costs one pass over the rows above each strip, not one per tile.
+ */
+public class TiledCompressor {
+    public static final int DEFAULT_TILE_SIZE = 512;
+
+    private final CompressionConfig config;
+    private final int tileSize;
+    private final int threads;
+
+    /**
+     * @param config   the settings every tile is compressed with, which must use
+     *                 the tree encoding and may have a target PSNR but not a
+     *                 target size
+     * @param tileSize the width and height of the tiles in pixels
+     * @param threads  the number of tiles compressed at once
+     */
+    public TiledCompressor(CompressionConfig config, int tileSize, int threads) {
+        if (config.getEncoding() != CompressedFile.ENCODING_TREE) {
+            throw new IllegalArgumentException("Tiles are stored with the tree encoding");
+        }
+        if (config.getTargetSize() > 0) {
+            throw new IllegalArgumentException("A target size is not supported for tiled images");
+        }
+        if (tileSize < 1 || threads < 1) {
+            throw new IllegalArgumentException("tileSize and threads must be positive");
+        }
+        this.config = config;
+        this.tileSize = tileSize;
+        this.threads = threads;
+    }
+
+    /**
+     * Compresses an image file tile by tile into a compressed file.
+     *
+     * @param inputImagePath the image to compress
+     * @param outputFileName the name of the file to write the compressed data to
+     * @throws IOException if the image cannot be read or the output cannot be
+     *                     written
+     */
+    public void compress(String inputImagePath, String outputFileName) throws IOException {
+        int[] size = imageSize(inputImagePath);
+        int width = size[0];
+        int height = size[1];
+        int tileCount = TileIndex.tileCount(width, height, tileSize);
+        ByteBuffer index = ByteBuffer.allocate(TileIndex.indexSize(tileCount));
+        index.putInt(0, tileSize);
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try (FileChannel channel = FileChannel.open(Paths.get(outputFileName), StandardOpenOption.WRITE,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            // tile payloads are appended after the header and index as they finish,
+            // each thread reserving its space before writing
+            AtomicLong end = new AtomicLong(index.capacity());
+            LongAdder leafCount = new LongAdder();
+            int columns = (width + tileSize - 1) / tileSize;
+            // the tiles of the strip before are compressed while a strip is read
+            CompletableFuture<Void> previous = CompletableFuture.completedFuture(null);
+            for (int y = 0; y < height; y += tileSize) {
+                Rectangle region = new Rectangle(0, y, width, Math.min(tileSize, height - y));
+                PixelBuffer strip = new ImagetoPixelConverter(inputImagePath, region, 1).getPixelData();
+                join(previous);
+                if (strip == null) {
+                    throw new IOException("Could not read rows " + y + " to " + (y + region.height) + " of "
+                            + inputImagePath);
+                }
+                List<CompletableFuture<Void>> tiles = new ArrayList<>(columns);
+                for (int column = 0; column < columns; column++) {
+                    int number = (y / tileSize) * columns + column;
+                    int x = column * tileSize;
+                    PixelBuffer pixels = strip.region(x, 0, Math.min(tileSize, width - x), region.height);
+                    tiles.add(CompletableFuture.runAsync(() -> {
+                        QuadTree quadtree = Utility.buildTree(pixels, config);
+                        // every tile meeting the target PSNR keeps the whole image above it
+                        if (config.getTargetPsnr() > 0) {
+                            RateControl.prune(quadtree, config, null);
+                        }
+                        ByteBuffer payload = Utility.encodeTree(quadtree, config);
+                        int leafs = TreeCodec.leafCount(payload, EntropyCoder.forId(config.getEntropyCoder()),
+                                config.getPaletteSize() > 0);
+                        long offset = end.getAndAdd(payload.remaining());
+                        TileIndex.putEntry(index, number, offset, payload.remaining(), leafs);
+                        leafCount.add(leafs);
+                        try {
+                            write(channel, payload, CompressedFile.HEADER_SIZE + offset);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }, pool));
+                }
+                previous = CompletableFuture.allOf(tiles.toArray(new CompletableFuture<?>[0]));
+            }
+            join(previous);
+
+            if (end.get() > Integer.MAX_VALUE || leafCount.sum() > Integer.MAX_VALUE) {
+                throw new IOException("The compressed image is too large for one file");
+            }
+            ByteBuffer header = CompressedFile.header(CompressedFile.ENCODING_TILED, config.getEntropyCoder(),
+                    Utility.treeFlags(config), width, height, config.getMaxDepth(), config.getSimilarityPercent(),
+                    (int) leafCount.sum(), (int) end.get());
+            write(channel, header, 0);
+            write(channel, index, CompressedFile.HEADER_SIZE);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // waits for the tiles to be written, rethrowing the IOException of a tile that
+    // failed
+    private static void join(CompletableFuture<Void> tiles) throws IOException {
+        try {
+            tiles.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        }
+    }
+
+    // writes all of buffer at position, which is safe to do from several threads
+    private static void write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    // reads the width and height of an image from its header, without decoding it
+    private static int[] imageSize(String imagePath) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(new File(imagePath))) {
+            if (input == null) {
+                throw new IOException("Cannot open " + imagePath);
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+            if (!readers.hasNext()) {
+                throw new IOException("No image reader for " + imagePath);
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                return new int[] { reader.getWidth(0), reader.getHeight(0) };
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
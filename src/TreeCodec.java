@@ -0,0 +1,544 @@
+package src;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * Encodes a quad tree by its structure instead of by the position and size of
+ * every leaf. The nodes are visited in the order the tree was built (depth first,
+ * children 0 to 3) and each node that could have been split gets one bit, 1 if it
+ * was split. Each leaf that covers any pixels then only needs its color. The
+ * decoder splits the regions the same way QuadTree.divide does, starting from
+ * the image size in the file header, so no coordinates are stored at all and
+ * images of any size can be encoded.
+ *
+ * <pre>
+ * 4 bytes  length of the split flags in bytes
+ * n bytes  split flags, most significant bit first
+ * 3 bytes  color of each leaf, in the same order
+ * </pre>
+ *
+ * With an entropy coder the same information is written as four coded blocks:
+ * the split flag bytes, then the red, green and blue difference of each leaf
+ * color from the color of the leaf before it. Neighbouring leafs are close in
+ * tree order, so the differences cluster around 0 and code well. Each block is
+ * preceded by its symbol count and its length in bytes, 4 bytes each.
+ *
+ * With a palette, see Palette, the colors are replaced by the palette and a one
+ * byte palette index for each leaf. Without an entropy coder the palette follows
+ * the split flags as a 2 byte color count and 3 bytes per color, then come the
+ * indices. With one there are three coded blocks: the split flags, the palette
+ * colors as bytes and the indices.
+ *
+ * With binary splits, see QuadTree, a split node has two children instead of
+ * four, cut across the width or the height at any position. After its split
+ * flag 1 comes one bit for the side that is cut, 0 for the width, if both sides
+ * are longer than one pixel, then the cut position minus one in just as many
+ * bits as the longest possible position needs. The flags and cuts share the flag
+ * stream. A cut can peel off a strip of any width, so a binary tree is limited
+ * by the size of its regions rather than by maxDepth, see canCut.
+ */
+public class TreeCodec {
+    // the deepest a binary tree is cut. Least-error cuts take a photo down to
+    // single pixels within about 60 levels, the limit only keeps the recursion of
+    // building, writing and reading a tree shallow on images that would peel off
+    // one thin strip after another
+    static final int MAX_CUT_DEPTH = 256;
+
+    // returns true if a region of this size at this depth could have been split,
+    // only such regions get a split flag. Regions of a single pixel are always
+    // leafs, and so is every region at the maximum depth
+    static boolean canSplit(int width, int height, int depth, int maxDepth) {
+        return depth < maxDepth && width > 0 && height > 0 && (width > 1 || height > 1);
+    }
+
+    // returns the side of the leafs a quad tree of a region with a side of this
+    // length reaches at maxDepth, rounded down
+    static int leafSide(int length, int maxDepth) {
+        return maxDepth >= 31 ? 0 : length >> maxDepth;
+    }
+
+    // returns true if a region of this size at this depth of a binary tree could
+    // have been cut, only such regions get a split flag. A region is cut while
+    // either side is longer than the leafs of a quad tree of the whole image at
+    // maxDepth, which are minWidth by minHeight, see leafSide, up to MAX_CUT_DEPTH.
+    // Regions of a single pixel are always leafs
+    static boolean canCut(int width, int height, int depth, int minWidth, int minHeight) {
+        return depth < MAX_CUT_DEPTH && width > 0 && height > 0 && (width > 1 || height > 1)
+                && (width > minWidth || height > minHeight);
+    }
+
+    // returns the number of bits a cut position in a side of this length is
+    // written with, the positions 1 to length - 1 are stored as 0 to length - 2
+    static int cutBits(int length) {
+        return 32 - Integer.numberOfLeadingZeros(length - 2);
+    }
+
+    /**
+     * Encodes the tree under root.
+     *
+     * @param nodes    the nodes of the tree
+     * @param root     the root of the tree, covering the whole image
+     * @param maxDepth the maximum depth the tree was built with
+     * @param coder    the entropy coder for the flags and colors, or null
+     * @return the encoded tree, ready to be read
+     */
+    public static ByteBuffer encode(NodeArena nodes, int root, int maxDepth, EntropyCoder coder) {
+        return encode(nodes, root, maxDepth, coder, 0, 0);
+    }
+
+    /**
+     * Encodes the tree under root, storing the leaf colors as indices into a
+     * palette built for them if paletteSize is not 0.
+     *
+     * @param nodes            the nodes of the tree
+     * @param root             the root of the tree, covering the whole image
+     * @param maxDepth         the maximum depth the tree was built with
+     * @param coder            the entropy coder for the flags and colors, or null
+     * @param paletteSize      the most colors the palette may have, 0 for no
+     *                         palette
+     * @param paletteTolerance see Palette.build
+     * @return the encoded tree, ready to be read
+     */
+    public static ByteBuffer encode(NodeArena nodes, int root, int maxDepth, EntropyCoder coder, int paletteSize,
+            int paletteTolerance) {
+        return encode(nodes, root, maxDepth, coder, paletteSize, paletteTolerance, false);
+    }
+
+    /**
+     * Encodes the tree under root, which was built with binary splits if binary is
+     * true.
+     *
+     * @param nodes            the nodes of the tree
+     * @param root             the root of the tree, covering the whole image
+     * @param maxDepth         the maximum depth the tree was built with
+     * @param coder            the entropy coder for the flags and colors, or null
+     * @param paletteSize      the most colors the palette may have, 0 for no
+     *                         palette
+     * @param paletteTolerance see Palette.build
+     * @param binary           true if every split node has two children
+     * @return the encoded tree, ready to be read
+     */
+    public static ByteBuffer encode(NodeArena nodes, int root, int maxDepth, EntropyCoder coder, int paletteSize,
+            int paletteTolerance, boolean binary) {
+        TreeWriter writer = new TreeWriter(nodes.getWidth(root), nodes.getHeight(root), maxDepth, binary);
+        writer.write(nodes, root, 0);
+        BitWriter flags = writer.flags;
+        int[] colors = writer.colors;
+        int colorCount = writer.colorCount;
+
+        if (paletteSize > 0) {
+            Palette palette = Palette.build(colors, writer.areas, colorCount, paletteSize, paletteTolerance);
+            byte[] paletteBytes = new byte[palette.size() * 3];
+            for (int i = 0; i < palette.size(); i++) {
+                int color = palette.getColor(i);
+                paletteBytes[i * 3] = (byte) (color >> 16);
+                paletteBytes[i * 3 + 1] = (byte) (color >> 8);
+                paletteBytes[i * 3 + 2] = (byte) color;
+            }
+            byte[] indices = palette.indexAll(colors, colorCount);
+            if (coder != null) {
+                return encodeBlocks(coder, flags.toByteArray(), paletteBytes, indices);
+            }
+            ByteBuffer buffer = ByteBuffer.allocate(4 + flags.byteLength() + 2 + paletteBytes.length
+                    + indices.length);
+            buffer.putInt(flags.byteLength());
+            flags.writeTo(buffer);
+            buffer.putShort((short) palette.size());
+            buffer.put(paletteBytes);
+            buffer.put(indices);
+            buffer.flip();
+            return buffer;
+        }
+
+        return encodeLeafs(flags, colors, colorCount, coder);
+    }
+
+    // writes the flags and the first colorCount colors without a palette, in the
+    // layout described above
+    static ByteBuffer encodeLeafs(BitWriter flags, int[] colors, int colorCount, EntropyCoder coder) {
+        if (coder != null) {
+            byte[][] streams = { flags.toByteArray(), new byte[colorCount], new byte[colorCount],
+                    new byte[colorCount] };
+            int previous = 0;
+            for (int i = 0; i < colorCount; i++) {
+                int color = colors[i];
+                streams[1][i] = (byte) ((color >> 16) - (previous >> 16));
+                streams[2][i] = (byte) (((color >> 8) & 0xFF) - ((previous >> 8) & 0xFF));
+                streams[3][i] = (byte) ((color & 0xFF) - (previous & 0xFF));
+                previous = color;
+            }
+            return encodeBlocks(coder, streams);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(4 + flags.byteLength() + colorCount * 3);
+        buffer.putInt(flags.byteLength());
+        flags.writeTo(buffer);
+        for (int i = 0; i < colorCount; i++) {
+            int color = colors[i];
+            buffer.put((byte) ((color >> 16) & 0xFF));
+            buffer.put((byte) ((color >> 8) & 0xFF));
+            buffer.put((byte) (color & 0xFF));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // codes each stream as a block preceded by its symbol count and length
+    private static ByteBuffer encodeBlocks(EntropyCoder coder, byte[]... streams) {
+        byte[][] blocks = new byte[streams.length][];
+        int size = 0;
+        for (int i = 0; i < streams.length; i++) {
+            blocks[i] = coder.encode(streams[i]);
+            size += 8 + blocks[i].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        for (int i = 0; i < streams.length; i++) {
+            buffer.putInt(streams[i].length);
+            buffer.putInt(blocks[i].length);
+            buffer.put(blocks[i]);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // TreeWriter collects the split flags and leaf colors of a tree, and the area
+    // of each leaf for the palette. Several trees may be written one after another
+    // into the same flags and colors
+    static class TreeWriter {
+        final int maxDepth;
+        final boolean binary;
+        // the smallest regions a binary tree cuts, see canCut
+        final int minWidth;
+        final int minHeight;
+        final BitWriter flags = new BitWriter();
+        int[] colors = new int[64];
+        int[] areas = new int[64];
+        int colorCount;
+
+        // a writer for trees of an image of this size
+        TreeWriter(int width, int height, int maxDepth, boolean binary) {
+            this.maxDepth = maxDepth;
+            this.binary = binary;
+            this.minWidth = leafSide(width, maxDepth);
+            this.minHeight = leafSide(height, maxDepth);
+        }
+
+        // writes the tree under node, which is at depth in the tree being encoded
+        void write(NodeArena nodes, int node, int depth) {
+            int width = nodes.getWidth(node);
+            int height = nodes.getHeight(node);
+            if (width == 0 || height == 0) {
+                // covers no pixels, the decoder knows it is an empty leaf
+                return;
+            }
+            boolean splittable = binary ? canCut(width, height, depth, minWidth, minHeight)
+                    : canSplit(width, height, depth, maxDepth);
+            if (splittable) {
+                flags.write(nodes.isLeaf(node) ? 0 : 1);
+            }
+            if (nodes.isLeaf(node)) {
+                writeColor(nodes.getColor(node), width * height);
+                return;
+            }
+            int first = nodes.getFirstChild(node);
+            if (binary) {
+                // the first child is the left or top part of the cut
+                boolean cutWidth = nodes.getWidth(first) < width;
+                if (width > 1 && height > 1) {
+                    flags.write(cutWidth ? 0 : 1);
+                }
+                int length = cutWidth ? width : height;
+                flags.write((cutWidth ? nodes.getWidth(first) : nodes.getHeight(first)) - 1, cutBits(length));
+            }
+            for (int child = first; child < first + nodes.getChildCount(node); child++) {
+                write(nodes, child, depth + 1);
+            }
+        }
+
+        // adds the color of a leaf covering area pixels
+        void writeColor(int color, int area) {
+            if (colorCount == colors.length) {
+                colors = Arrays.copyOf(colors, colorCount * 2);
+                areas = Arrays.copyOf(areas, colorCount * 2);
+            }
+            areas[colorCount] = area;
+            colors[colorCount++] = color;
+        }
+
+        // copies the flags and the colors of an encoded subtree from a reader. The
+        // areas of the copied leafs are not known, so the tree cannot get a palette
+        void copy(TreeReader reader, long flagStart, long flagEnd, int colorStart, int colorEnd) {
+            reader.flags.copyTo(flags, flagStart, flagEnd - flagStart);
+            for (int i = colorStart; i < colorEnd; i++) {
+                writeColor(reader.colors[i], 0);
+            }
+        }
+
+        // drops everything written after flagLength flags and colorCount colors
+        void truncate(long flagLength, int colorCount) {
+            flags.truncate(flagLength);
+            this.colorCount = colorCount;
+        }
+    }
+
+    // returns the number of leaf colors in an encoded tree
+    public static int leafCount(ByteBuffer data, EntropyCoder coder) {
+        return leafCount(data, coder, false);
+    }
+
+    // returns the number of leaf colors in an encoded tree, which has a palette if
+    // palette is true
+    public static int leafCount(ByteBuffer data, EntropyCoder coder, boolean palette) {
+        int start = data.position();
+        if (coder != null) {
+            // the symbol count of the block after the flag block, or after the flag
+            // and palette blocks
+            int position = start + 8 + data.getInt(start + 4);
+            if (palette) {
+                position += 8 + data.getInt(position + 4);
+            }
+            return data.getInt(position);
+        }
+        int flagLength = data.getInt(start);
+        if (palette) {
+            int paletteSize = data.getShort(start + 4 + flagLength) & 0xFFFF;
+            return data.remaining() - 4 - flagLength - 2 - paletteSize * 3;
+        }
+        return (data.remaining() - 4 - flagLength) / 3;
+    }
+
+    /**
+     * Decodes an encoded tree back into the leafs it is made of.
+     *
+     * @param data     the encoded tree, read from its position
+     * @param width    the width of the image
+     * @param height   the height of the image
+     * @param maxDepth the maximum depth the tree was built with
+     * @param coder    the entropy coder the tree was encoded with, or null
+     * @return the leafs that cover any pixels, in tree order
+     * @throws IOException if the encoded tree is corrupt
+     */
+    public static ArrayList<simpleNode> decode(ByteBuffer data, int width, int height, int maxDepth,
+            EntropyCoder coder) throws IOException {
+        ArrayList<simpleNode> leafs = new ArrayList<>();
+        decode(data, width, height, maxDepth, coder, false,
+                (x, y, w, h, color) -> leafs.add(new simpleNode(x, y, w, h, color)));
+        return leafs;
+    }
+
+    /**
+     * Decodes an encoded tree, handing each leaf to the visitor as soon as its
+     * region is known. Only the leaf colors are decoded up front.
+     *
+     * @param data     the encoded tree, read from its position
+     * @param width    the width of the image
+     * @param height   the height of the image
+     * @param maxDepth the maximum depth the tree was built with
+     * @param coder    the entropy coder the tree was encoded with, or null
+     * @param palette  true if the leaf colors are palette indices
+     * @param visitor  receives the leafs that cover any pixels, in tree order
+     * @throws IOException if the encoded tree is corrupt
+     */
+    public static void decode(ByteBuffer data, int width, int height, int maxDepth, EntropyCoder coder,
+            boolean palette, LeafVisitor visitor) throws IOException {
+        decode(data, width, height, maxDepth, coder, palette, false, visitor);
+    }
+
+    /**
+     * Decodes an encoded tree like decode above, for a tree built with binary
+     * splits if binary is true.
+     *
+     * @param data     the encoded tree, read from its position
+     * @param width    the width of the image
+     * @param height   the height of the image
+     * @param maxDepth the maximum depth the tree was built with
+     * @param coder    the entropy coder the tree was encoded with, or null
+     * @param palette  true if the leaf colors are palette indices
+     * @param binary   true if every split node has two children
+     * @param visitor  receives the leafs that cover any pixels, in tree order
+     * @throws IOException if the encoded tree is corrupt
+     */
+    public static void decode(ByteBuffer data, int width, int height, int maxDepth, EntropyCoder coder,
+            boolean palette, boolean binary, LeafVisitor visitor) throws IOException {
+        try {
+            reader(data, width, height, maxDepth, coder, palette, binary, visitor).read(0, 0, width, height, 0);
+        } catch (IllegalStateException | IndexOutOfBoundsException e) {
+            throw new IOException("Encoded tree is corrupt or does not match the image size", e);
+        }
+    }
+
+    // reads the flags and colors of an encoded tree of an image of this size into a
+    // reader, which has not read any of them yet. Every block length is checked
+    // against the data, so a corrupt one throws IOException
+    static TreeReader reader(ByteBuffer data, int width, int height, int maxDepth, EntropyCoder coder,
+            boolean palette, boolean binary, LeafVisitor visitor) throws IOException {
+        int start = data.position();
+        BitReader flags;
+        int[] colors;
+        if (coder != null) {
+            // no stream holds more than a few symbols per pixel: the flags and cuts of
+            // a binary tree take under 5 bytes per pixel, a color or index stream one
+            // byte per leaf and a palette 3 bytes per color. A corrupt count could
+            // otherwise make the coder allocate gigabytes
+            long maxCount = 8L * width * height + (1 << 20);
+            byte[][] streams = new byte[palette ? 3 : 4][];
+            int position = start;
+            for (int i = 0; i < streams.length; i++) {
+                if (position + 8 > data.limit()) {
+                    throw new IOException("Encoded tree is truncated");
+                }
+                int count = data.getInt(position);
+                int length = data.getInt(position + 4);
+                if (count < 0 || length < 0 || length > data.limit() - position - 8) {
+                    throw new IOException("Encoded tree is truncated");
+                }
+                if (count > maxCount) {
+                    throw new IOException("Encoded tree has " + count + " symbols in one block");
+                }
+                streams[i] = coder.decode(data, position + 8, length, count);
+                position += 8 + length;
+            }
+            flags = new BitReader(ByteBuffer.wrap(streams[0]), 0, streams[0].length);
+            if (palette) {
+                if (streams[1].length % 3 != 0) {
+                    throw new IOException("Palette block is not a whole number of colors");
+                }
+                colors = lookup(ByteBuffer.wrap(streams[1]), 0, streams[1].length / 3,
+                        ByteBuffer.wrap(streams[2]), 0, streams[2].length);
+            } else {
+                int colorCount = streams[1].length;
+                if (streams[2].length != colorCount || streams[3].length != colorCount) {
+                    throw new IOException("Color streams have different lengths");
+                }
+                colors = new int[colorCount];
+                int r = 0;
+                int g = 0;
+                int b = 0;
+                for (int i = 0; i < colorCount; i++) {
+                    r = (r + streams[1][i]) & 0xFF;
+                    g = (g + streams[2][i]) & 0xFF;
+                    b = (b + streams[3][i]) & 0xFF;
+                    colors[i] = (r << 16) | (g << 8) | b;
+                }
+            }
+        } else {
+            if (start + 4 > data.limit()) {
+                throw new IOException("Encoded tree is truncated");
+            }
+            int flagLength = data.getInt(start);
+            if (flagLength < 0 || flagLength > data.limit() - start - 4) {
+                throw new IOException("Encoded tree is truncated");
+            }
+            flags = new BitReader(data, start + 4, flagLength);
+            int colorStart = start + 4 + flagLength;
+            if (palette) {
+                if (colorStart + 2 > data.limit()) {
+                    throw new IOException("Encoded tree is truncated");
+                }
+                int paletteSize = data.getShort(colorStart) & 0xFFFF;
+                int indexStart = colorStart + 2 + paletteSize * 3;
+                if (indexStart > data.limit()) {
+                    throw new IOException("Encoded tree is truncated");
+                }
+                colors = lookup(data, colorStart + 2, paletteSize, data, indexStart, data.limit() - indexStart);
+            } else {
+                colors = new int[(data.limit() - colorStart) / 3];
+                for (int i = 0; i < colors.length; i++) {
+                    int index = colorStart + i * 3;
+                    colors[i] = ((data.get(index) & 0xFF) << 16) | ((data.get(index + 1) & 0xFF) << 8)
+                            | (data.get(index + 2) & 0xFF);
+                }
+            }
+        }
+        return new TreeReader(flags, colors, width, height, maxDepth, binary, visitor);
+    }
+
+    // returns the palette color of each index, the palette is paletteSize colors
+    // of 3 bytes each
+    private static int[] lookup(ByteBuffer palette, int paletteStart, int paletteSize, ByteBuffer indices,
+            int indexStart, int count) throws IOException {
+        int[] paletteColors = new int[paletteSize];
+        for (int i = 0; i < paletteSize; i++) {
+            int index = paletteStart + i * 3;
+            paletteColors[i] = ((palette.get(index) & 0xFF) << 16) | ((palette.get(index + 1) & 0xFF) << 8)
+                    | (palette.get(index + 2) & 0xFF);
+        }
+        int[] colors = new int[count];
+        for (int i = 0; i < count; i++) {
+            int index = indices.get(indexStart + i) & 0xFF;
+            if (index >= paletteSize) {
+                throw new IOException("Palette index " + index + " is outside the palette");
+            }
+            colors[i] = paletteColors[index];
+        }
+        return colors;
+    }
+
+    // TreeReader rebuilds the regions of the tree from its split flags. Like
+    // TreeWriter it may read several trees one after another
+    static class TreeReader {
+        final BitReader flags;
+        final int[] colors;
+        final int maxDepth;
+        final boolean binary;
+        // the smallest regions a binary tree cuts, see canCut
+        final int minWidth;
+        final int minHeight;
+        final LeafVisitor visitor;
+        int colorIndex;
+
+        TreeReader(BitReader flags, int[] colors, int width, int height, int maxDepth, boolean binary,
+                LeafVisitor visitor) {
+            this.flags = flags;
+            this.colors = colors;
+            this.maxDepth = maxDepth;
+            this.binary = binary;
+            this.minWidth = leafSide(width, maxDepth);
+            this.minHeight = leafSide(height, maxDepth);
+            this.visitor = visitor;
+        }
+
+        // reads the tree covering the region, which is at depth in the tree being
+        // decoded. Throws IllegalStateException or ArrayIndexOutOfBoundsException if
+        // the flags or colors run out
+        void read(int x, int y, int width, int height, int depth) {
+            if (width == 0 || height == 0) {
+                return;
+            }
+            boolean splittable = binary ? canCut(width, height, depth, minWidth, minHeight)
+                    : canSplit(width, height, depth, maxDepth);
+            if (splittable && flags.read() == 1) {
+                if (binary) {
+                    boolean cutWidth = height == 1 || (width > 1 && flags.read() == 0);
+                    int length = cutWidth ? width : height;
+                    int cut = flags.read(cutBits(length)) + 1;
+                    if (cut >= length) {
+                        throw new IllegalStateException("Cut at " + cut + " is outside a side of " + length);
+                    }
+                    if (cutWidth) {
+                        read(x, y, cut, height, depth + 1);
+                        read(x + cut, y, width - cut, height, depth + 1);
+                    } else {
+                        read(x, y, width, cut, depth + 1);
+                        read(x, y + cut, width, height - cut, depth + 1);
+                    }
+                    return;
+                }
+                // the same split as QuadTree.divide
+                int halfWidth = width / 2;
+                int halfHeight = height / 2;
+                int remainderWidth = width - halfWidth;
+                int remainderHeight = height - halfHeight;
+                read(x, y, halfWidth, halfHeight, depth + 1);
+                read(x + halfWidth, y, remainderWidth, halfHeight, depth + 1);
+                read(x, y + halfHeight, halfWidth, remainderHeight, depth + 1);
+                read(x + halfWidth, y + halfHeight, remainderWidth, remainderHeight, depth + 1);
+                return;
+            }
+            visitor.visit(x, y, width, height, colors[colorIndex++]);
+        }
+    }
+}
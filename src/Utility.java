@@ -1,199 +1,397 @@
 package src;
+import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.ByteBuffer;
 import java.util.*;
 
+import lib.PixelBuffer;
 
+
+// Utility compresses and decompresses images. It holds no mutable state, so one
+// instance can be shared by any number of threads, and a different config can be
+// passed to each call to Compress.
 public class Utility {
-    private static int maxDepth = 200;
-    private static int percentage = 0;
+    // the node arena of each thread, reused by every tree the thread builds
+    private static final ThreadLocal<NodeArena> ARENAS = ThreadLocal.withInitial(NodeArena::new);
+    private final CompressionConfig config;
 
     Utility() {
+        this(CompressionConfig.DEFAULT);
     }
 
     public Utility(int maxDepth, int similarityPercent) {
-        this.maxDepth = maxDepth;
-        this.percentage = similarityPercent;
-    }
-
-    // Below is encoding for larger images(~4000x4000)
-    // public static String encode(ArrayList<simpleNode> leafs) throws IOException {
-    // ByteArrayOutputStream baos = new ByteArrayOutputStream();
-    // for (simpleNode leaf : leafs) {
-    // // Write x, y, width, and height as 12-bit integers
-    // baos.write((byte) ((leaf.x >> 4) & 0xFF));
-    // baos.write((byte) ((leaf.x << 4) & 0xF0 | (leaf.y >> 8) & 0x0F));
-    // baos.write((byte) (leaf.y & 0xFF));
-    // baos.write((byte) ((leaf.width >> 4) & 0xFF));
-    // baos.write((byte) ((leaf.width << 4) & 0xF0 | (leaf.height >> 8) & 0x0F));
-    // baos.write((byte) (leaf.height & 0xFF));
-    // // Write color as a 24-bit integer
-    // baos.write((byte) ((leaf.color >> 16) & 0xFF));
-    // baos.write((byte) ((leaf.color >> 8) & 0xFF));
-    // baos.write((byte) (leaf.color & 0xFF));
-    // }
-    // return Base64.getEncoder().encodeToString(baos.toByteArray());
-    // }
+        this(new CompressionConfig(maxDepth, similarityPercent));
+    }
+
+    // parallelCutoff is the region size in pixels above which the quad tree is
+    // built with fork join tasks, QuadTree.DEFAULT_PARALLEL_CUTOFF suits most images
+    public Utility(int maxDepth, int similarityPercent, int parallelCutoff) {
+        this(new CompressionConfig(maxDepth, similarityPercent, parallelCutoff));
+    }
+
+    // config is used by every call to Compress that does not pass its own
+    public Utility(CompressionConfig config) {
+        this.config = config;
+    }
+
+    public CompressionConfig getConfig() {
+        return config;
+    }
 
     /**
-     * Encodes an ArrayList of simpleNodes into a Base64-encoded string.
+     * Encodes an ArrayList of simpleNodes into a buffer of 8 bytes per leaf.
      * 
      * @param leafs the ArrayList of simpleNodes to encode
-     * @return the Base64-encoded string
-     * @throws IOException if an I/O error occurs
+     * @return the encoded leafs, ready to be read
      */
-    public static String encode(ArrayList<simpleNode> leafs) throws IOException {
-        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    public static ByteBuffer encode(ArrayList<simpleNode> leafs) {
+        ByteBuffer buffer = ByteBuffer.allocate(leafs.size() * 8);
         for (simpleNode leaf : leafs) {
             // Write x, y, width, and height as 10-bit integers
-            baos.write((byte) ((leaf.x >> 2) & 0xFF));
-            baos.write((byte) ((leaf.x << 6) & 0xC0 | (leaf.y >> 4) & 0x3F));
-            baos.write((byte) ((leaf.y << 4) & 0xF0 | (leaf.width >> 6) & 0x0F));
-            baos.write((byte) ((leaf.width << 2) & 0xFC | (leaf.height >> 8) & 0x03));
-            baos.write((byte) (leaf.height & 0xFF));
+            buffer.put((byte) ((leaf.x >> 2) & 0xFF));
+            buffer.put((byte) ((leaf.x << 6) & 0xC0 | (leaf.y >> 4) & 0x3F));
+            buffer.put((byte) ((leaf.y << 4) & 0xF0 | (leaf.width >> 6) & 0x0F));
+            buffer.put((byte) ((leaf.width << 2) & 0xFC | (leaf.height >> 8) & 0x03));
+            buffer.put((byte) (leaf.height & 0xFF));
             // Write color as a 24-bit integer
-            baos.write((byte) ((leaf.color >> 16) & 0xFF));
-            baos.write((byte) ((leaf.color >> 8) & 0xFF));
-            baos.write((byte) (leaf.color & 0xFF));
+            buffer.put((byte) ((leaf.color >> 16) & 0xFF));
+            buffer.put((byte) ((leaf.color >> 8) & 0xFF));
+            buffer.put((byte) (leaf.color & 0xFF));
         }
-        return Base64.getEncoder().encodeToString(baos.toByteArray());
-    }
-
-    // Below is encoding for larger images(~4000x4000)
-    // public static ArrayList<simpleNode> decode(String encoded) throws IOException
-    // {
-    // ArrayList<simpleNode> leafs = new ArrayList<>();
-    // byte[] data = Base64.getDecoder().decode(encoded);
-    // for (int i = 0; i + 8 <= data.length; i += 9) {
-    // // Read x, y, width, and height as 12-bit integers
-    // int x = ((data[i] & 0xFF) << 4) | ((data[i + 1] >> 4) & 0x0F);
-    // int y = ((data[i + 1] & 0x0F) << 8) | (data[i + 2] & 0xFF);
-    // int width = ((data[i + 3] & 0xFF) << 4) | ((data[i + 4] >> 4) & 0x0F);
-    // int height = ((data[i + 4] & 0x0F) << 8) | (data[i + 5] & 0xFF);
-    // // Read color as a 24-bit integer
-    // int color = ((data[i + 6] & 0xFF) << 16) | ((data[i + 7] & 0xFF) << 8) |
-    // (data[i + 8] & 0xFF);
-    // leafs.add(new simpleNode(x, y, width, height, color));
-    // }
-    // return leafs;
-    // }
+        buffer.flip();
+        return buffer;
+    }
+
     /**
-     * Decodes a Base64-encoded string into an ArrayList of simpleNodes.
+     * Decodes a buffer of encoded leafs into an ArrayList of simpleNodes.
      * Each simpleNode represents a rectangular region of the image with a single
      * color.
-     * The encoded string contains information about the x and y coordinates, width,
+     * The encoded buffer contains information about the x and y coordinates, width,
      * height, and color of each region.
      * The x, y, width, and height values are read as 10-bit integers, while the
      * color value is read as a 24-bit integer.
      * The decoded simpleNodes are added to an ArrayList and returned.
      *
-     * @param encoded the Base64-encoded string to decode
+     * @param data the encoded leafs, read from its position to its limit
      * @return an ArrayList of simpleNodes representing the image regions
-     * @throws IOException if there is an error decoding the string
      */
-    public static ArrayList<simpleNode> decode(String encoded) throws IOException {
-        ArrayList<simpleNode> leafs = new ArrayList<>();
-        byte[] data = Base64.getDecoder().decode(encoded);
-        for (int i = 0; i + 7 <= data.length; i += 8) {
+    public static ArrayList<simpleNode> decode(ByteBuffer data) {
+        ArrayList<simpleNode> leafs = new ArrayList<>(data.remaining() / 8);
+        decode(data, (x, y, width, height, color) -> leafs.add(new simpleNode(x, y, width, height, color)));
+        return leafs;
+    }
+
+    // decodes the explicit leafs like decode(ByteBuffer), handing each one to the
+    // visitor instead of collecting them
+    public static void decode(ByteBuffer data, LeafVisitor visitor) {
+        for (int i = data.position(); i + 8 <= data.limit(); i += 8) {
             // Read x, y, width, and height as 10-bit integers
-            int x = ((data[i] & 0xFF) << 2) | ((data[i + 1] >> 6) & 0x03);
-            int y = ((data[i + 1] & 0x3F) << 4) | ((data[i + 2] >> 4) & 0x0F);
-            int width = ((data[i + 2] & 0x0F) << 6) | ((data[i + 3] >> 2) & 0x3F);
-            int height = ((data[i + 3] & 0x03) << 8) | (data[i + 4] & 0xFF);
+            int x = ((data.get(i) & 0xFF) << 2) | ((data.get(i + 1) >> 6) & 0x03);
+            int y = ((data.get(i + 1) & 0x3F) << 4) | ((data.get(i + 2) >> 4) & 0x0F);
+            int width = ((data.get(i + 2) & 0x0F) << 6) | ((data.get(i + 3) >> 2) & 0x3F);
+            int height = ((data.get(i + 3) & 0x03) << 8) | (data.get(i + 4) & 0xFF);
             // Read color as a 24-bit integer
-            int color = ((data[i + 5] & 0xFF) << 16) | ((data[i + 6] & 0xFF) << 8) | (data[i + 7] & 0xFF);
-            leafs.add(new simpleNode(x, y, width, height, color));
+            int color = ((data.get(i + 5) & 0xFF) << 16) | ((data.get(i + 6) & 0xFF) << 8) | (data.get(i + 7) & 0xFF);
+            visitor.visit(x, y, width, height, color);
         }
-        return leafs;
     }
 
     /**
-     * Compresses an image represented by a 3D array of pixels using a quad tree and
+     * Compresses an image represented by a buffer of pixels using a quad tree and
      * writes the compressed data to a file.
      * 
-     * @param pixels         the 3D array of pixels representing the image
+     * @param pixels         the buffer of pixels representing the image
      * @param outputFileName the name of the file to write the compressed data to
      * @throws IOException if there is an error writing to the output file
      */
-    public void Compress(int[][][] pixels, String outputFileName) throws IOException {
-        // create the quad tree with the pixels, maxDepth, and similarityPercent
-        QuadTree quadtree = new QuadTree(pixels, maxDepth, percentage);
-
-        // By calling the mergeSimilarNodes method multiple times on the root node, the
-        // loop is effectively merging similar nodes at different levels of the
-        // quadtree. This can help to further reduce the number of nodes in the quadtree
-        // and simplify the structure of the tree.
-        //seems to reduce the size of the compressed file by a bit
-        Node rootNode = quadtree.getRoot();
-        for (int i = 0; i < 10; i++) {
-            quadtree.mergeSimilarNodes(rootNode);
-        }
+    public void Compress(PixelBuffer pixels, String outputFileName) throws IOException {
+        Compress(pixels, outputFileName, config);
+    }
+
+    /**
+     * Compresses an image with the given settings instead of the ones this Utility
+     * was created with. If config has a target size or PSNR, the tree is built
+     * once and then pruned to meet it, see RateControl.
+     * 
+     * @param pixels         the buffer of pixels representing the image
+     * @param outputFileName the name of the file to write the compressed data to
+     * @param config         the settings to compress this image with
+     * @throws IOException if there is an error writing to the output file
+     */
+    public void Compress(PixelBuffer pixels, String outputFileName, CompressionConfig config) throws IOException {
+        Compress(pixels, outputFileName, config, new CompressionStats());
+    }
 
-        // For default quad tree with just the pixels, uncomment the line below
-        // QuadTree quadtree = new QuadTree(pixels);
+    /**
+     * Compresses an image with the given settings and records the time of each
+     * step and the statistics of the tree in stats.
+     * 
+     * @param pixels         the buffer of pixels representing the image
+     * @param outputFileName the name of the file to write the compressed data to
+     * @param config         the settings to compress this image with
+     * @param stats          receives the steps and the tree statistics, read it
+     *                       once this returns
+     * @throws IOException if there is an error writing to the output file
+     */
+    public void Compress(PixelBuffer pixels, String outputFileName, CompressionConfig config,
+            CompressionStats stats) throws IOException {
+        // the explicit encoding stores coordinates as 10-bit integers
+        if (config.getEncoding() == CompressedFile.ENCODING_EXPLICIT
+                && (pixels.getWidth() > 1023 || pixels.getHeight() > 1023)) {
+            throw new IOException("The explicit encoding only supports images up to 1023x1023 pixels");
+        }
+        stats.setImage(outputFileName, (long) pixels.getWidth() * pixels.getHeight());
+        QuadTree quadtree = buildTree(pixels, config, stats);
+        if (config.getTargetSize() > 0 || config.getTargetPsnr() > 0) {
+            stats.begin(CompressionStats.Step.PRUNE);
+            stats.setTargetMet(RateControl.prune(quadtree, config, tree -> payloadSize(tree, config)));
+            stats.end();
+        }
+        stats.countTree(quadtree);
 
-        try (ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(outputFileName))) {
-            oos.writeObject(encode(quadtree.getLeafs()));
+        stats.begin(CompressionStats.Step.ENCODE);
+        CompressedFile file;
+        if (config.getEncoding() == CompressedFile.ENCODING_EXPLICIT) {
+            ArrayList<simpleNode> leafs = quadtree.getLeafs();
+            file = new CompressedFile(CompressedFile.ENCODING_EXPLICIT, EntropyCoder.NONE, pixels.getWidth(),
+                    pixels.getHeight(), config.getMaxDepth(), config.getSimilarityPercent(), leafs.size(),
+                    encode(leafs));
+        } else if (config.getEncoding() == CompressedFile.ENCODING_PROGRESSIVE) {
+            ByteBuffer payload = ProgressiveCodec.encode(quadtree.getNodes(), quadtree.getRoot(),
+                    config.getMaxDepth(), EntropyCoder.forId(config.getEntropyCoder()));
+            file = new CompressedFile(CompressedFile.ENCODING_PROGRESSIVE, config.getEntropyCoder(),
+                    pixels.getWidth(), pixels.getHeight(), config.getMaxDepth(), config.getSimilarityPercent(),
+                    ProgressiveCodec.leafCount(quadtree.getNodes(), quadtree.getRoot()), payload);
+        } else {
+            ByteBuffer payload = encodeTree(quadtree, config);
+            file = new CompressedFile(CompressedFile.ENCODING_TREE, config.getEntropyCoder(), treeFlags(config),
+                    pixels.getWidth(), pixels.getHeight(), config.getMaxDepth(), config.getSimilarityPercent(),
+                    TreeCodec.leafCount(payload, EntropyCoder.forId(config.getEntropyCoder()),
+                            config.getPaletteSize() > 0),
+                    payload);
+        }
+        stats.end();
+        stats.begin(CompressionStats.Step.WRITE);
+        try {
+            file.write(outputFileName);
         } catch (IOException e) {
-            throw new IOException("Error writing to the output file");
+            throw new IOException("Error writing to the output file", e);
+        }
+        stats.end();
+        stats.setCompressedBytes(CompressedFile.HEADER_SIZE + file.getPayload().remaining());
+    }
+
+    // builds the quad tree of the pixels and merges similar nodes. The nodes go
+    // into an arena kept by the calling thread, so the tree is only valid until the
+    // same thread builds the next one, and a batch of images reuses the arena
+    // instead of allocating the nodes of every tree
+    static QuadTree buildTree(PixelBuffer pixels, CompressionConfig config) {
+        return buildTree(pixels, config, new CompressionStats());
+    }
+
+    // builds and merges the tree, recording both steps in stats. A tree with a
+    // target size or PSNR is built in full to be pruned, see RateControl.fullTree
+    static QuadTree buildTree(PixelBuffer pixels, CompressionConfig config, CompressionStats stats) {
+        // create the quad tree with the pixels, maxDepth, and similarityPercent
+        stats.begin(CompressionStats.Step.BUILD);
+        QuadTree quadtree = new QuadTree(pixels, RateControl.fullTree(config), ARENAS.get());
+        stats.end();
+
+        // merge similar nodes bottom up, a single pass merges everything that can be
+        // merged
+        stats.begin(CompressionStats.Step.MERGE);
+        quadtree.mergeSimilarNodes(quadtree.getRoot());
+        stats.end();
+        return quadtree;
+    }
+
+    // returns the length of the payload Compress writes for the tree
+    private static int payloadSize(QuadTree quadtree, CompressionConfig config) {
+        if (config.getEncoding() == CompressedFile.ENCODING_EXPLICIT) {
+            return quadtree.getLeafs().size() * 8;
         }
+        if (config.getEncoding() == CompressedFile.ENCODING_PROGRESSIVE) {
+            return ProgressiveCodec.encode(quadtree.getNodes(), quadtree.getRoot(), config.getMaxDepth(),
+                    EntropyCoder.forId(config.getEntropyCoder())).remaining();
+        }
+        return encodeTree(quadtree, config).remaining();
+    }
+
+    // encodes the tree with the tree encoding, entropy coder, palette and splits
+    // of config
+    static ByteBuffer encodeTree(QuadTree quadtree, CompressionConfig config) {
+        return TreeCodec.encode(quadtree.getNodes(), quadtree.getRoot(), config.getMaxDepth(),
+                EntropyCoder.forId(config.getEntropyCoder()), config.getPaletteSize(), config.getPaletteTolerance(),
+                config.isBinarySplits());
+    }
+
+    // returns the header flags of a file written with the tree encoding of config
+    static int treeFlags(CompressionConfig config) {
+        return (config.getPaletteSize() > 0 ? CompressedFile.FLAG_PALETTE : 0)
+                | (config.isBinarySplits() ? CompressedFile.FLAG_BINARY : 0);
     }
 
     /**
      * This method reads a compressed image file and returns the decompressed image
-     * as a 3D integer array.
-     * The input file must be in the form of a serialized String object containing
-     * the compressed image data.
-     * The method first decodes the compressed data into an ArrayList of simpleNode
-     * objects, which represent the
-     * rectangular regions of the image with the same color. It then calculates the
-     * width and height of the image
-     * from the leaf nodes, and converts the leaf nodes into a 3D integer array
-     * representing the decompressed image.
+     * as a buffer of pixels.
+     * The input file is a CompressedFile, whose header holds the size of the image
+     * and how the leafs are encoded, or a legacy file holding a serialized Base64
+     * String.
+     * The buffer is allocated once from the size in the header and each leaf is
+     * painted into it as soon as it is decoded, so the leafs are never collected
+     * into a list.
      * 
      * @param inputFileName the name of the input file containing the compressed
      *                      image data
-     * @return a 3D integer array representing the decompressed image
+     * @return a pixel buffer representing the decompressed image
      * @throws IOException            if there is an error reading the input file or
      *                                if the input file contains invalid data
      * @throws ClassNotFoundException if the class of the serialized object cannot
      *                                be found
      */
-    public int[][][] Decompress(String inputFileName) throws IOException, ClassNotFoundException {
+    public PixelBuffer Decompress(String inputFileName) throws IOException, ClassNotFoundException {
+        CompressedFile file = CompressedFile.read(inputFileName);
+        PixelBuffer image = new PixelBuffer(file.getWidth(), file.getHeight());
+        paint(file, inputFileName, image);
+        return image;
+    }
+
+    /**
+     * Reads a compressed image file straight into a TYPE_INT_RGB BufferedImage.
+     * The leafs are painted into the array behind the image's raster, so the image
+     * can be written out without copying its pixels again.
+     * 
+     * @param inputFileName the name of the input file containing the compressed
+     *                      image data
+     * @return the decompressed image
+     * @throws IOException if there is an error reading the input file, if it
+     *                     contains invalid data or if the image has no pixels
+     */
+    public BufferedImage DecompressImage(String inputFileName) throws IOException {
+        CompressedFile file = CompressedFile.read(inputFileName);
+        if (file.getWidth() == 0 || file.getHeight() == 0) {
+            throw new IOException(inputFileName + " holds an empty image");
+        }
+        BufferedImage image = new BufferedImage(file.getWidth(), file.getHeight(), BufferedImage.TYPE_INT_RGB);
+        paint(file, inputFileName, PixelBuffer.wrap(image));
+        return image;
+    }
+
+    /**
+     * Decompresses only a rectangle of a compressed image. For a tiled file (see
+     * TiledCompressor) only the tiles that overlap the rectangle are decoded, so
+     * the cost follows the size of the rectangle rather than of the image. Other
+     * files are decoded in full and clipped to the rectangle.
+     * 
+     * @param inputFileName the name of the input file containing the compressed
+     *                      image data
+     * @param x             the left edge of the rectangle
+     * @param y             the top edge of the rectangle
+     * @param width         the width of the rectangle
+     * @param height        the height of the rectangle
+     * @return the pixels of the rectangle, with (0, 0) at (x, y) of the image
+     * @throws IOException if there is an error reading the input file or if it
+     *                     contains invalid data
+     */
+    public PixelBuffer DecompressRegion(String inputFileName, int x, int y, int width, int height)
+            throws IOException {
+        CompressedFile file = CompressedFile.read(inputFileName);
+        if (x < 0 || y < 0 || width < 0 || height < 0 || x + width > file.getWidth()
+                || y + height > file.getHeight()) {
+            throw new IllegalArgumentException("Region " + x + "," + y + " " + width + "x" + height
+                    + " is outside the " + file.getWidth() + "x" + file.getHeight() + " image");
+        }
+        PixelBuffer region = new PixelBuffer(width, height);
+        decodeLeafs(file, inputFileName, x, y, width, height, Integer.MAX_VALUE, (leafX, leafY, leafWidth, leafHeight, color) -> {
+            int left = Math.max(leafX, x);
+            int top = Math.max(leafY, y);
+            int right = Math.min(leafX + leafWidth, x + width);
+            int bottom = Math.min(leafY + leafHeight, y + height);
+            if (left < right && top < bottom) {
+                region.fillRect(left - x, top - y, right - left, bottom - top, color);
+            }
+        });
+        return region;
+    }
 
-        try (ObjectInputStream ois = new ObjectInputStream(new FileInputStream(inputFileName))) {
-            Object object = ois.readObject();
+    /**
+     * Decompresses a coarse version of a compressed image, for previews. For a
+     * progressive file (see ProgressiveCodec) only the levels of the tree down to
+     * depth are read, and the regions of the nodes at that depth are painted with
+     * their average color. Other files have no colors for inner nodes and are
+     * decompressed in full.
+     * 
+     * @param inputFileName the name of the input file containing the compressed
+     *                      image data
+     * @param depth         the deepest level of the tree to decode, 0 gives the
+     *                      average color of the whole image
+     * @return a full size pixel buffer with the image at that level of detail
+     * @throws IOException if there is an error reading the input file or if it
+     *                     contains invalid data
+     */
+    public PixelBuffer DecompressToDepth(String inputFileName, int depth) throws IOException {
+        if (depth < 0) {
+            throw new IllegalArgumentException("depth must not be negative: " + depth);
+        }
+        CompressedFile file = CompressedFile.read(inputFileName);
+        PixelBuffer image = new PixelBuffer(file.getWidth(), file.getHeight());
+        paint(file, inputFileName, image, depth);
+        return image;
+    }
 
-            if (object instanceof String) {
-                String csv = (String) object;
-                ArrayList<simpleNode> leafs = decode(csv);
+    // decodes the payload of the file and fills each leaf into the image
+    private static void paint(CompressedFile file, String inputFileName, PixelBuffer image) throws IOException {
+        paint(file, inputFileName, image, Integer.MAX_VALUE);
+    }
 
-                // calculate height and width of image from leafs
-                int width = 0;
-                int height = 0;
-                for (simpleNode leaf : leafs) {
-                    if (leaf.x + leaf.width > width) {
-                        width = leaf.x + leaf.width;
+    // decodes the payload of the file down to depth, if the encoding allows it,
+    // and fills each leaf into the image
+    private static void paint(CompressedFile file, String inputFileName, PixelBuffer image, int depth)
+            throws IOException {
+        decodeLeafs(file, inputFileName, 0, 0, image.getWidth(), image.getHeight(), depth,
+                (x, y, width, height, color) -> {
+                    if (x + width > image.getWidth() || y + height > image.getHeight()) {
+                        throw new IllegalStateException("Leaf " + x + "," + y + " " + width + "x" + height
+                                + " is outside the image");
                     }
-                    if (leaf.y + leaf.height > height) {
-                        height = leaf.y + leaf.height;
-                    }
-                }
+                    image.fillRect(x, y, width, height, color);
+                });
+    }
 
-                // convert leafs into int[][][] image
-                int[][][] image = new int[width][height][3];
-                for (simpleNode leaf : leafs) {
-                    for (int i = leaf.x; i < leaf.x + leaf.width; i++) {
-                        for (int j = leaf.y; j < leaf.y + leaf.height; j++) {
-                            image[i][j][0] = (leaf.color >> 16) & 0xff;
-                            image[i][j][1] = (leaf.color >> 8) & 0xff;
-                            image[i][j][2] = leaf.color & 0xff;
-                        }
+    // decodes the leafs of the file that may overlap the rectangle and hands them
+    // to the visitor. Only tiled files can skip leafs, the others hand over all
+    // of them. Progressive files stop at depth and hand over the nodes there
+    private static void decodeLeafs(CompressedFile file, String inputFileName, int x, int y, int width,
+            int height, int depth, LeafVisitor visitor) throws IOException {
+        if (width == 0 || height == 0) {
+            return;
+        }
+        try {
+            if (file.getEncoding() == CompressedFile.ENCODING_EXPLICIT) {
+                decode(file.getPayload(), visitor);
+            } else if (file.getEncoding() == CompressedFile.ENCODING_TREE) {
+                TreeCodec.decode(file.getPayload(), file.getWidth(), file.getHeight(), file.getMaxDepth(),
+                        EntropyCoder.forId(file.getEntropyCoder()), file.hasFlag(CompressedFile.FLAG_PALETTE),
+                        file.hasFlag(CompressedFile.FLAG_BINARY), visitor);
+            } else if (file.getEncoding() == CompressedFile.ENCODING_PROGRESSIVE) {
+                ProgressiveCodec.decode(file.getPayload(), file.getWidth(), file.getHeight(), file.getMaxDepth(),
+                        EntropyCoder.forId(file.getEntropyCoder()), depth, visitor);
+            } else if (file.getEncoding() == CompressedFile.ENCODING_TILED) {
+                TileIndex index = TileIndex.read(file.getPayload(), file.getWidth(), file.getHeight());
+                EntropyCoder coder = EntropyCoder.forId(file.getEntropyCoder());
+                int tileSize = index.getTileSize();
+                for (int row = y / tileSize; row <= (y + height - 1) / tileSize; row++) {
+                    for (int column = x / tileSize; column <= (x + width - 1) / tileSize; column++) {
+                        index.decodeTile(row * index.getColumns() + column, file.getMaxDepth(), coder,
+                                file.hasFlag(CompressedFile.FLAG_PALETTE), file.hasFlag(CompressedFile.FLAG_BINARY),
+                                visitor);
                     }
                 }
-                return image;
             } else {
-                throw new IOException("Invalid object type in the input file");
+                throw new IOException("Unsupported encoding " + file.getEncoding() + " in " + inputFileName);
             }
+        } catch (IllegalStateException e) {
+            throw new IOException(inputFileName + " is corrupt", e);
         }
     }
-}
\ No newline at end of file
+}
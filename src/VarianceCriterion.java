@@ -0,0 +1,27 @@
+package src;
+
+/**
+ * A node is a leaf if the variance of its pixels, summed over the three
+ * channels, is at most that of a standard deviation of percentage% of 255 in
+ * every channel. Unlike the range tests a few outlying pixels do not force a
+ * split, and the test needs nothing but the summed area table.
+ */
+public class VarianceCriterion implements SplitCriterion {
+
+    @Override
+    public int getId() {
+        return VARIANCE;
+    }
+
+    @Override
+    public boolean needsRange() {
+        return false;
+    }
+
+    @Override
+    public boolean isUniform(NodeArena nodes, int node, SummedAreaTable table, int percentage) {
+        double deviation = percentage * 255 / 100.0;
+        return table.variance(nodes.getX(node), nodes.getY(node), nodes.getWidth(node),
+                nodes.getHeight(node)) <= 3 * deviation * deviation;
+    }
+}
@@ -0,0 +1,124 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static src.TestImages.LOSSLESS;
+import static src.TestImages.assertPixelsEqual;
+import static src.TestImages.photo;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Path;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import lib.PixelBuffer;
+
+class CompressionServerTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    // room for two rasters but not three
+    private static final long CACHE_BYTES = 2L * WIDTH * HEIGHT * 4 + 100;
+
+    @TempDir
+    Path dir;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private CompressionServer server;
+
+    @BeforeEach
+    void start() throws Exception {
+        server = new CompressionServer(new Utility(LOSSLESS), dir.toFile(), CACHE_BYTES);
+        server.start(0, 2);
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+    }
+
+    @Test
+    void uploadedImagesAreServed() throws Exception {
+        PixelBuffer pixels = photo(WIDTH, HEIGHT, 1);
+        assertEquals(201, post("a", pixels));
+        assertPixelsEqual(pixels, get("a"));
+        assertPixelsEqual(pixels, get("a"));
+        assertEquals(1, server.getCache().getMisses());
+        assertEquals(1, server.getCache().getHits());
+    }
+
+    @Test
+    void reuploadReplacesTheCachedRaster() throws Exception {
+        assertEquals(201, post("a", photo(WIDTH, HEIGHT, 1)));
+        get("a");
+        PixelBuffer replaced = photo(WIDTH, HEIGHT, 2);
+        assertEquals(201, post("a", replaced));
+        assertPixelsEqual(replaced, get("a"));
+    }
+
+    @Test
+    void leastRecentlyUsedRasterIsEvicted() throws Exception {
+        for (String name : new String[] { "a", "b", "c" }) {
+            assertEquals(201, post(name, photo(WIDTH, HEIGHT, name.charAt(0))));
+            get(name);
+        }
+        assertEquals(1, server.getCache().getEvictions());
+        assertEquals(2, server.getCache().getEntryCount());
+        get("a");
+        assertEquals(4, server.getCache().getMisses());
+    }
+
+    @Test
+    void missingImageIsNotTimed() throws Exception {
+        HttpResponse<byte[]> response = send(HttpRequest.newBuilder(uri("/images/missing")).GET());
+        assertEquals(404, response.statusCode());
+        String stats = new String(send(HttpRequest.newBuilder(uri("/stats")).GET()).body());
+        assertTrue(stats.contains("\"decode\": {\"count\": 0,"), stats);
+    }
+
+    private int post(String name, PixelBuffer pixels) throws Exception {
+        BufferedImage image = new BufferedImage(pixels.getWidth(), pixels.getHeight(), BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < pixels.getHeight(); y++) {
+            for (int x = 0; x < pixels.getWidth(); x++) {
+                image.setRGB(x, y, pixels.getRGB(x, y));
+            }
+        }
+        ByteArrayOutputStream png = new ByteArrayOutputStream();
+        ImageIO.write(image, "png", png);
+        return send(HttpRequest.newBuilder(uri("/images/" + name))
+                .POST(HttpRequest.BodyPublishers.ofByteArray(png.toByteArray()))).statusCode();
+    }
+
+    // reads an image back as packed RGB
+    private PixelBuffer get(String name) throws Exception {
+        HttpResponse<byte[]> response = send(HttpRequest.newBuilder(uri("/images/" + name)).GET());
+        assertEquals(200, response.statusCode());
+        int width = Integer.parseInt(response.headers().firstValue("X-Image-Width").orElseThrow());
+        int height = Integer.parseInt(response.headers().firstValue("X-Image-Height").orElseThrow());
+        byte[] body = response.body();
+        assertEquals(width * height * 3, body.length);
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        for (int i = 0; i < width * height; i++) {
+            int rgb = (body[i * 3] & 0xFF) << 16 | (body[i * 3 + 1] & 0xFF) << 8 | (body[i * 3 + 2] & 0xFF);
+            pixels.setRGB(i % width, i / width, rgb);
+        }
+        return pixels;
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest.Builder request) throws Exception {
+        return client.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+    }
+
+    private URI uri(String path) {
+        return URI.create("http://localhost:" + server.getPort() + path);
+    }
+}
@@ -0,0 +1,72 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+class EntropyCoderTest {
+
+    @Test
+    void noneHasNoCoder() {
+        assertNull(EntropyCoder.forId(EntropyCoder.NONE));
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { EntropyCoder.HUFFMAN, EntropyCoder.RANS })
+    void roundTripsEveryKindOfStream(int id) throws Exception {
+        EntropyCoder coder = EntropyCoder.forId(id);
+        Random random = new Random(id);
+        byte[] uniform = new byte[5000];
+        random.nextBytes(uniform);
+        // mostly small differences around 0, like the color stream
+        byte[] skewed = new byte[5000];
+        for (int i = 0; i < skewed.length; i++) {
+            skewed[i] = (byte) Math.round(random.nextGaussian() * 3);
+        }
+        byte[] single = new byte[1000];
+        Arrays.fill(single, (byte) 7);
+        byte[][] streams = { {}, { 42 }, single, uniform, skewed, { 0, (byte) 255, 0, (byte) 255 } };
+        for (byte[] symbols : streams) {
+            assertArrayEquals(symbols, roundTrip(coder, symbols), symbols.length + " symbols");
+        }
+    }
+
+    @ParameterizedTest
+    @ValueSource(ints = { EntropyCoder.HUFFMAN, EntropyCoder.RANS })
+    void decodesABlockInsideALargerBuffer(int id) throws Exception {
+        EntropyCoder coder = EntropyCoder.forId(id);
+        byte[] symbols = "split flags and leaf colors".getBytes();
+        byte[] block = coder.encode(symbols);
+        ByteBuffer data = ByteBuffer.allocate(block.length + 10);
+        data.position(7);
+        data.put(block);
+        assertArrayEquals(symbols, coder.decode(data, 7, block.length, symbols.length));
+    }
+
+    @Test
+    void huffmanRejectsCodeLengthsThatAreNotAPrefixCode() {
+        // three symbols with 1-bit codes, then a few bytes of codes
+        byte[] block = new byte[32 + 2 + 4];
+        block[0] = (byte) 0xE0;
+        block[32] = 0x11;
+        block[33] = 0x10;
+        HuffmanCoder coder = new HuffmanCoder();
+        assertThrows(IOException.class, () -> coder.decode(ByteBuffer.wrap(block), 0, block.length, 10));
+        // and a table cut off after the bitmap
+        assertThrows(IOException.class, () -> coder.decode(ByteBuffer.wrap(block), 0, 33, 10));
+    }
+
+    private static byte[] roundTrip(EntropyCoder coder, byte[] symbols) throws Exception {
+        byte[] block = coder.encode(symbols);
+        return coder.decode(ByteBuffer.wrap(block), 0, block.length, symbols.length);
+    }
+}
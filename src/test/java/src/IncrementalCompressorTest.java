@@ -0,0 +1,120 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static src.TestImages.LOSSLESS;
+import static src.TestImages.assertPixelsEqual;
+import static src.TestImages.copy;
+import static src.TestImages.photo;
+import static src.TestImages.shade;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import lib.PixelBuffer;
+
+class IncrementalCompressorTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void firstSaveIsTheFullBuild() throws Exception {
+        PixelBuffer pixels = photo(150, 110, 1);
+        Path file = dir.resolve("image.bin");
+        Path full = dir.resolve("full.bin");
+        assertFalse(new IncrementalCompressor(LOSSLESS).compress(pixels, file.toString()));
+        new Utility(LOSSLESS).Compress(pixels, full.toString());
+        assertArrayEquals(Files.readAllBytes(full), Files.readAllBytes(file));
+    }
+
+    @Test
+    void editThenRevertGivesTheOriginalBytes() throws Exception {
+        for (int coder : new int[] { EntropyCoder.NONE, EntropyCoder.HUFFMAN, EntropyCoder.RANS }) {
+            CompressionConfig config = LOSSLESS.withEntropyCoder(coder);
+            IncrementalCompressor compressor = new IncrementalCompressor(config);
+            PixelBuffer pixels = photo(150, 110, coder);
+            Path file = dir.resolve("image" + coder + ".bin");
+            compressor.compress(pixels, file.toString());
+            byte[] original = Files.readAllBytes(file);
+
+            PixelBuffer edited = copy(pixels);
+            edited.fillRect(100, 70, 5, 3, shade(3));
+            assertTrue(compressor.compress(edited, file.toString()));
+            assertTrue(compressor.getReusedRegions() > 0);
+            assertTrue(compressor.getRebuiltPixels() < 150 * 110 / 4, compressor.getRebuiltPixels() + " pixels");
+            assertPixelsEqual(edited, new Utility(config).Decompress(file.toString()));
+
+            assertTrue(compressor.compress(pixels, file.toString()));
+            assertArrayEquals(original, Files.readAllBytes(file));
+        }
+    }
+
+    @Test
+    void unchangedImagesAreCopiedWhole() throws Exception {
+        IncrementalCompressor compressor = new IncrementalCompressor(LOSSLESS);
+        PixelBuffer pixels = photo(97, 61, 2);
+        Path file = dir.resolve("image.bin");
+        compressor.compress(pixels, file.toString());
+        byte[] original = Files.readAllBytes(file);
+        assertTrue(compressor.compress(pixels, file.toString()));
+        assertEquals(0, compressor.getRebuiltRegions());
+        assertArrayEquals(original, Files.readAllBytes(file));
+    }
+
+    @Test
+    void staleHashesRebuildTheWholeImage() throws Exception {
+        IncrementalCompressor compressor = new IncrementalCompressor(LOSSLESS);
+        PixelBuffer pixels = photo(97, 61, 3);
+        Path file = dir.resolve("image.bin");
+        compressor.compress(pixels, file.toString());
+        Files.write(dir.resolve("image.bin" + IncrementalCompressor.HASH_SUFFIX), new byte[] { 1, 2, 3 });
+        assertFalse(compressor.compress(pixels, file.toString()));
+        assertPixelsEqual(pixels, new Utility(LOSSLESS).Decompress(file.toString()));
+    }
+
+    @Test
+    void hashesChangeOnlyAboveAChangedPixel() throws Exception {
+        PixelBuffer pixels = photo(150, 110, 4);
+        PixelBuffer edited = copy(pixels);
+        edited.setRGB(149, 109, pixels.getRGB(149, 109) ^ 1);
+        RegionHashes before = RegionHashes.of(pixels, 16);
+        RegionHashes after = RegionHashes.of(edited, 16);
+        assertEquals(before.getCount(), after.getCount());
+        int changed = 0;
+        for (int i = 0; i < before.getCount(); i++) {
+            if (before.getHash(i) != after.getHash(i)) {
+                changed++;
+            }
+        }
+        assertNotEquals(before.getHash(0), after.getHash(0));
+        // the root and the last quadrant of each level down to the block
+        assertTrue(changed > 1 && changed < 6, changed + " regions changed");
+
+        Path file = dir.resolve("image.hash");
+        before.write(file.toString(), LOSSLESS, 1234);
+        RegionHashes read = RegionHashes.read(file.toString(), 150, 110, LOSSLESS, 1234);
+        for (int i = 0; i < before.getCount(); i++) {
+            assertEquals(before.getHash(i), read.getHash(i));
+            assertEquals(before.getEnd(i), read.getEnd(i));
+        }
+        assertNull(RegionHashes.read(file.toString(), 150, 110, LOSSLESS, 4321));
+        assertNull(RegionHashes.read(file.toString(), 150, 110, LOSSLESS.withSimilarityPercent(5), 1234));
+    }
+
+    @Test
+    void rejectsSettingsThatCannotBePatched() {
+        assertThrows(IllegalArgumentException.class,
+                () -> new IncrementalCompressor(LOSSLESS.withBinarySplits(true)));
+        assertThrows(IllegalArgumentException.class, () -> new IncrementalCompressor(LOSSLESS.withPalette(16, 0)));
+        assertThrows(IllegalArgumentException.class, () -> new IncrementalCompressor(LOSSLESS.withTargetPsnr(30)));
+    }
+}
@@ -0,0 +1,85 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static src.TestImages.LOSSLESS;
+import static src.TestImages.assertPixelsEqual;
+import static src.TestImages.photo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import lib.PixelBuffer;
+
+class ProgressiveCodecTest {
+    private static final CompressionConfig PROGRESSIVE = LOSSLESS.withEncoding(CompressedFile.ENCODING_PROGRESSIVE);
+
+    @TempDir
+    Path dir;
+
+    private final Utility utility = new Utility(LOSSLESS);
+
+    @Test
+    void roundTripsWithEveryCoder() throws Exception {
+        int[][] sizes = { { 1, 1 }, { 1, 9 }, { 9, 1 }, { 45, 37 }, { 64, 48 } };
+        for (int coder : new int[] { EntropyCoder.NONE, EntropyCoder.HUFFMAN, EntropyCoder.RANS }) {
+            for (int[] size : sizes) {
+                PixelBuffer pixels = photo(size[0], size[1], coder);
+                String file = dir.resolve("image.bin").toString();
+                utility.Compress(pixels, file, PROGRESSIVE.withEntropyCoder(coder));
+                assertPixelsEqual(pixels, utility.Decompress(file));
+                assertPixelsEqual(pixels, utility.DecompressToDepth(file, Integer.MAX_VALUE));
+            }
+        }
+    }
+
+    @Test
+    void depthZeroIsTheAverageColor() throws Exception {
+        PixelBuffer pixels = new PixelBuffer(4, 2);
+        pixels.fillRect(0, 0, 2, 2, 0x204060);
+        pixels.fillRect(2, 0, 2, 2, 0x406080);
+        String file = dir.resolve("image.bin").toString();
+        utility.Compress(pixels, file, PROGRESSIVE);
+        PixelBuffer preview = utility.DecompressToDepth(file, 0);
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 4; x++) {
+                assertEquals(0x305070, preview.getRGB(x, y));
+            }
+        }
+        assertPixelsEqual(pixels, utility.DecompressToDepth(file, 1));
+    }
+
+    @Test
+    void regionsMatchTheImage() throws Exception {
+        PixelBuffer pixels = photo(45, 37, 5);
+        String file = dir.resolve("image.bin").toString();
+        utility.Compress(pixels, file, PROGRESSIVE);
+        assertPixelsEqual(pixels.region(10, 12, 20, 15), utility.DecompressRegion(file, 10, 12, 20, 15));
+    }
+
+    @Test
+    void corruptBlockLengthsAreRejected() throws Exception {
+        String file = dir.resolve("corrupt.bin").toString();
+        for (int coder : new int[] { EntropyCoder.NONE, EntropyCoder.HUFFMAN, EntropyCoder.RANS }) {
+            utility.Compress(photo(45, 37, 8), file, PROGRESSIVE.withEntropyCoder(coder));
+            byte[] bytes = Files.readAllBytes(Path.of(file));
+            // the first level starts after the level count and the length of each level
+            int levelCount = ByteBuffer.wrap(bytes).getInt(CompressedFile.HEADER_SIZE);
+            int level = CompressedFile.HEADER_SIZE + 4 + levelCount * 4;
+            for (int field = 0; field < (coder == EntropyCoder.NONE ? 1 : 2); field++) {
+                for (int value : new int[] { -1, Integer.MAX_VALUE, Integer.MAX_VALUE - 4 }) {
+                    ByteBuffer corrupt = ByteBuffer.wrap(bytes.clone());
+                    corrupt.putInt(level + field * 4, value);
+                    Files.write(Path.of(file), corrupt.array());
+                    assertThrows(IOException.class, () -> utility.Decompress(file),
+                            coder + " " + field + " " + value);
+                }
+            }
+        }
+    }
+}
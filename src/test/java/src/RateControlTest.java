@@ -0,0 +1,84 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static src.TestImages.photo;
+
+import java.io.File;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import lib.PixelBuffer;
+import lib.QualityMetrics;
+
+class RateControlTest {
+    // a similarity that would lose most of the detail, which the targets override
+    private static final CompressionConfig COARSE = new CompressionConfig(10, 60);
+
+    @TempDir
+    Path dir;
+
+    private final PixelBuffer pixels = photo(200, 150, 9);
+    private final Utility utility = new Utility(COARSE);
+
+    @Test
+    void targetSizesAreMet() throws Exception {
+        for (int target : new int[] { 500, 2000, 8000 }) {
+            CompressionStats stats = compress(COARSE.withTargetSize(target));
+            assertTrue(stats.isTargetMet(), target + " bytes");
+            assertTrue(fileSize() <= target, fileSize() + " bytes for a target of " + target);
+        }
+    }
+
+    @Test
+    void targetPsnrsAreMet() throws Exception {
+        for (double target : new double[] { 25, 32, 40 }) {
+            CompressionStats stats = compress(COARSE.withTargetPsnr(target));
+            assertTrue(stats.isTargetMet(), target + " dB");
+            assertTrue(psnr() >= target, psnr() + " dB for a target of " + target);
+        }
+    }
+
+    @Test
+    void bothTargetsAreMetWhenTheyAgree() throws Exception {
+        CompressionStats stats = compress(COARSE.withTargetPsnr(30).withTargetSize(30000));
+        assertTrue(stats.isTargetMet());
+        assertTrue(psnr() >= 30, psnr() + " dB");
+        assertTrue(fileSize() <= 30000, fileSize() + " bytes");
+    }
+
+    @Test
+    void targetsThatCannotBeMetAreReported() throws Exception {
+        // smaller than the header
+        CompressionStats stats = compress(COARSE.withTargetSize(10));
+        assertFalse(stats.isTargetMet());
+        assertEquals(1, stats.getLeafCount());
+        // finer than a tree of depth 2 gets
+        assertFalse(compress(COARSE.withMaxDepth(2).withTargetPsnr(50)).isTargetMet());
+        // the size wins over the PSNR
+        stats = compress(COARSE.withTargetPsnr(45).withTargetSize(500));
+        assertFalse(stats.isTargetMet());
+        assertTrue(fileSize() <= 500, fileSize() + " bytes");
+    }
+
+    private CompressionStats compress(CompressionConfig config) throws Exception {
+        CompressionStats stats = new CompressionStats();
+        utility.Compress(pixels, file(), config, stats);
+        return stats;
+    }
+
+    private String file() {
+        return dir.resolve("image.bin").toString();
+    }
+
+    private long fileSize() {
+        return new File(file()).length();
+    }
+
+    private double psnr() throws Exception {
+        return QualityMetrics.measure(pixels, utility.Decompress(file())).psnr();
+    }
+}
@@ -0,0 +1,100 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static src.TestImages.LOSSLESS;
+import static src.TestImages.assertPixelsEqual;
+import static src.TestImages.copy;
+import static src.TestImages.photo;
+import static src.TestImages.shade;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import lib.PixelBuffer;
+
+class SequenceTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void deltaPatchesTheReferenceIntoTheFrame() throws Exception {
+        for (int coder : new int[] { EntropyCoder.NONE, EntropyCoder.HUFFMAN, EntropyCoder.RANS }) {
+            PixelBuffer reference = photo(45, 37, coder);
+            PixelBuffer raster = copy(reference);
+            PixelBuffer frame = copy(reference);
+            frame.fillRect(30, 20, 9, 4, shade(0xAB));
+            frame.setRGB(0, 36, shade(1));
+            CompressionConfig config = LOSSLESS.withEntropyCoder(coder);
+            ByteBuffer changes = DeltaCodec.encode(frame, reference, config, 0);
+            assertPixelsEqual(frame, reference);
+            DeltaCodec.decode(changes, raster, config.getMaxDepth(), EntropyCoder.forId(coder));
+            assertPixelsEqual(frame, raster);
+        }
+    }
+
+    @Test
+    void unchangedFramesCostAlmostNothing() {
+        PixelBuffer frame = photo(64, 48, 1);
+        ByteBuffer changes = DeltaCodec.encode(frame, copy(frame), LOSSLESS.withEntropyCoder(EntropyCoder.NONE), 0);
+        assertTrue(changes.remaining() <= 8, changes.remaining() + " bytes");
+    }
+
+    @Test
+    void framesRoundTripAcrossKeyframes() throws Exception {
+        List<PixelBuffer> frames = moving(45, 37, 8);
+        String file = dir.resolve("frames.seq").toString();
+        try (SequenceWriter writer = new SequenceWriter(file, 45, 37, LOSSLESS, 3, 0)) {
+            for (PixelBuffer frame : frames) {
+                writer.write(frame);
+            }
+            assertTrue(writer.getDeltaBytes() > 0);
+        }
+        try (SequenceReader reader = new SequenceReader(file)) {
+            assertEquals(frames.size(), reader.getFrameCount());
+            for (PixelBuffer frame : frames) {
+                assertPixelsEqual(frame, reader.next());
+            }
+            assertNull(reader.next());
+        }
+    }
+
+    @Test
+    void singlePixelFramesRoundTrip() throws Exception {
+        String file = dir.resolve("pixel.seq").toString();
+        List<PixelBuffer> frames = moving(1, 1, 4);
+        try (SequenceWriter writer = new SequenceWriter(file, 1, 1, LOSSLESS, 2, 0)) {
+            for (PixelBuffer frame : frames) {
+                writer.write(frame);
+            }
+        }
+        try (SequenceReader reader = new SequenceReader(file)) {
+            for (PixelBuffer frame : frames) {
+                assertPixelsEqual(frame, reader.next());
+            }
+        }
+    }
+
+    // frames of a still image with a small square moving across it
+    private static List<PixelBuffer> moving(int width, int height, int count) {
+        Random random = new Random(count);
+        PixelBuffer background = photo(width, height, count);
+        List<PixelBuffer> frames = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            PixelBuffer frame = copy(background);
+            int x = i * 5 % width;
+            frame.fillRect(x, i % height, Math.min(4, width - x), Math.min(3, height - i % height),
+                    shade(random.nextInt(256)));
+            frames.add(frame);
+        }
+        return frames;
+    }
+}
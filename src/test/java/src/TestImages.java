@@ -0,0 +1,72 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+
+import lib.PixelBuffer;
+
+// TestImages makes small images with flat areas, edges and noise, so the trees
+// built from them have leafs of every size. Every color is a shade, see shade,
+// so a region whose red channel is flat is flat in every channel
+final class TestImages {
+    // lossless settings for these images: a region is only a leaf if its red
+    // channel is flat
+    static final CompressionConfig LOSSLESS = new CompressionConfig(16, 0);
+
+    private TestImages() {
+    }
+
+    // the color of a shade from 0 to 255, whose green and blue follow from its red
+    static int shade(int shade) {
+        shade &= 0xFF;
+        return (shade << 16) | (((shade * 7 + 31) & 0xFF) << 8) | ((shade * 13 + 97) & 0xFF);
+    }
+
+    // a few flat rectangles over a gradient, with a patch of noise in one corner
+    static PixelBuffer photo(int width, int height, long seed) {
+        Random random = new Random(seed);
+        PixelBuffer pixels = new PixelBuffer(width, height);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                pixels.setRGB(x, y, shade(x * 200 / width + y * 55 / height));
+            }
+        }
+        for (int i = 0; i < 6; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            pixels.fillRect(x, y, random.nextInt(width - x) + 1, random.nextInt(height - y) + 1,
+                    shade(random.nextInt(256)));
+        }
+        for (int y = 0; y < height / 4; y++) {
+            for (int x = 0; x < width / 4; x++) {
+                pixels.setRGB(x, y, shade(random.nextInt(256)));
+            }
+        }
+        return pixels;
+    }
+
+    static PixelBuffer copy(PixelBuffer pixels) {
+        PixelBuffer copy = new PixelBuffer(pixels.getWidth(), pixels.getHeight());
+        for (int y = 0; y < pixels.getHeight(); y++) {
+            for (int x = 0; x < pixels.getWidth(); x++) {
+                copy.setRGB(x, y, pixels.getRGB(x, y));
+            }
+        }
+        return copy;
+    }
+
+    static void assertPixelsEqual(PixelBuffer expected, PixelBuffer actual) {
+        assertEquals(expected.getWidth(), actual.getWidth(), "width");
+        assertEquals(expected.getHeight(), actual.getHeight(), "height");
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                int want = expected.getRGB(x, y) & 0xFFFFFF;
+                int got = actual.getRGB(x, y) & 0xFFFFFF;
+                if (want != got) {
+                    assertEquals(Integer.toHexString(want), Integer.toHexString(got), "pixel " + x + "," + y);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package src;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static src.TestImages.LOSSLESS;
+import static src.TestImages.assertPixelsEqual;
+import static src.TestImages.photo;
+import static src.TestImages.shade;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import lib.PixelBuffer;
+import lib.QualityMetrics;
+
+class TreeCodecTest {
+    private static final int[] CODERS = { EntropyCoder.NONE, EntropyCoder.HUFFMAN, EntropyCoder.RANS };
+    // odd sizes, single rows and columns and a single pixel
+    private static final int[][] SIZES = { { 1, 1 }, { 1, 9 }, { 9, 1 }, { 2, 3 }, { 45, 37 }, { 64, 48 } };
+
+    @TempDir
+    Path dir;
+
+    private final Utility utility = new Utility(LOSSLESS);
+
+    @Test
+    void quadTreesRoundTripWithEveryCoder() throws Exception {
+        for (int coder : CODERS) {
+            for (int[] size : SIZES) {
+                assertRoundTrip(photo(size[0], size[1], coder), LOSSLESS.withEntropyCoder(coder));
+            }
+        }
+    }
+
+    @Test
+    void binaryTreesRoundTripWithEveryCoder() throws Exception {
+        for (int coder : CODERS) {
+            for (int[] size : SIZES) {
+                assertRoundTrip(photo(size[0], size[1], coder),
+                        LOSSLESS.withEntropyCoder(coder).withBinarySplits(true));
+            }
+        }
+    }
+
+    @Test
+    void binaryTreesAreLosslessAtTheDepthOfALosslessQuadTree() throws Exception {
+        // a cut may peel off a thin strip, so a binary tree needs far more levels
+        // than a quad tree to reach single pixels
+        PixelBuffer pixels = photo(200, 150, 6);
+        for (int y = 0; y < 150; y++) {
+            for (int x = 0; x < 200; x += 7) {
+                pixels.setRGB(x, y, shade(x * y));
+            }
+        }
+        CompressionConfig config = LOSSLESS.withMaxDepth(8);
+        assertRoundTrip(pixels, config);
+        assertRoundTrip(pixels, config.withBinarySplits(true));
+        assertRoundTrip(pixels, config.withBinarySplits(true).withParallelCutoff(QuadTree.DEFAULT_PARALLEL_CUTOFF));
+
+        // and so rate control can prune them down to any PSNR
+        String file = dir.resolve("target.bin").toString();
+        utility.Compress(pixels, file, config.withBinarySplits(true).withTargetPsnr(35));
+        double psnr = QualityMetrics.measure(pixels, utility.Decompress(file)).psnr();
+        assertTrue(psnr >= 35, psnr + " dB");
+    }
+
+    @Test
+    void palettesRoundTripImagesWithFewColors() throws Exception {
+        PixelBuffer pixels = new PixelBuffer(45, 37);
+        int[] colors = { shade(0), shade(40), shade(90), shade(170), shade(255) };
+        for (int y = 0; y < pixels.getHeight(); y++) {
+            for (int x = 0; x < pixels.getWidth(); x++) {
+                pixels.setRGB(x, y, colors[(x / 5 + y / 3 + x * y % 7) % colors.length]);
+            }
+        }
+        for (int coder : CODERS) {
+            assertRoundTrip(pixels, LOSSLESS.withEntropyCoder(coder).withPalette(16, 0));
+            assertRoundTrip(pixels, LOSSLESS.withEntropyCoder(coder).withPalette(16, 0).withBinarySplits(true));
+        }
+    }
+
+    @Test
+    void explicitLeafsRoundTrip() throws Exception {
+        assertRoundTrip(photo(45, 37, 1), LOSSLESS.withEncoding(CompressedFile.ENCODING_EXPLICIT));
+    }
+
+    @Test
+    void regionsOfTreeFilesMatchTheImage() throws Exception {
+        PixelBuffer pixels = photo(45, 37, 2);
+        String file = dir.resolve("tree.bin").toString();
+        utility.Compress(pixels, file);
+        assertRegions(pixels, file);
+    }
+
+    @Test
+    void regionsOfTiledFilesMatchTheImage() throws Exception {
+        PixelBuffer pixels = photo(45, 37, 3);
+        String image = writePng(pixels, "tiled.png");
+        for (int coder : CODERS) {
+            for (boolean binary : new boolean[] { false, true }) {
+                String file = dir.resolve("tiled-" + coder + binary + ".bin").toString();
+                CompressionConfig config = LOSSLESS.withEntropyCoder(coder).withBinarySplits(binary);
+                new TiledCompressor(config, 16, 2).compress(image, file);
+                assertPixelsEqual(pixels, utility.Decompress(file));
+                assertRegions(pixels, file);
+            }
+        }
+    }
+
+    @Test
+    void truncatedTreesAreRejected() throws Exception {
+        String file = dir.resolve("truncated.bin").toString();
+        utility.Compress(photo(45, 37, 4), file, LOSSLESS.withEntropyCoder(EntropyCoder.NONE));
+        byte[] bytes = Files.readAllBytes(Path.of(file));
+        Files.write(Path.of(file), Arrays.copyOf(bytes, bytes.length - 40));
+        assertThrows(IOException.class, () -> utility.Decompress(file));
+    }
+
+    @Test
+    void corruptBlockLengthsAreRejected() throws Exception {
+        String file = dir.resolve("corrupt.bin").toString();
+        // the flag length without a coder, the count and length of the first block
+        // with one, each past the end of the file or negative
+        int[] values = { -1, Integer.MAX_VALUE, Integer.MAX_VALUE - 4 };
+        for (int coder : CODERS) {
+            utility.Compress(photo(45, 37, 7), file, LOSSLESS.withEntropyCoder(coder));
+            byte[] bytes = Files.readAllBytes(Path.of(file));
+            for (int field = 0; field < (coder == EntropyCoder.NONE ? 1 : 2); field++) {
+                for (int value : values) {
+                    ByteBuffer corrupt = ByteBuffer.wrap(bytes.clone());
+                    corrupt.putInt(CompressedFile.HEADER_SIZE + field * 4, value);
+                    Files.write(Path.of(file), corrupt.array());
+                    assertThrows(IOException.class, () -> utility.Decompress(file),
+                            coder + " " + field + " " + value);
+                }
+            }
+        }
+    }
+
+    private void assertRoundTrip(PixelBuffer pixels, CompressionConfig config) throws Exception {
+        String file = dir.resolve("image.bin").toString();
+        utility.Compress(pixels, file, config);
+        assertPixelsEqual(pixels, utility.Decompress(file));
+    }
+
+    // decodes rectangles in the corners, across tile edges and of a single pixel
+    private void assertRegions(PixelBuffer pixels, String file) throws IOException {
+        int width = pixels.getWidth();
+        int height = pixels.getHeight();
+        int[][] regions = { { 0, 0, width, height }, { 0, 0, 1, 1 }, { width - 1, height - 1, 1, 1 },
+                { 10, 12, 20, 15 }, { 15, 0, 2, height }, { 0, 31, width, 6 }, { 5, 5, 0, 0 } };
+        for (int[] r : regions) {
+            assertPixelsEqual(pixels.region(r[0], r[1], r[2], r[3]),
+                    utility.DecompressRegion(file, r[0], r[1], r[2], r[3]));
+        }
+    }
+
+    private String writePng(PixelBuffer pixels, String name) throws IOException {
+        BufferedImage image = new BufferedImage(pixels.getWidth(), pixels.getHeight(), BufferedImage.TYPE_INT_RGB);
+        PixelBuffer target = PixelBuffer.wrap(image);
+        for (int y = 0; y < pixels.getHeight(); y++) {
+            for (int x = 0; x < pixels.getWidth(); x++) {
+                target.setRGB(x, y, pixels.getRGB(x, y));
+            }
+        }
+        File file = dir.resolve(name).toFile();
+        ImageIO.write(image, "png", file);
+        return file.getPath();
+    }
+}